@@ -0,0 +1,281 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+import tester.*;
+
+// Floods a board as planes of bits, a bit for each cell, so every step
+// works on 64 cells at once. Each row starts a new word of the planes, so
+// a row's bits never run into the next row's. The water is spread along
+// rows by adding the flooded bits to the runs of cells below the water,
+// which carries them to the end of each run, and between rows by OR-ing in
+// the row above and below, sweeping down the board and back up until
+// nothing changes. The cells flooded are those Cell.flood floods, and are
+// logged in row order
+class BitboardFlood implements IFloodEngine {
+    // the number of cells along each side of the board, and the words each
+    // row takes
+    int side;
+    int rowWords;
+    // the cells in row order, and their heights with ocean cells infinitely
+    // deep
+    Cell[] cells;
+    double[] ground;
+    // the cells flooded, as they spread, and before this flood, and the
+    // cells below the water that may flood
+    long[] wet;
+    long[] before;
+    long[] below;
+    // the run of cells each flooded cell of a row can reach, upwards and
+    // downwards along the row
+    long[] up;
+    long[] down;
+
+    BitboardFlood(CellGrid grid) {
+        this.side = grid.side;
+        this.rowWords = (this.side + 63) / 64;
+        this.cells = new Cell[grid.size()];
+        this.ground = new double[grid.size()];
+        for (int i = 0; i < grid.size(); i += 1) {
+            this.cells[i] = grid.get(i);
+            if (this.cells[i].isOcean()) {
+                this.ground[i] = Double.NEGATIVE_INFINITY;
+            }
+            else {
+                this.ground[i] = this.cells[i].height;
+            }
+        }
+        this.wet = new long[this.side * this.rowWords];
+        this.before = new long[this.wet.length];
+        this.below = new long[this.wet.length];
+        this.up = new long[this.rowWords];
+        this.down = new long[this.rowWords];
+    }
+
+    // flood every dry cell below the given water height that the water can
+    // reach from a flooded cell
+    // EFFECT: sets the cells' isFlooded flags, and adds each newly flooded
+    // cell to log in row order
+    public void flood(int waterHeight, ArrayList<Cell> log) {
+        this.mark(waterHeight);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int y = 0; y < this.side; y += 1) {
+                changed = this.spreadRow(y) || changed;
+            }
+            for (int y = this.side - 1; y >= 0; y -= 1) {
+                changed = this.spreadRow(y) || changed;
+            }
+        }
+
+        for (int y = 0; y < this.side; y += 1) {
+            for (int w = 0; w < this.rowWords; w += 1) {
+                int word = y * this.rowWords + w;
+                long bits = this.wet[word] & ~this.before[word];
+                while (bits != 0) {
+                    Cell cell = this.cells[y * this.side + w * 64
+                            + Long.numberOfTrailingZeros(bits)];
+                    cell.isFlooded = true;
+                    log.add(cell);
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+
+    // set the planes of the flooded cells and of the cells below the given
+    // water height from the board
+    // EFFECT: modifies wet, before and below
+    void mark(int waterHeight) {
+        for (int y = 0; y < this.side; y += 1) {
+            for (int w = 0; w < this.rowWords; w += 1) {
+                long flooded = 0;
+                long under = 0;
+                int start = y * this.side + w * 64;
+                int end = Math.min(64, this.side - w * 64);
+                for (int b = 0; b < end; b += 1) {
+                    if (this.cells[start + b].isFlooded) {
+                        flooded |= 1L << b;
+                    }
+                    if (this.ground[start + b] < waterHeight) {
+                        under |= 1L << b;
+                    }
+                }
+                int word = y * this.rowWords + w;
+                this.wet[word] = flooded;
+                this.before[word] = flooded;
+                // flooded cells are left in, so runs reach across them
+                this.below[word] = under | flooded;
+            }
+        }
+    }
+
+    // flood the cells below the water of the given row that are next to a
+    // flooded cell in the rows above and below, and every cell along the row
+    // the water can reach from them, returning whether any cell flooded
+    // EFFECT: modifies wet
+    boolean spreadRow(int y) {
+        int row = y * this.rowWords;
+        int above = Math.max(y - 1, 0) * this.rowWords;
+        int beneath = Math.min(y + 1, this.side - 1) * this.rowWords;
+
+        // along the row towards its end, carrying out of the top of a word
+        // into the bottom of the next
+        long carry = 0;
+        for (int w = 0; w < this.rowWords; w += 1) {
+            long open = this.below[row + w];
+            long seeds = (this.wet[row + w] | this.wet[above + w]
+                    | this.wet[beneath + w] | carry) & open;
+            this.up[w] = ((open + seeds) ^ open) & open | seeds;
+            carry = this.up[w] >>> 63;
+        }
+        // and back towards its start, the same way on the reversed bits
+        carry = 0;
+        for (int w = this.rowWords - 1; w >= 0; w -= 1) {
+            long open = Long.reverse(this.below[row + w]);
+            long seeds = Long.reverse(this.wet[row + w] | this.wet[above + w]
+                    | this.wet[beneath + w]) & open | carry & open;
+            long run = ((open + seeds) ^ open) & open | seeds;
+            this.down[w] = Long.reverse(run);
+            carry = run >>> 63;
+        }
+
+        boolean changed = false;
+        for (int w = 0; w < this.rowWords; w += 1) {
+            long bits = this.up[w] | this.down[w];
+            if ((bits & ~this.wet[row + w]) != 0) {
+                this.wet[row + w] |= bits;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
+
+class ExamplesBitboardFlood {
+    // flood the grid to the given water height the way the world does,
+    // returning the cells flooded
+    ArrayList<Cell> flood(CellGrid grid, int waterHeight) {
+        ArrayList<Cell> stack = new ArrayList<Cell>();
+        ArrayList<Cell> log = new ArrayList<Cell>();
+        for (Cell cell : grid.cells) {
+            if (cell.left.isFlooded || cell.right.isFlooded
+                    || cell.top.isFlooded || cell.bottom.isFlooded) {
+                cell.flood(waterHeight, stack, log);
+            }
+        }
+        return log;
+    }
+
+    // check that flooding the grid by bits to the given water height floods
+    // the cells flooding it cell by cell does, logging them in row order
+    boolean matches(CellGrid grid, BitboardFlood bits, int waterHeight) {
+        ArrayList<Cell> expected = this.flood(grid, waterHeight);
+        boolean[] wet = new boolean[grid.size()];
+        for (int i = 0; i < grid.size(); i += 1) {
+            wet[i] = grid.get(i).isFlooded;
+        }
+        for (Cell cell : expected) {
+            cell.isFlooded = false;
+        }
+
+        ArrayList<Cell> log = new ArrayList<Cell>();
+        bits.flood(waterHeight, log);
+        boolean same = log.size() == expected.size();
+        for (int i = 0; i < grid.size(); i += 1) {
+            same = same && grid.get(i).isFlooded == wet[i];
+        }
+        for (int i = 1; i < log.size(); i += 1) {
+            same = same && grid.indexOf(log.get(i - 1)) < grid
+                    .indexOf(log.get(i));
+        }
+        return same;
+    }
+
+    // test that flooding by bits agrees with flooding cell by cell on random
+    // boards of random sizes from every generator, raised by random steps
+    void testMatchesCells(Tester t) {
+        Random rand = new Random(46);
+        boolean same = true;
+        for (int trial = 0; trial < 60; trial += 1) {
+            // sizes either side of the words' ends, up to two words a row
+            int size = 2 * (4 + rand.nextInt(62));
+            AIslandGenerator gen;
+            if (trial % 3 == 0) {
+                gen = new MountainIslandGenerator(size, size);
+            }
+            else if (trial % 3 == 1) {
+                gen = new RandomIslandGenerator(size, size);
+            }
+            else {
+                // the terrain needs a side of a power of two
+                gen = new RandomTerrainIslandGenerator(64, 16 << rand
+                        .nextInt(3));
+            }
+            gen.reseed(rand.nextLong());
+            CellGrid grid = new CellGrid(gen.generateTerrain(),
+                    gen.islandSize + 1);
+            BitboardFlood bits = new BitboardFlood(grid);
+            int water = 0;
+            while (water <= gen.maxHeight) {
+                same = same && this.matches(grid, bits, water);
+                water += 1 + rand.nextInt(8);
+            }
+        }
+        t.checkExpect(same, true);
+    }
+
+    // test spreading along a row across the end of a word, both ways
+    void testAcrossWords(Tester t) {
+        CellGrid grid = new CellGrid(
+                new MountainIslandGenerator(128, 128).generateTerrain(), 129);
+        BitboardFlood bits = new BitboardFlood(grid);
+        t.checkExpect(bits.rowWords, 3);
+        // a channel along row 64 from the west coast to the east
+        for (int x = 1; x < 128; x += 1) {
+            grid.cellAt(x, 64).height = 0;
+        }
+        bits = new BitboardFlood(grid);
+        ArrayList<Cell> log = new ArrayList<Cell>();
+        bits.flood(1, log);
+        t.checkExpect(log.size(), 127);
+        t.checkExpect(grid.cellAt(63, 64).isFlooded, true);
+        t.checkExpect(grid.cellAt(64, 64).isFlooded, true);
+        t.checkExpect(grid.cellAt(64, 63).isFlooded, false);
+    }
+
+    // test playing with the bit engine, which floods as the world does cell
+    // by cell
+    void testWorld(Tester t) {
+        AIslandGenerator gen = new RandomIslandGenerator(64, 64);
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        ForbiddenIslandWorld cells = new ForbiddenIslandWorld(16);
+        world.onKeyEvent("e");
+        world.onKeyEvent("e");
+        t.checkExpect(world.floodMode, ForbiddenIslandWorld.FLOOD_BITS);
+        gen.reseed(3);
+        world.reset(gen);
+        gen.reseed(3);
+        cells.reset(gen);
+        t.checkExpect(world.engine instanceof BitboardFlood, true);
+
+        boolean same = true;
+        for (int water = 1; water <= gen.maxHeight; water += 1) {
+            world.flood(water);
+            cells.flood(water);
+            same = same && world.flooded.size() == cells.flooded.size();
+            for (int i = 0; i < world.grid.size(); i += 1) {
+                same = same && world.grid.get(i).isFlooded == cells.grid
+                        .get(i).isFlooded;
+            }
+        }
+        t.checkExpect(same, true);
+        t.checkExpect(world.kernel.pixels, cells.kernel.pixels);
+
+        ForbiddenIslandWorld menu = new ForbiddenIslandWorld();
+        menu.onKeyEvent("e");
+        menu.onKeyEvent("e");
+        menu.onKeyEvent("e");
+        t.checkExpect(menu.floodMode, ForbiddenIslandWorld.FLOOD_CELLS);
+    }
+}
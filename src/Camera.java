@@ -0,0 +1,105 @@
+import tester.*;
+
+// A square window onto part of a board, kept centred on a cell (usually the
+// player's) but never past the edges of the board, so only the cells inside
+// it need to be drawn
+class Camera {
+    // the most cells shown along each side
+    int span;
+    // the number of cells shown along each side, which is less than the span
+    // on boards smaller than the camera
+    int shown;
+    // the column and row of the top-left cell shown
+    int left;
+    int top;
+
+    Camera(int span) {
+        this.span = span;
+        this.shown = span;
+    }
+
+    // centre the camera on the given cell of a board with the given number of
+    // cells along each side
+    // EFFECT: modifies left, top and shown
+    void follow(Cell cell, int side) {
+        this.shown = Math.min(this.span, side);
+        this.left = Math.max(0,
+                Math.min(cell.x - this.shown / 2, side - this.shown));
+        this.top = Math.max(0,
+                Math.min(cell.y - this.shown / 2, side - this.shown));
+    }
+
+    // get the column just past the last one shown
+    int right() {
+        return this.left + this.shown;
+    }
+
+    // get the row just past the last one shown
+    int bottom() {
+        return this.top + this.shown;
+    }
+
+    // check if the given cell is inside the camera
+    boolean shows(Cell cell) {
+        return cell.x >= this.left && cell.x < this.right()
+                && cell.y >= this.top && cell.y < this.bottom();
+    }
+}
+
+class ExamplesCamera {
+    Camera camera;
+
+    void initialize() {
+        this.camera = new Camera(65);
+    }
+
+    // test following cells
+    void testFollow(Tester t) {
+        this.initialize();
+        this.camera.follow(new Cell(1, 200, 100), 257);
+        t.checkExpect(this.camera.left, 168);
+        t.checkExpect(this.camera.top, 68);
+        t.checkExpect(this.camera.right(), 233);
+        t.checkExpect(this.camera.bottom(), 133);
+
+        // stops at the edges of the board
+        this.camera.follow(new Cell(1, 3, 250), 257);
+        t.checkExpect(this.camera.left, 0);
+        t.checkExpect(this.camera.top, 192);
+        t.checkExpect(this.camera.bottom(), 257);
+
+        // shows all of a board smaller than itself
+        this.camera.follow(new Cell(1, 3, 10), 33);
+        t.checkExpect(this.camera.left, 0);
+        t.checkExpect(this.camera.top, 0);
+        t.checkExpect(this.camera.shown, 33);
+
+        this.camera.follow(new Cell(1, 100, 100), 257);
+        t.checkExpect(this.camera.shown, 65);
+    }
+
+    // test which cells are shown
+    void testShows(Tester t) {
+        this.initialize();
+        this.camera.follow(new Cell(1, 100, 100), 257);
+        t.checkExpect(this.camera.shows(new Cell(1, 100, 100)), true);
+        t.checkExpect(this.camera.shows(new Cell(1, 68, 132)), true);
+        t.checkExpect(this.camera.shows(new Cell(1, 67, 100)), false);
+        t.checkExpect(this.camera.shows(new Cell(1, 100, 133)), false);
+    }
+
+    // test that a large world follows its player and zooms out with z
+    void testWorld(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(256);
+        world.reset(world.mountain);
+        world.drawInGame();
+        t.checkExpect(world.camera.shows(world.player.link), true);
+        t.checkExpect(world.camera.shown, 65);
+
+        world.onKeyEvent("z");
+        t.checkExpect(world.zoomedOut, true);
+        t.checkExpect(world.score, 0);
+        world.onKeyEvent("z");
+        t.checkExpect(world.zoomedOut, false);
+    }
+}
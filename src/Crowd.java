@@ -0,0 +1,606 @@
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import tester.*;
+
+// Where the agents of a crowd stand: for each cell the first agent on it,
+// and for each agent its cell and the agents before and after it on that
+// cell, so finding whether a cell is taken, and moving or removing an
+// agent, take the same time however many agents there are
+class OccupancyGrid {
+    // no agent, or no cell
+    static final int NONE = -1;
+
+    // the first agent on each cell
+    int[] heads;
+    // the cell of each agent, and the agents before and after it there
+    int[] cells;
+    int[] prev;
+    int[] next;
+
+    // creates an empty grid of the given number of cells for the given
+    // number of agents
+    OccupancyGrid(int size, int agents) {
+        this.heads = new int[size];
+        this.cells = new int[agents];
+        this.prev = new int[agents];
+        this.next = new int[agents];
+        for (int i = 0; i < size; i += 1) {
+            this.heads[i] = OccupancyGrid.NONE;
+        }
+        for (int a = 0; a < agents; a += 1) {
+            this.cells[a] = OccupancyGrid.NONE;
+        }
+    }
+
+    // put the given agent, which is on no cell, on the given cell
+    // EFFECT: adds the agent to the cell's list
+    void place(int agent, int cell) {
+        this.cells[agent] = cell;
+        this.prev[agent] = OccupancyGrid.NONE;
+        this.next[agent] = this.heads[cell];
+        if (this.heads[cell] != OccupancyGrid.NONE) {
+            this.prev[this.heads[cell]] = agent;
+        }
+        this.heads[cell] = agent;
+    }
+
+    // take the given agent off its cell
+    // EFFECT: removes the agent from its cell's list
+    void remove(int agent) {
+        int cell = this.cells[agent];
+        if (this.prev[agent] != OccupancyGrid.NONE) {
+            this.next[this.prev[agent]] = this.next[agent];
+        }
+        else {
+            this.heads[cell] = this.next[agent];
+        }
+        if (this.next[agent] != OccupancyGrid.NONE) {
+            this.prev[this.next[agent]] = this.prev[agent];
+        }
+        this.cells[agent] = OccupancyGrid.NONE;
+    }
+
+    // move the given agent to the given cell
+    // EFFECT: moves the agent between the cells' lists
+    void move(int agent, int cell) {
+        this.remove(agent);
+        this.place(agent, cell);
+    }
+
+    // check if any agent is on the given cell
+    boolean isTaken(int cell) {
+        return this.heads[cell] != OccupancyGrid.NONE;
+    }
+}
+
+// Chooses how an agent of a crowd moves each tick
+interface IAgent {
+    // choose the direction the given agent moves in, or -1 to stay
+    int move(Crowd crowd, int agent);
+}
+
+// Wanders in random directions
+class WanderAgent implements IAgent {
+    // choose any direction
+    public int move(Crowd crowd, int agent) {
+        return crowd.rand.nextInt(4);
+    }
+}
+
+// Heads for the nearest piece, or the helicopter once there are none, taking
+// any dry step that gets closer and a random dry step when none does
+class SeekAgent implements IAgent {
+    // choose a direction towards the nearest target
+    public int move(Crowd crowd, int agent) {
+        CellGrid grid = crowd.world.grid;
+        Cell here = grid.get(crowd.occupancy.cells[agent]);
+        Cell goal = crowd.world.helicopter.link;
+        int best = Integer.MAX_VALUE;
+        for (IList<Target> rest = crowd.world.items; rest.isCons(); rest = rest
+                .asCons().next) {
+            Cell piece = rest.asCons().item.link;
+            int distance = Math.abs(piece.x - here.x)
+                    + Math.abs(piece.y - here.y);
+            if (distance < best) {
+                best = distance;
+                goal = piece;
+            }
+        }
+
+        int start = crowd.rand.nextInt(4);
+        int now = Math.abs(goal.x - here.x) + Math.abs(goal.y - here.y);
+        int fallback = -1;
+        for (int d = 0; d < 4; d += 1) {
+            int direction = (start + d) % 4;
+            Cell next = crowd.neighbour(here, direction);
+            if (next != here && !next.isFlooded) {
+                if (Math.abs(goal.x - next.x)
+                        + Math.abs(goal.y - next.y) < now) {
+                    return direction;
+                }
+                fallback = direction;
+            }
+        }
+        return fallback;
+    }
+}
+
+// Moves by the keys a remote client sends, one a tick
+class KeyAgent implements IAgent {
+    ConcurrentLinkedQueue<String> keys;
+
+    KeyAgent(ConcurrentLinkedQueue<String> keys) {
+        this.keys = keys;
+    }
+
+    // move by the next key, if there is one
+    // EFFECT: takes the key from the queue
+    public int move(Crowd crowd, int agent) {
+        String key = this.keys.poll();
+        if (key == null) {
+            return -1;
+        }
+        else if (key.equals("left")) {
+            return Crowd.LEFT;
+        }
+        else if (key.equals("up")) {
+            return Crowd.UP;
+        }
+        else if (key.equals("right")) {
+            return Crowd.RIGHT;
+        }
+        else if (key.equals("down")) {
+            return Crowd.DOWN;
+        }
+        return -1;
+    }
+}
+
+// Many agents on one island with the world's player, each moving every
+// tick. Every agent chooses its move before any moves, and then all the
+// moves are made, so the order of the agents does not matter. The agents
+// are kept in an occupancy grid, and the pieces by cell, so moving, picking
+// up and checking for the helicopter cost the same however many agents and
+// pieces there are. An agent drowns when its cell floods, which the crowd
+// hears from the world's flood bus. The game is only lost once neither the
+// player nor any agent can still reach the targets, so the crowd can tell
+// which dry regions have an agent in them and how near the nearest agent is
+// to the helicopter
+class Crowd implements IFloodObserver {
+    // the directions an agent can move in
+    static final int LEFT = 0;
+    static final int UP = 1;
+    static final int RIGHT = 2;
+    static final int DOWN = 3;
+
+    ForbiddenIslandWorld world;
+    IAgent[] agents;
+    OccupancyGrid occupancy;
+    // whether each agent is still above water, and how many are
+    boolean[] alive;
+    int aliveCount;
+    // the move each agent chose this tick
+    int[] moves;
+    // the piece on each cell, for the pieces last indexed
+    Target[] pieces;
+    // the root of each dry region with an agent in it is marked with mark,
+    // which changes each time the regions are marked so nothing is cleared
+    int[] marks;
+    int mark = 0;
+    IList<Target> indexed = new Empty<Target>();
+    // where random moves and places come from
+    Random rand;
+
+    // puts the given agents on random dry cells of the world's island
+    // EFFECT: observes the world's floods
+    Crowd(ForbiddenIslandWorld world, IAgent[] agents, Random rand) {
+        this.world = world;
+        this.agents = agents;
+        this.rand = rand;
+        this.occupancy = new OccupancyGrid(world.grid.size(), agents.length);
+        this.alive = new boolean[agents.length];
+        this.moves = new int[agents.length];
+        this.pieces = new Target[world.grid.size()];
+        this.marks = new int[world.grid.size()];
+        for (int a = 0; a < agents.length; a += 1) {
+            int cell = this.rand.nextInt(world.grid.size());
+            while (world.grid.get(cell).isFlooded) {
+                cell = this.rand.nextInt(world.grid.size());
+            }
+            this.occupancy.place(a, cell);
+            this.alive[a] = true;
+        }
+        this.aliveCount = agents.length;
+        world.bus.observe(this);
+    }
+
+    // get the cell next to the given one in the given direction, which is the
+    // cell itself at the edge of the board
+    Cell neighbour(Cell cell, int direction) {
+        if (direction == Crowd.LEFT) {
+            return cell.left;
+        }
+        else if (direction == Crowd.UP) {
+            return cell.top;
+        }
+        else if (direction == Crowd.RIGHT) {
+            return cell.right;
+        }
+        return cell.bottom;
+    }
+
+    // play one tick: have every agent above water choose a move, make all
+    // the moves onto dry cells, and pick up the pieces the agents are on
+    // EFFECT: modifies the agents' cells and the world's pieces
+    void step() {
+        for (int a = 0; a < this.agents.length; a += 1) {
+            this.moves[a] = -1;
+            if (this.alive[a]) {
+                this.moves[a] = this.agents[a].move(this, a);
+            }
+        }
+
+        CellGrid grid = this.world.grid;
+        for (int a = 0; a < this.agents.length; a += 1) {
+            if (this.moves[a] != -1) {
+                Cell next = this.neighbour(
+                        grid.get(this.occupancy.cells[a]), this.moves[a]);
+                if (!next.isFlooded) {
+                    this.occupancy.move(a, grid.indexOf(next));
+                }
+            }
+        }
+        this.pickUp();
+    }
+
+    // pick up every piece an agent is on
+    // EFFECT: modifies the world's pieces
+    void pickUp() {
+        this.index();
+        boolean picked = false;
+        for (int a = 0; a < this.agents.length; a += 1) {
+            int cell = this.occupancy.cells[a];
+            if (cell != OccupancyGrid.NONE && this.pieces[cell] != null) {
+                if (this.world.events != null) {
+                    this.world.events.pickup(cell);
+                }
+                this.pieces[cell] = null;
+                picked = true;
+            }
+        }
+
+        if (picked) {
+            IList<Target> res = new Empty<Target>();
+            for (IList<Target> rest = this.world.items; rest
+                    .isCons(); rest = rest.asCons().next) {
+                Target t = rest.asCons().item;
+                if (this.pieces[this.world.grid.indexOf(t.link)] == t) {
+                    res = new Cons<Target>(t, res);
+                }
+            }
+            this.world.items = res;
+            this.indexed = res;
+        }
+    }
+
+    // index the world's pieces by cell, unless they are the ones indexed
+    // already, which they are until a piece is picked up
+    // EFFECT: modifies pieces and indexed
+    void index() {
+        if (this.indexed == this.world.items) {
+            return;
+        }
+
+        for (IList<Target> rest = this.indexed; rest.isCons(); rest = rest
+                .asCons().next) {
+            Target t = rest.asCons().item;
+            this.pieces[this.world.grid.indexOf(t.link)] = null;
+        }
+        for (IList<Target> rest = this.world.items; rest.isCons(); rest = rest
+                .asCons().next) {
+            Target t = rest.asCons().item;
+            this.pieces[this.world.grid.indexOf(t.link)] = t;
+        }
+        this.indexed = this.world.items;
+    }
+
+    // drown the agents on the cells that just flooded
+    // EFFECT: modifies alive, aliveCount and the occupancy grid
+    public void flooded(ArrayList<Cell> cells, CellGrid grid) {
+        for (int i = 0; i < cells.size(); i += 1) {
+            int cell = grid.indexOf(cells.get(i));
+            int a = this.occupancy.heads[cell];
+            while (a != OccupancyGrid.NONE) {
+                int after = this.occupancy.next[a];
+                this.occupancy.remove(a);
+                this.alive[a] = false;
+                this.aliveCount -= 1;
+                a = after;
+            }
+        }
+    }
+
+    // check if an agent above water is on the cell at the given index
+    boolean isAt(int cell) {
+        return this.occupancy.isTaken(cell);
+    }
+
+    // mark the dry regions with an agent above water in them at the given
+    // water height
+    // EFFECT: modifies marks and mark
+    void markRegions(int waterHeight) {
+        this.mark += 1;
+        DryRegions regions = this.world.regions;
+        for (int a = 0; a < this.agents.length; a += 1) {
+            if (this.alive[a]) {
+                this.marks[regions.find(this.occupancy.cells[a],
+                        waterHeight)] = this.mark;
+            }
+        }
+    }
+
+    // check if an agent can reach the cell at the given index over dry land
+    // at the given water height, as of the regions last marked
+    boolean reaches(int cell, int waterHeight) {
+        return this.world.schedule.isDry(cell, waterHeight)
+                && this.marks[this.world.regions.find(cell,
+                        waterHeight)] == this.mark;
+    }
+
+    // get the distance home of the agent above water nearest it, by the
+    // given field, or HomeField.FAR if there is none
+    int nearest(HomeField field) {
+        int best = HomeField.FAR;
+        for (int a = 0; a < this.agents.length; a += 1) {
+            if (this.alive[a]) {
+                best = Math.min(best,
+                        field.dist[this.occupancy.cells[a]]);
+            }
+        }
+        return best;
+    }
+
+    // draw the agents the camera shows into the frame
+    // EFFECT: modifies the frame's pixels under the agents
+    void drawInto(FrameRaster frame, SpriteCache sprites, Camera camera) {
+        Sprite sprite = sprites.square(Cell.CELLSIZE - 4, Color.DARK_GRAY);
+        for (int a = 0; a < this.agents.length; a += 1) {
+            if (this.alive[a]) {
+                Cell cell = this.world.grid.get(this.occupancy.cells[a]);
+                if (camera.shows(cell)) {
+                    frame.blit(sprite,
+                            (cell.x - camera.left) * Cell.CELLSIZE + 2,
+                            (cell.y - camera.top) * Cell.CELLSIZE + 2);
+                }
+            }
+        }
+    }
+}
+
+// Moves in the directions it is given, one a tick, for testing
+class ScriptAgent implements IAgent {
+    int[] directions;
+    int played = 0;
+
+    ScriptAgent(int... directions) {
+        this.directions = directions;
+    }
+
+    // move in the next direction, or stay once there are none
+    // EFFECT: modifies played
+    public int move(Crowd crowd, int agent) {
+        if (this.played == this.directions.length) {
+            return -1;
+        }
+        this.played += 1;
+        return this.directions[this.played - 1];
+    }
+}
+
+class ExamplesCrowd {
+    // a game on the mountain with no pieces, the helicopter at the peak and
+    // the player beside it
+    ForbiddenIslandWorld world() {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.reset(world.mountain);
+        world.helicopter.link = world.grid.cellAt(8, 8);
+        world.player.link = world.grid.cellAt(8, 7);
+        world.items = new Empty<Target>();
+        return world;
+    }
+
+    // a crowd of the given agents in the world, each on the given cell
+    Crowd crowd(ForbiddenIslandWorld world, Cell cell, IAgent... agents) {
+        Crowd crowd = new Crowd(world, agents, new Random(1));
+        for (int a = 0; a < agents.length; a += 1) {
+            crowd.occupancy.move(a, world.grid.indexOf(cell));
+        }
+        return crowd;
+    }
+
+    // test placing, moving and removing agents on the grid
+    void testOccupancy(Tester t) {
+        OccupancyGrid grid = new OccupancyGrid(9, 3);
+        t.checkExpect(grid.isTaken(4), false);
+        grid.place(0, 4);
+        grid.place(1, 4);
+        grid.place(2, 4);
+        t.checkExpect(grid.heads[4], 2);
+        grid.move(1, 5);
+        t.checkExpect(grid.isTaken(5), true);
+        t.checkExpect(grid.next[2], 0);
+        grid.remove(2);
+        t.checkExpect(grid.heads[4], 0);
+        grid.remove(0);
+        t.checkExpect(grid.isTaken(4), false);
+        t.checkExpect(grid.cells, new int[] { -1, 5, -1 });
+    }
+
+    // test that every agent chooses its move before any moves, and that no
+    // agent moves into the water
+    void testBatch(Tester t) {
+        ForbiddenIslandWorld world = this.world();
+        Crowd crowd = this.crowd(world, world.grid.cellAt(8, 2),
+                new ScriptAgent(Crowd.DOWN, Crowd.DOWN),
+                new ScriptAgent(Crowd.UP, Crowd.UP));
+        crowd.step();
+        t.checkExpect(crowd.occupancy.cells[0], 3 * 17 + 8);
+        t.checkExpect(crowd.occupancy.cells[1], 1 * 17 + 8);
+        // the cell above the coast is ocean
+        crowd.step();
+        t.checkExpect(crowd.occupancy.cells[0], 4 * 17 + 8);
+        t.checkExpect(crowd.occupancy.cells[1], 1 * 17 + 8);
+        t.checkExpect(crowd.isAt(1 * 17 + 8), true);
+        t.checkExpect(crowd.isAt(2 * 17 + 8), false);
+    }
+
+    // test that agents pick up the pieces they step on, and win once one is
+    // at the helicopter with none left
+    void testPickUp(Tester t) {
+        ForbiddenIslandWorld world = this.world();
+        world.items = new Cons<Target>(new PieceTarget(world.grid.cellAt(5, 8)),
+                new Cons<Target>(new PieceTarget(world.grid.cellAt(3, 8)),
+                        new Empty<Target>()));
+        Crowd crowd = this.crowd(world, world.grid.cellAt(4, 8),
+                new ScriptAgent(Crowd.RIGHT), new ScriptAgent(Crowd.LEFT),
+                new ScriptAgent(Crowd.RIGHT, Crowd.RIGHT, Crowd.RIGHT,
+                        Crowd.RIGHT));
+        world.crowd = crowd;
+        world.onTick();
+        t.checkExpect(world.items.size(), 0);
+        t.checkExpect(world.state, ForbiddenIslandWorld.INGAME);
+        world.onTick();
+        world.onTick();
+        t.checkExpect(world.state, ForbiddenIslandWorld.INGAME);
+        world.onTick();
+        t.checkExpect(crowd.isAt(8 * 17 + 8), true);
+        t.checkExpect(world.state, ForbiddenIslandWorld.WIN);
+    }
+
+    // test that the game goes on while an agent can still win it, even with
+    // the player cut off from the helicopter or drowned, on the mountain
+    // flattened to 64 with a trench at 40 down the middle
+    void testCrowdCanWin(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        IList<Cell> board = world.mountain.generateTerrain();
+        for (Cell cell : board) {
+            if (!cell.isOcean()) {
+                cell.height = 64;
+                if (cell.x == 8) {
+                    cell.height = 40;
+                }
+            }
+        }
+        world.reset(world.mountain, board);
+        world.items = new Empty<Target>();
+        world.helicopter.link = world.grid.cellAt(12, 8);
+        world.player.link = world.grid.cellAt(4, 8);
+        world.waterHeight = 50;
+        world.flood(50);
+        t.checkExpect(world.isCutOff(), true);
+        t.checkExpect(world.isTooFar(), true);
+        t.checkExpect(world.isOver(), true);
+
+        Crowd crowd = this.crowd(world, world.grid.cellAt(10, 8),
+                new ScriptAgent(Crowd.RIGHT, Crowd.RIGHT));
+        world.crowd = crowd;
+        t.checkExpect(world.isCutOff(), false);
+        t.checkExpect(world.isTooFar(), false);
+        t.checkExpect(world.isOver(), false);
+        // a drowned player stays where it is while the crowd plays on
+        world.player.link = world.grid.cellAt(8, 8);
+        world.onKeyEvent("left");
+        t.checkExpect(world.player.link, world.grid.cellAt(8, 8));
+        t.checkExpect(world.state, ForbiddenIslandWorld.INGAME);
+        world.onTick();
+        t.checkExpect(crowd.isAt(world.grid.indexOf(world.helicopter.link)),
+                true);
+        t.checkExpect(world.state, ForbiddenIslandWorld.WIN);
+
+        // but the game is lost once the crowd has drowned too
+        ArrayList<Cell> cells = new ArrayList<Cell>();
+        cells.add(world.grid.cellAt(12, 8));
+        crowd.flooded(cells, world.grid);
+        t.checkExpect(crowd.aliveCount, 0);
+        t.checkExpect(world.anyAlive(), false);
+        t.checkExpect(world.isOver(), true);
+    }
+
+    // test that agents drown when their cells flood
+    void testDrown(Tester t) {
+        ForbiddenIslandWorld world = this.world();
+        Crowd crowd = this.crowd(world, world.grid.cellAt(8, 1),
+                new ScriptAgent(), new ScriptAgent());
+        crowd.occupancy.move(1, 8 * 17 + 6);
+        // the coast of the mountain is 57 high
+        world.flood(58);
+        t.checkExpect(crowd.alive, new boolean[] { false, true });
+        t.checkExpect(crowd.aliveCount, 1);
+        t.checkExpect(crowd.isAt(1 * 17 + 8), false);
+        crowd.step();
+        t.checkExpect(crowd.occupancy.cells[0], OccupancyGrid.NONE);
+    }
+
+    // test reading a remote client's keys
+    void testKeys(Tester t) {
+        ForbiddenIslandWorld world = this.world();
+        ConcurrentLinkedQueue<String> keys =
+                new ConcurrentLinkedQueue<String>();
+        Crowd crowd = this.crowd(world, world.grid.cellAt(8, 4),
+                new KeyAgent(keys));
+        keys.add("down");
+        keys.add("z");
+        keys.add("right");
+        crowd.step();
+        t.checkExpect(crowd.occupancy.cells[0], 5 * 17 + 8);
+        crowd.step();
+        t.checkExpect(crowd.occupancy.cells[0], 5 * 17 + 8);
+        crowd.step();
+        crowd.step();
+        t.checkExpect(crowd.occupancy.cells[0], 5 * 17 + 9);
+    }
+
+    // test a crowd of hundreds of bots from the menu, whose grid always
+    // agrees with where the agents are
+    void testMany(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld();
+        world.onKeyEvent("c");
+        world.onKeyEvent("c");
+        t.checkExpect(world.crowdMode, 2);
+        world.reset(world.terrain);
+        t.checkExpect(world.crowd.agents.length, 500);
+        t.checkExpect(world.history == null, true);
+        t.checkExpect(world.fastForward(), 0);
+
+        boolean same = true;
+        for (int i = 0; i < 200 && world.state == ForbiddenIslandWorld.INGAME;
+                i += 1) {
+            world.onTick();
+            int alive = 0;
+            for (int a = 0; a < 500; a += 1) {
+                int cell = world.crowd.occupancy.cells[a];
+                same = same && world.crowd.alive[a] == (cell != -1);
+                if (cell != -1) {
+                    alive += 1;
+                    same = same && !world.grid.get(cell).isFlooded;
+                    boolean listed = false;
+                    for (int b = world.crowd.occupancy.heads[cell]; b != -1;
+                            b = world.crowd.occupancy.next[b]) {
+                        listed = listed || b == a;
+                    }
+                    same = same && listed;
+                }
+            }
+            same = same && alive == world.crowd.aliveCount;
+        }
+        t.checkExpect(same, true);
+        world.makeScene();
+
+        world.onKeyEvent("c");
+        world.handleReset("m");
+        world.onKeyEvent("c");
+    }
+}
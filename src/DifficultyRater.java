@@ -0,0 +1,597 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import tester.*;
+
+// Everything simulated games on one island share, none of which changes
+// while they are played: the board, when each cell floods, the dry regions,
+// each cell's neighbours, and where things can be placed
+class SimMap {
+    // the directions a player can move, as offsets into the neighbours
+    static final int LEFT = 0;
+    static final int UP = 1;
+    static final int RIGHT = 2;
+    static final int DOWN = 3;
+
+    CellGrid grid;
+    FloodSchedule schedule;
+    DryRegions regions;
+    int maxHeight;
+    // the four neighbours of each cell, in direction order
+    int[] neighbours;
+    // the cells dry at the start, and the ones at the maximum height
+    int[] dry;
+    int[] peaks;
+    // the number of moves from each cell to each peak over the cells dry at
+    // the start, by peak in the order of peaks
+    int[][] homes;
+
+    SimMap(IList<Cell> board, AIslandGenerator gen) {
+        this.grid = new CellGrid(board, gen.islandSize + 1);
+        this.schedule = new FloodSchedule(this.grid);
+        this.regions = new DryRegions(this.grid, this.schedule);
+        this.maxHeight = gen.maxHeight;
+
+        this.neighbours = new int[this.grid.size() * 4];
+        ArrayList<Integer> dry = new ArrayList<Integer>();
+        ArrayList<Integer> peaks = new ArrayList<Integer>();
+        for (int i = 0; i < this.grid.size(); i += 1) {
+            Cell cell = this.grid.get(i);
+            this.neighbours[i * 4 + SimMap.LEFT] = this.grid.indexOf(cell.left);
+            this.neighbours[i * 4 + SimMap.UP] = this.grid.indexOf(cell.top);
+            this.neighbours[i * 4 + SimMap.RIGHT] = this.grid.indexOf(cell.right);
+            this.neighbours[i * 4 + SimMap.DOWN] = this.grid.indexOf(cell.bottom);
+            if (!cell.isFlooded) {
+                dry.add(i);
+            }
+            if (cell.height == gen.maxHeight) {
+                peaks.add(i);
+            }
+        }
+        this.dry = this.toArray(dry);
+        this.peaks = this.toArray(peaks);
+        this.homes = new int[this.peaks.length][];
+        for (int p = 0; p < this.peaks.length; p += 1) {
+            this.homes[p] = this.distancesTo(this.peaks[p]);
+        }
+    }
+
+    // get the number of moves from each cell to the cell at the given index
+    // over the cells dry at the start, or HomeField.FAR if it has no way
+    int[] distancesTo(int idx) {
+        for (int p = 0; p < this.peaks.length; p += 1) {
+            if (this.peaks[p] == idx && this.homes[p] != null) {
+                return this.homes[p];
+            }
+        }
+        return new HomeField(this.grid, this.grid.get(idx)).dist;
+    }
+
+    // copy the list into an array
+    int[] toArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i += 1) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    // get the neighbour of the cell at the given index in the given direction
+    int neighbour(int idx, int direction) {
+        return this.neighbours[idx * 4 + direction];
+    }
+
+    // get the Manhattan distance between the cells at the given indices
+    int distance(int a, int b) {
+        int side = this.grid.side;
+        return Math.abs(a % side - b % side) + Math.abs(a / side - b / side);
+    }
+}
+
+// One game played out on a SimMap by the same rules as ForbiddenIslandWorld
+// when every key press is a move and a tick, but with the board left alone:
+// whether a cell is flooded is read from the map's schedule, so a game is
+// just a few numbers and playing it costs microseconds
+class SimGame {
+    // the number of pieces placed, as in the world
+    static final int PIECES = 5;
+
+    // what the game is doing
+    static final int PLAYING = 0;
+    static final int LOST = 1;
+    static final int WON = 2;
+
+    SimMap map;
+    Random rand;
+    int player;
+    int[] pieces = new int[SimGame.PIECES];
+    int pieceCount = SimGame.PIECES;
+    int helicopter;
+    // the distances to the cell at homeCell, from the map, fetched when
+    // first needed and again whenever the helicopter moves
+    int[] home;
+    int homeCell = -1;
+    int waterHeight;
+    int tick;
+    int score;
+    int result = SimGame.PLAYING;
+
+    // place the player, pieces and helicopter on random cells as the world
+    // does
+    SimGame(SimMap map, Random rand) {
+        this.map = map;
+        this.rand = rand;
+        for (int i = 0; i < this.pieces.length; i += 1) {
+            this.pieces[i] = map.dry[rand.nextInt(map.dry.length)];
+        }
+        this.player = map.dry[rand.nextInt(map.dry.length)];
+        this.helicopter = map.peaks[rand.nextInt(map.peaks.length)];
+    }
+
+    // check if the cell at the given index is dry now
+    boolean isDry(int idx) {
+        return this.map.schedule.isDry(idx, this.waterHeight);
+    }
+
+    // play until the game is won or lost, with the given bot at the keys
+    // EFFECT: plays the game
+    void play(IBot bot) {
+        while (this.result == SimGame.PLAYING) {
+            this.step(bot.move(this));
+        }
+    }
+
+    // press the key for the given direction, or none for -1
+    // EFFECT: moves the player, raises the water every tenth tick, picks up
+    // pieces and decides the game
+    void step(int direction) {
+        if (direction >= 0) {
+            int next = this.map.neighbour(this.player, direction);
+            if (this.isDry(next)) {
+                this.player = next;
+            }
+        }
+        this.score += 1;
+        this.tick += 1;
+        if (this.tick % 10 == 0) {
+            this.waterHeight += 1;
+        }
+
+        for (int i = 0; i < this.pieceCount; i += 1) {
+            if (this.pieces[i] == this.player) {
+                this.pieceCount -= 1;
+                this.pieces[i] = this.pieces[this.pieceCount];
+                i -= 1;
+            }
+        }
+
+        if (this.isOver()) {
+            this.result = SimGame.LOST;
+        }
+        else if (this.pieceCount == 0 && this.player == this.helicopter) {
+            this.result = SimGame.WON;
+        }
+    }
+
+    // check if the game is lost: the player, a piece or the helicopter is
+    // flooded, or cut off from the player, or the player is too far from the
+    // helicopter to reach it before it floods
+    boolean isOver() {
+        int water = this.waterHeight;
+        DryRegions regions = this.map.regions;
+        for (int i = 0; i < this.pieceCount; i += 1) {
+            if (!regions.connected(this.player, this.pieces[i], water)) {
+                return true;
+            }
+        }
+        return !regions.connected(this.player, this.helicopter, water)
+                || this.isTooFar();
+    }
+
+    // check if the player is more moves from the helicopter than it has
+    // before the tick the helicopter floods in, as the world does when
+    // every key press is a move and a tick. The distance is over the cells
+    // dry at the start, so this may decide a game later than the world would
+    // once the way home floods, but never earlier
+    boolean isTooFar() {
+        if (this.homeCell != this.helicopter) {
+            this.home = this.map.distancesTo(this.helicopter);
+            this.homeCell = this.helicopter;
+        }
+        int level = this.map.schedule.levelOf(this.helicopter);
+        long ticks = 10 - this.tick % 10
+                + 10L * (level - this.waterHeight - 1);
+        return this.home[this.player] > ticks - 1;
+    }
+}
+
+// A way of choosing moves in a simulated game
+interface IBot {
+    // choose the direction to move in, or -1 to stay
+    int move(SimGame game);
+}
+
+// Stands still, to see how long a player lasts without moving
+class StayBot implements IBot {
+    // stay put
+    public int move(SimGame game) {
+        return -1;
+    }
+}
+
+// Wanders in random directions
+class RandomBot implements IBot {
+    // choose any direction
+    public int move(SimGame game) {
+        return game.rand.nextInt(4);
+    }
+}
+
+// Heads for the nearest piece, or the helicopter once there are none, taking
+// any dry step that gets closer and a random dry step when none does
+class GreedyBot implements IBot {
+    // choose a direction towards the nearest target
+    public int move(SimGame game) {
+        SimMap map = game.map;
+        int goal = game.helicopter;
+        int best = Integer.MAX_VALUE;
+        for (int i = 0; i < game.pieceCount; i += 1) {
+            int distance = map.distance(game.player, game.pieces[i]);
+            if (distance < best) {
+                best = distance;
+                goal = game.pieces[i];
+            }
+        }
+
+        int start = game.rand.nextInt(4);
+        int here = map.distance(game.player, goal);
+        int fallback = -1;
+        for (int d = 0; d < 4; d += 1) {
+            int direction = (start + d) % 4;
+            int next = map.neighbour(game.player, direction);
+            if (next != game.player && game.isDry(next)) {
+                if (map.distance(next, goal) < here) {
+                    return direction;
+                }
+                fallback = direction;
+            }
+        }
+        return fallback;
+    }
+}
+
+// What a batch of simulated games came to
+class DifficultyReport {
+    int games;
+    int wins;
+    long totalScore;
+    // the number of games lost at each water height
+    int[] losses;
+
+    DifficultyReport(int maxHeight) {
+        this.losses = new int[maxHeight + 2];
+    }
+
+    // count a finished game
+    // EFFECT: modifies the totals
+    void add(SimGame game) {
+        this.games += 1;
+        this.totalScore += game.score;
+        if (game.result == SimGame.WON) {
+            this.wins += 1;
+        }
+        else {
+            this.losses[Math.min(game.waterHeight, this.losses.length - 1)] += 1;
+        }
+    }
+
+    // add the games of another report to this one
+    // EFFECT: modifies the totals
+    void merge(DifficultyReport that) {
+        this.games += that.games;
+        this.wins += that.wins;
+        this.totalScore += that.totalScore;
+        if (that.losses.length > this.losses.length) {
+            this.losses = Arrays.copyOf(this.losses,
+                    that.losses.length);
+        }
+        for (int i = 0; i < that.losses.length; i += 1) {
+            this.losses[i] += that.losses[i];
+        }
+    }
+
+    // get the fraction of games won
+    double winRate() {
+        return (double) this.wins / this.games;
+    }
+
+    // get the mean score over every game
+    double meanScore() {
+        return (double) this.totalScore / this.games;
+    }
+
+    // get the water height by which the given fraction of lost games were
+    // lost, or -1 if none were
+    int loseHeight(double fraction) {
+        int lost = this.games - this.wins;
+        if (lost == 0) {
+            return -1;
+        }
+        int seen = 0;
+        for (int h = 0; h < this.losses.length; h += 1) {
+            seen += this.losses[h];
+            if (seen >= fraction * lost) {
+                return h;
+            }
+        }
+        return this.losses.length - 1;
+    }
+
+    // describe the report in a line
+    public String toString() {
+        return String.format(
+                "%d games, %.1f%% won, mean score %.1f, lost by water %d/%d/%d"
+                        + " (10%%/50%%/90%%)",
+                this.games, 100 * this.winRate(), this.meanScore(),
+                this.loseHeight(0.1), this.loseHeight(0.5),
+                this.loseHeight(0.9));
+    }
+}
+
+// Plays a range of games on a map, splitting the range in half across the
+// pool until it is small. Each game's randomness comes from its own seed, so
+// the report does not depend on how the games are split
+class RateTask extends RecursiveTask<DifficultyReport> {
+    private static final long serialVersionUID = 1L;
+
+    // the number of games below which a range is played directly
+    static final int GRAIN = 64;
+
+    SimMap map;
+    IBot bot;
+    long seed;
+    int from;
+    int to;
+
+    RateTask(SimMap map, IBot bot, long seed, int from, int to) {
+        this.map = map;
+        this.bot = bot;
+        this.seed = seed;
+        this.from = from;
+        this.to = to;
+    }
+
+    // play the games
+    protected DifficultyReport compute() {
+        if (this.to - this.from <= RateTask.GRAIN) {
+            DifficultyReport report = new DifficultyReport(this.map.maxHeight);
+            for (int g = this.from; g < this.to; g += 1) {
+                SimGame game = new SimGame(this.map,
+                        new Random(this.seed * 1000003 + g));
+                game.play(this.bot);
+                report.add(game);
+            }
+            return report;
+        }
+
+        int mid = (this.from + this.to) >>> 1;
+        RateTask right = new RateTask(this.map, this.bot, this.seed, mid,
+                this.to);
+        right.fork();
+        DifficultyReport report = new RateTask(this.map, this.bot, this.seed,
+                this.from, mid).compute();
+        report.merge(right.join());
+        return report;
+    }
+}
+
+// Rates how hard a generator's islands are by playing many simulated games
+// with a bot on each island from a range of seeds, in parallel
+class DifficultyRater {
+    AIslandGenerator gen;
+    IBot bot;
+    int gamesPerMap;
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    DifficultyRater(AIslandGenerator gen, IBot bot, int gamesPerMap) {
+        this.gen = gen;
+        this.bot = bot;
+        this.gamesPerMap = gamesPerMap;
+    }
+
+    // rate the islands the generator makes from the seeds from fromSeed up
+    // to toSeed
+    // EFFECT: reseeds the generator
+    DifficultyReport rate(long fromSeed, long toSeed) {
+        DifficultyReport report = new DifficultyReport(this.gen.maxHeight);
+        for (long seed = fromSeed; seed < toSeed; seed += 1) {
+            report.merge(this.rate(seed));
+        }
+        return report;
+    }
+
+    // rate the island the generator makes from the given seed
+    // EFFECT: reseeds the generator
+    DifficultyReport rate(long seed) {
+        this.gen.reseed(seed);
+        SimMap map = new SimMap(this.gen.generateTerrain(), this.gen);
+        return this.pool.invoke(
+                new RateTask(map, this.bot, seed, 0, this.gamesPerMap));
+    }
+
+    // rate each generator with each bot over a few seeds
+    public static void main(String[] args) {
+        int seeds = 10;
+        int games = 2000;
+        if (args.length >= 2) {
+            seeds = Integer.parseInt(args[0]);
+            games = Integer.parseInt(args[1]);
+        }
+
+        AIslandGenerator[] gens = { new MountainIslandGenerator(64),
+            new RandomIslandGenerator(64),
+            new RandomTerrainIslandGenerator(128) };
+        IBot[] bots = { new GreedyBot(), new RandomBot(), new StayBot() };
+        for (AIslandGenerator gen : gens) {
+            for (IBot bot : bots) {
+                long start = System.nanoTime();
+                DifficultyReport report = new DifficultyRater(gen, bot, games)
+                        .rate(0, seeds);
+                long micros = (System.nanoTime() - start) / 1000;
+                System.out.println(gen.getClass().getSimpleName() + " "
+                        + bot.getClass().getSimpleName() + ": " + report
+                        + String.format(", %.1f us/game",
+                                (double) micros / report.games));
+            }
+        }
+    }
+}
+
+class ExamplesDifficultyRater {
+    AIslandGenerator mountainGen = new MountainIslandGenerator(16, 16);
+    SimMap mountain;
+
+    void initialize() {
+        this.mountain = new SimMap(this.mountainGen.generateTerrain(),
+                this.mountainGen);
+    }
+
+    // test that reseeding a generator repeats its islands
+    void testReseed(Tester t) {
+        AIslandGenerator[] gens = { new RandomIslandGenerator(32, 32),
+            new RandomTerrainIslandGenerator(32, 32),
+            new NoiseIslandGenerator(32, 32) };
+        for (AIslandGenerator gen : gens) {
+            gen.reseed(7);
+            ArrayList<ArrayList<Double>> first = gen.generateHeights();
+            gen.reseed(7);
+            t.checkExpect(gen.generateHeights(), first);
+            gen.reseed(8);
+            t.checkExpect(gen.generateHeights().equals(first), false);
+        }
+    }
+
+    // test the map's view of the board
+    void testMap(Tester t) {
+        this.initialize();
+        t.checkExpect(this.mountain.peaks, new int[] { 8 * 17 + 8 });
+        t.checkExpect(this.mountain.dry.length, 113);
+        t.checkExpect(this.mountain.neighbour(8 * 17 + 8, SimMap.UP),
+                7 * 17 + 8);
+        t.checkExpect(this.mountain.neighbour(0, SimMap.LEFT), 0);
+        t.checkExpect(this.mountain.distance(0, 2 * 17 + 3), 5);
+        t.checkExpect(this.mountain.homes.length, 1);
+        t.checkExpect(this.mountain.distancesTo(8 * 17 + 8),
+                this.mountain.homes[0]);
+        t.checkExpect(this.mountain.homes[0][8 * 17 + 3], 5);
+        t.checkExpect(this.mountain.homes[0][0], HomeField.FAR);
+    }
+
+    // test losing once the player is too far from the helicopter to reach it
+    // before it floods, on the small mountain flattened to its peak
+    void testTooFar(Tester t) {
+        IList<Cell> board = this.mountainGen.generateTerrain();
+        for (Cell cell : board) {
+            if (!cell.isOcean()) {
+                cell.height = 16;
+            }
+        }
+        SimMap flat = new SimMap(board, this.mountainGen);
+        t.checkExpect(flat.peaks.length, 113);
+        SimGame game = new SimGame(flat, new Random(1));
+        game.player = 8 * 17 + 8;
+        game.pieceCount = 0;
+        game.helicopter = 8 * 17 + 3;
+        t.checkExpect(game.isTooFar(), false);
+        // the helicopter floods in the tick the water reaches 17
+        game.play(new StayBot());
+        t.checkExpect(game.result, SimGame.LOST);
+        t.checkExpect(game.tick, 165);
+
+        // a player exactly as far as the moves left can still win
+        game = new SimGame(flat, new Random(1));
+        game.player = 8 * 17 + 8;
+        game.pieceCount = 0;
+        game.helicopter = 8 * 17 + 3;
+        game.tick = 164;
+        game.waterHeight = 16;
+        t.checkExpect(game.isTooFar(), false);
+        game.play(new GreedyBot());
+        t.checkExpect(game.result, SimGame.WON);
+        t.checkExpect(game.tick, 169);
+    }
+
+    // test that a player standing still loses when its cell floods
+    void testStay(Tester t) {
+        this.initialize();
+        SimGame game = new SimGame(this.mountain, new Random(1));
+        game.player = 1 * 17 + 8;
+        game.pieceCount = 0;
+        game.helicopter = 8 * 17 + 8;
+        // the cell is height 9, so floods once the water reaches 10
+        game.play(new StayBot());
+        t.checkExpect(game.result, SimGame.LOST);
+        t.checkExpect(game.tick, 100);
+        t.checkExpect(game.score, 100);
+    }
+
+    // test picking up and winning
+    void testWin(Tester t) {
+        this.initialize();
+        SimGame game = new SimGame(this.mountain, new Random(1));
+        game.player = 8 * 17 + 6;
+        game.pieces[0] = 8 * 17 + 7;
+        game.pieceCount = 1;
+        game.helicopter = 8 * 17 + 8;
+        game.step(SimMap.RIGHT);
+        t.checkExpect(game.pieceCount, 0);
+        t.checkExpect(game.result, SimGame.PLAYING);
+        game.step(SimMap.RIGHT);
+        t.checkExpect(game.result, SimGame.WON);
+    }
+
+    // test rating: the small mountain never floods in time, so a greedy bot
+    // always wins, and the report is the same however the games are split
+    void testRate(Tester t) {
+        DifficultyRater rater = new DifficultyRater(this.mountainGen,
+                new GreedyBot(), 300);
+        DifficultyReport report = rater.rate(0, 2);
+        t.checkExpect(report.games, 600);
+        t.checkExpect(report.winRate(), 1.0);
+        t.checkExpect(report.loseHeight(0.5), -1);
+
+        SimMap map = new SimMap(this.mountainGen.generateTerrain(),
+                this.mountainGen);
+        DifficultyReport whole = new RateTask(map, new RandomBot(), 3, 0, 50)
+                .compute();
+        DifficultyReport split = ForkJoinPool.commonPool()
+                .invoke(new RateTask(map, new RandomBot(), 3, 0, 50));
+        t.checkExpect(split.totalScore, whole.totalScore);
+
+        DifficultyRater random = new DifficultyRater(
+                new RandomIslandGenerator(64, 32), new GreedyBot(), 200);
+        DifficultyReport first = random.rate(0, 3);
+        DifficultyReport again = random.rate(0, 3);
+        t.checkExpect(again.totalScore, first.totalScore);
+        t.checkExpect(again.losses, first.losses);
+        t.checkExpect(first.games, 600);
+    }
+
+    // test the report's statistics
+    void testReport(Tester t) {
+        DifficultyReport report = new DifficultyReport(10);
+        report.games = 4;
+        report.wins = 1;
+        report.totalScore = 100;
+        report.losses[2] = 1;
+        report.losses[5] = 2;
+        t.checkExpect(report.winRate(), 0.25);
+        t.checkExpect(report.meanScore(), 25.0);
+        t.checkExpect(report.loseHeight(0.1), 2);
+        t.checkExpect(report.loseHeight(0.5), 5);
+        t.checkExpect(report.loseHeight(1.0), 5);
+    }
+}
@@ -0,0 +1,629 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import tester.*;
+
+// A ring of bytes written by one thread and read by another without locks.
+// The writer only moves tail and the reader only moves head, so neither ever
+// waits for the other
+class EventRing extends OutputStream {
+    byte[] bytes;
+    // one less than the capacity, which is a power of two
+    int mask;
+    // the number of bytes ever read, and ever published for reading
+    AtomicLong head = new AtomicLong();
+    AtomicLong tail = new AtomicLong();
+    // the number of bytes ever written, published or not
+    long written;
+
+    EventRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(
+                    "Capacity not a power of two: " + capacity);
+        }
+        this.bytes = new byte[capacity];
+        this.mask = capacity - 1;
+    }
+
+    // get the number of bytes that can be written without overtaking the
+    // reader
+    int free() {
+        return this.bytes.length - (int) (this.written - this.head.get());
+    }
+
+    // write a byte after the last one
+    // EFFECT: modifies bytes and written
+    public void write(int b) {
+        this.bytes[(int) this.written & this.mask] = (byte) b;
+        this.written += 1;
+    }
+
+    // write some bytes after the last one
+    // EFFECT: modifies bytes and written
+    public void write(byte[] from, int offset, int length) {
+        for (int i = 0; i < length; i += 1) {
+            this.write(from[offset + i]);
+        }
+    }
+
+    // make everything written so far readable
+    // EFFECT: modifies tail
+    void publish() {
+        this.tail.lazySet(this.written);
+    }
+
+    // move the readable bytes into the given buffer, as many as fit
+    // EFFECT: modifies head and the buffer, returning the number moved
+    int drainTo(ByteBuffer buffer) {
+        long from = this.head.get();
+        int count = (int) Math.min(this.tail.get() - from, buffer.remaining());
+        for (int i = 0; i < count; i += 1) {
+            buffer.put(this.bytes[(int) (from + i) & this.mask]);
+        }
+        this.head.lazySet(from + count);
+        return count;
+    }
+}
+
+// Moves a log's events from its ring to its file until the log is closed
+class EventWriter implements Runnable {
+    EventLog log;
+
+    EventWriter(EventLog log) {
+        this.log = log;
+    }
+
+    // write events as they arrive, and whatever is left once closed
+    // EFFECT: writes to the log's file
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(EventLog.BUFFER);
+        try {
+            boolean closed = false;
+            while (!closed) {
+                closed = this.log.closed;
+                buffer.clear();
+                if (this.log.ring.drainTo(buffer) == 0 && !closed) {
+                    LockSupport.parkNanos(EventLog.IDLE);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    this.log.channel.write(buffer);
+                }
+                // drain everything written before the log was closed
+                closed = closed
+                        && this.log.ring.tail.get() == this.log.ring.head.get();
+            }
+            this.log.channel.close();
+        }
+        catch (IOException e) {
+            this.log.failure = e;
+        }
+    }
+}
+
+// An append-only record of a game as it is played, for watching or analysing
+// it later: the start, water rises, cells flooding, player moves, pickups,
+// steps back and the end. Each event is a type byte, the number of ticks
+// since the event before as a varint, and its fields as varints. The game
+// thread frames events into a ring, and a writer thread moves them to the
+// file through a channel, so the game never waits on the disk. If the
+// writer falls so far behind that the ring is full, events are counted as
+// dropped rather than waited for
+class EventLog implements IFloodObserver {
+    // the size of the writer's buffer, and how long it sleeps when idle
+    static final int BUFFER = 1 << 16;
+    static final long IDLE = 1000000;
+
+    // the file starts with these bytes, then the version
+    static final int MAGIC = 0x46495356;
+    static final int VERSION = 1;
+
+    // the types of event
+    static final int WATER = 1;
+    static final int FLOOD = 2;
+    static final int MOVE = 3;
+    static final int PICKUP = 4;
+    static final int END = 5;
+    // each log opened on the file starts a game, counting ticks from 0
+    static final int START = 6;
+    static final int REWIND = 7;
+
+    FileChannel channel;
+    EventRing ring;
+    Thread writer;
+    volatile boolean closed;
+    volatile IOException failure;
+
+    // each event is framed here before going into the ring
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(this.frame);
+    FloodDelta delta;
+    // the number of ticks so far, and at the last event
+    int ticks;
+    int lastTick;
+    // the number of events the ring had no room for
+    int dropped;
+
+    // start a log appended to the given file, with a ring of the given
+    // capacity, which must be a power of two
+    EventLog(Path path, int capacity) throws IOException {
+        this.ring = new EventRing(capacity);
+        this.delta = new FloodDelta(0);
+        boolean fresh = !Files.exists(path) || Files.size(path) == 0;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (fresh) {
+            this.out.writeInt(EventLog.MAGIC);
+            this.out.writeByte(EventLog.VERSION);
+            this.commit();
+        }
+        this.begin(EventLog.START);
+        this.commit();
+
+        this.writer = new Thread(new EventWriter(this), "event-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // count a tick of the game
+    // EFFECT: modifies ticks
+    void tick() {
+        this.ticks += 1;
+    }
+
+    // count the given number of ticks passing
+    // EFFECT: modifies ticks
+    void tick(int count) {
+        this.ticks += count;
+    }
+
+    // record that the water rose to the given height
+    // EFFECT: adds the event to the ring
+    void water(int waterHeight) {
+        this.begin(EventLog.WATER);
+        this.varint(waterHeight);
+        this.commit();
+    }
+
+    // record the cells of the grid that just flooded
+    // EFFECT: adds the event to the ring
+    public void flooded(ArrayList<Cell> cells, CellGrid grid) {
+        if (cells.isEmpty()) {
+            return;
+        }
+        if (this.delta.cells.length < grid.size()) {
+            this.delta = new FloodDelta(grid.size());
+        }
+
+        this.delta.clear();
+        for (int i = 0; i < cells.size(); i += 1) {
+            this.delta.add(grid.indexOf(cells.get(i)));
+        }
+        this.begin(EventLog.FLOOD);
+        try {
+            this.delta.write(this.out);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.commit();
+    }
+
+    // record that the player moved to the cell at the given index
+    // EFFECT: adds the event to the ring
+    void move(int idx) {
+        this.begin(EventLog.MOVE);
+        this.varint(idx);
+        this.commit();
+    }
+
+    // record that the player picked up the piece at the given index
+    // EFFECT: adds the event to the ring
+    void pickup(int idx) {
+        this.begin(EventLog.PICKUP);
+        this.varint(idx);
+        this.commit();
+    }
+
+    // record that the game stepped back the given number of ticks, to the
+    // given water height with the player at the cell at the given index.
+    // The log's ticks keep counting on, so the steps back are a field
+    // EFFECT: adds the event to the ring
+    void rewind(int ticks, int waterHeight, int idx) {
+        this.begin(EventLog.REWIND);
+        this.varint(ticks);
+        this.varint(waterHeight);
+        this.varint(idx);
+        this.commit();
+    }
+
+    // record that the game ended, won or lost
+    // EFFECT: adds the event to the ring
+    void end(boolean won) {
+        this.begin(EventLog.END);
+        if (won) {
+            this.varint(1);
+        }
+        else {
+            this.varint(0);
+        }
+        this.commit();
+    }
+
+    // start framing an event of the given type
+    // EFFECT: modifies the frame
+    void begin(int type) {
+        this.frame.reset();
+        this.varint(type);
+        this.varint(this.ticks - this.lastTick);
+    }
+
+    // add a varint to the frame
+    // EFFECT: modifies the frame
+    void varint(int value) {
+        try {
+            FloodDelta.writeVarint(this.out, value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // move the framed event into the ring if it fits, and drop it otherwise.
+    // Only an event written moves lastTick, so the next event's ticks are
+    // counted from the last event the reader sees
+    // EFFECT: modifies the ring and lastTick, or dropped
+    void commit() {
+        if (this.frame.size() <= this.ring.free()) {
+            try {
+                this.frame.writeTo(this.ring);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.ring.publish();
+            this.lastTick = this.ticks;
+        }
+        else {
+            this.dropped += 1;
+        }
+        this.frame.reset();
+    }
+
+    // stop the log once everything in the ring is written
+    // EFFECT: waits for the writer, which closes the file
+    void close() throws IOException {
+        this.closed = true;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+}
+
+// Reads back the events of a log, one line of text each
+class EventLogReader {
+    // read the log in the given file
+    ArrayList<String> read(Path path) throws IOException {
+        ArrayList<String> events = new ArrayList<String>();
+        DataInputStream in = new DataInputStream(Files.newInputStream(path));
+        try {
+            if (in.readInt() != EventLog.MAGIC
+                    || in.readUnsignedByte() != EventLog.VERSION) {
+                throw new IOException("Not an event log: " + path);
+            }
+
+            int tick = 0;
+            // the delta grows to fit the largest flood read
+            FloodDelta delta = new FloodDelta(1 << 16);
+            while (true) {
+                int type;
+                try {
+                    type = FloodDelta.readVarint(in);
+                }
+                catch (EOFException e) {
+                    return events;
+                }
+                tick += FloodDelta.readVarint(in);
+                if (type == EventLog.START) {
+                    tick = 0;
+                    events.add("0 start");
+                }
+                else if (type == EventLog.FLOOD) {
+                    delta.read(in);
+                    events.add(tick + " flood " + delta.count);
+                }
+                else if (type == EventLog.WATER) {
+                    events.add(tick + " water " + FloodDelta.readVarint(in));
+                }
+                else if (type == EventLog.MOVE) {
+                    events.add(tick + " move " + FloodDelta.readVarint(in));
+                }
+                else if (type == EventLog.PICKUP) {
+                    events.add(tick + " pickup " + FloodDelta.readVarint(in));
+                }
+                else if (type == EventLog.REWIND) {
+                    int back = FloodDelta.readVarint(in);
+                    int water = FloodDelta.readVarint(in);
+                    events.add(tick + " rewind " + back + " water " + water
+                            + " move " + FloodDelta.readVarint(in));
+                }
+                else if (type == EventLog.END) {
+                    if (FloodDelta.readVarint(in) == 1) {
+                        events.add(tick + " win");
+                    }
+                    else {
+                        events.add(tick + " lose");
+                    }
+                }
+                else {
+                    throw new IOException("Unknown event: " + type);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+}
+
+class ExamplesEventLog {
+    Path path;
+
+    void initialize() {
+        try {
+            this.path = Files.createTempFile("events", ".log");
+            Files.delete(this.path);
+            this.path.toFile().deleteOnExit();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // read the events of the log
+    ArrayList<String> events() {
+        try {
+            return new EventLogReader().read(this.path);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // test the ring
+    void testRing(Tester t) {
+        EventRing ring = new EventRing(8);
+        t.checkConstructorException(new IllegalArgumentException(
+                "Capacity not a power of two: 6"), "EventRing", 6);
+        ring.write(new byte[] { 1, 2, 3, 4, 5, 6 }, 0, 6);
+        t.checkExpect(ring.free(), 2);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        t.checkExpect(ring.drainTo(buffer), 0);
+        ring.publish();
+        t.checkExpect(ring.drainTo(buffer), 6);
+        t.checkExpect(ring.free(), 8);
+
+        // wraps around the end
+        ring.write(new byte[] { 7, 8, 9, 10 }, 0, 4);
+        ring.publish();
+        t.checkExpect(ring.drainTo(buffer), 4);
+        t.checkExpect(buffer.get(9), (byte) 10);
+    }
+
+    // test reading back a flood of more cells than the reader starts with
+    // room for, as on a board 2048 cells a side
+    void testBigFlood(Tester t) {
+        this.initialize();
+        try {
+            EventLog log = new EventLog(this.path, 1024);
+            FloodDelta big = new FloodDelta(2048 * 2048);
+            for (int i = 0; i < 2048 * 2048; i += 1) {
+                big.add(i);
+            }
+            log.begin(EventLog.FLOOD);
+            big.write(log.out);
+            log.commit();
+            log.close();
+            t.checkExpect(this.events().get(1), "0 flood " + 2048 * 2048);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // test writing and reading back events
+    void testEvents(Tester t) {
+        this.initialize();
+        try {
+            EventLog log = new EventLog(this.path, 1024);
+            log.water(1);
+            log.tick();
+            log.tick();
+            log.move(300);
+            ArrayList<Cell> cells = new ArrayList<Cell>();
+            CellGrid grid = new CellGrid(
+                    new MountainIslandGenerator(16, 16).generateTerrain(), 17);
+            cells.add(grid.cellAt(3, 4));
+            cells.add(grid.cellAt(4, 4));
+            log.flooded(cells, grid);
+            log.pickup(20);
+            log.tick();
+            log.end(true);
+            log.close();
+
+            ArrayList<String> expected = new ArrayList<String>();
+            expected.add("0 start");
+            expected.add("0 water 1");
+            expected.add("2 move 300");
+            expected.add("2 flood 2");
+            expected.add("2 pickup 20");
+            expected.add("3 win");
+            t.checkExpect(this.events(), expected);
+            // 5 header bytes, then 2, 3, 4, 5, 3 and 3 for the events
+            t.checkExpect(Files.size(this.path), 25L);
+
+            // a second log appends
+            log = new EventLog(this.path, 1024);
+            log.end(false);
+            log.close();
+            t.checkExpect(this.events().get(6), "0 start");
+            t.checkExpect(this.events().get(7), "0 lose");
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // test that an event with no room in the ring is dropped rather than
+    // waited for
+    void testDrop(Tester t) {
+        this.initialize();
+        try {
+            EventLog log = new EventLog(this.path, 8);
+            CellGrid grid = new CellGrid(
+                    new MountainIslandGenerator(16, 16).generateTerrain(), 17);
+            ArrayList<Cell> cells = new ArrayList<Cell>();
+            for (int x = 0; x < 17; x += 2) {
+                cells.add(grid.cellAt(x, 5));
+            }
+            log.flooded(cells, grid);
+            t.checkExpect(log.dropped, 1);
+            // once the writer has caught up there is room again
+            while (log.ring.free() < 8) {
+                Thread.yield();
+            }
+            log.move(1);
+            log.close();
+            t.checkExpect(this.events().get(1), "0 move 1");
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // test that the ticks before a dropped event still count towards the
+    // next event written
+    void testTicksAfterDrop(Tester t) {
+        this.initialize();
+        try {
+            EventLog log = new EventLog(this.path, 8);
+            CellGrid grid = new CellGrid(
+                    new MountainIslandGenerator(16, 16).generateTerrain(), 17);
+            ArrayList<Cell> cells = new ArrayList<Cell>();
+            for (int x = 0; x < 17; x += 2) {
+                cells.add(grid.cellAt(x, 5));
+            }
+            log.tick(3);
+            log.flooded(cells, grid);
+            t.checkExpect(log.dropped, 1);
+            log.tick(2);
+            while (log.ring.free() < 8) {
+                Thread.yield();
+            }
+            log.move(1);
+            log.tick();
+            while (log.ring.free() < 8) {
+                Thread.yield();
+            }
+            log.pickup(1);
+            log.close();
+
+            ArrayList<String> expected = new ArrayList<String>();
+            expected.add("0 start");
+            expected.add("5 move 1");
+            expected.add("6 pickup 1");
+            t.checkExpect(this.events(), expected);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // test recording a game
+    void testWorld(Tester t) {
+        this.initialize();
+        try {
+            ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+            world.events = new EventLog(this.path, 1 << 16);
+            world.reset(world.mountain);
+            t.checkExpect(world.bus.observers.contains(world.events), true);
+            world.items = new Cons<Target>(
+                    new PieceTarget(world.grid.cellAt(8, 7)), new Empty<Target>());
+            world.helicopter.link = world.grid.cellAt(8, 9);
+            world.player.link = world.grid.cellAt(8, 8);
+            world.onKeyEvent("up");
+            world.onKeyEvent("down");
+            for (int i = 0; i < 8; i += 1) {
+                world.onTick();
+            }
+            world.onKeyEvent("down");
+            world.events.close();
+
+            ArrayList<String> expected = new ArrayList<String>();
+            expected.add("0 start");
+            expected.add("0 move " + (7 * 17 + 8));
+            expected.add("1 pickup " + (7 * 17 + 8));
+            expected.add("1 move " + (8 * 17 + 8));
+            expected.add("10 water 1");
+            expected.add("10 move " + (9 * 17 + 8));
+            expected.add("11 win");
+            t.checkExpect(this.events(), expected);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // test that stepping back is recorded, with where it steps back to
+    void testRewind(Tester t) {
+        this.initialize();
+        try {
+            ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+            world.historyMode = true;
+            world.events = new EventLog(this.path, 1 << 16);
+            world.reset(world.mountain);
+            world.items = new Cons<Target>(
+                    new PieceTarget(world.grid.cellAt(8, 3)),
+                    new Empty<Target>());
+            world.helicopter.link = world.grid.cellAt(8, 8);
+            world.player.link = world.grid.cellAt(8, 7);
+            for (int i = 0; i < 12; i += 1) {
+                world.onTick();
+            }
+            world.onKeyEvent("up");
+            world.rewindSteps = 5;
+            world.onKeyEvent("b");
+            world.events.close();
+
+            ArrayList<String> expected = new ArrayList<String>();
+            expected.add("0 start");
+            expected.add("10 water 1");
+            expected.add("12 move " + (6 * 17 + 8));
+            expected.add("13 rewind 5 water 0 move " + (7 * 17 + 8));
+            t.checkExpect(this.events(), expected);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
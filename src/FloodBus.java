@@ -0,0 +1,350 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import tester.*;
+
+// Something told when a cell it watches floods
+interface IFloodListener {
+    // the cell at the given index just flooded
+    void cellFlooded(int idx);
+}
+
+// Something told of every flood, such as a renderer, a metric or a stream
+// of the game
+interface IFloodObserver {
+    // the given cells of the grid just flooded
+    void flooded(ArrayList<Cell> cells, CellGrid grid);
+}
+
+// Tells the listeners watching each cell when it floods, and the observers
+// of every flood. The watches of each cell are kept as a list linked
+// through arrays, so a flood costs only the watches of the cells it floods,
+// and watches given up are kept to be reused so that watching and giving up
+// cells over and over does not allocate
+class FloodBus {
+    // the first watch of each cell, or -1 for none
+    int[] heads;
+    // the cell of each watch, or -1 for a watch given up, and the watches
+    // before and after it on its cell's list, or -1 for none. The watches
+    // given up are listed through next
+    int[] cells;
+    int[] prev;
+    int[] next;
+    IFloodListener[] listeners;
+    // the number of watches ever made, and the first given up, or -1
+    int count;
+    int free;
+
+    // the observers of every flood
+    ArrayList<IFloodObserver> observers = new ArrayList<IFloodObserver>();
+
+    // creates a bus for a board of the given number of cells
+    FloodBus(int size) {
+        this.heads = new int[size];
+        Arrays.fill(this.heads, -1);
+        this.cells = new int[16];
+        this.prev = new int[16];
+        this.next = new int[16];
+        this.listeners = new IFloodListener[16];
+        this.count = 0;
+        this.free = -1;
+    }
+
+    // have the given listener told when the cell at the given index floods,
+    // returning the watch to give up later
+    // EFFECT: adds a watch to the cell's list
+    int watch(int idx, IFloodListener listener) {
+        if (idx < 0 || idx >= this.heads.length) {
+            throw new IllegalArgumentException("No such cell: " + idx);
+        }
+
+        int id = this.free;
+        if (id != -1) {
+            this.free = this.next[id];
+        }
+        else {
+            if (this.count == this.cells.length) {
+                int grown = this.count * 2;
+                this.cells = Arrays.copyOf(this.cells, grown);
+                this.prev = Arrays.copyOf(this.prev, grown);
+                this.next = Arrays.copyOf(this.next, grown);
+                this.listeners = Arrays.copyOf(this.listeners, grown);
+            }
+            id = this.count;
+            this.count += 1;
+        }
+
+        this.cells[id] = idx;
+        this.listeners[id] = listener;
+        this.prev[id] = -1;
+        this.next[id] = this.heads[idx];
+        if (this.heads[idx] != -1) {
+            this.prev[this.heads[idx]] = id;
+        }
+        this.heads[idx] = id;
+        return id;
+    }
+
+    // stop telling the listener of the given watch
+    // EFFECT: removes the watch from its cell's list and keeps it for reuse
+    void giveUp(int id) {
+        if (id < 0 || id >= this.count || this.cells[id] == -1) {
+            throw new IllegalArgumentException("No such watch: " + id);
+        }
+
+        if (this.prev[id] != -1) {
+            this.next[this.prev[id]] = this.next[id];
+        }
+        else {
+            this.heads[this.cells[id]] = this.next[id];
+        }
+        if (this.next[id] != -1) {
+            this.prev[this.next[id]] = this.prev[id];
+        }
+        this.cells[id] = -1;
+        this.listeners[id] = null;
+        this.next[id] = this.free;
+        this.free = id;
+    }
+
+    // have the given observer told of every flood
+    // EFFECT: adds to the observers
+    void observe(IFloodObserver observer) {
+        this.observers.add(observer);
+    }
+
+    // stop telling the given observer of floods
+    // EFFECT: removes it from the observers
+    void ignore(IFloodObserver observer) {
+        this.observers.remove(observer);
+    }
+
+    // tell the listeners watching the given cells of the grid, and then
+    // every observer, that the cells just flooded
+    // EFFECT: calls the listeners and observers, which may give up watches
+    void publish(ArrayList<Cell> flooded, CellGrid grid) {
+        for (int i = 0; i < flooded.size(); i += 1) {
+            int idx = grid.indexOf(flooded.get(i));
+            int id = this.heads[idx];
+            while (id != -1) {
+                // read on first, as the listener may give its watch up
+                int after = this.next[id];
+                this.listeners[id].cellFlooded(idx);
+                id = after;
+            }
+        }
+        for (int i = 0; i < this.observers.size(); i += 1) {
+            this.observers.get(i).flooded(flooded, grid);
+        }
+    }
+}
+
+// Counts the cells it is told of, for testing
+class FloodCounter implements IFloodListener, IFloodObserver {
+    int cells = 0;
+    int floods = 0;
+    int last = -1;
+
+    // count the cell
+    public void cellFlooded(int idx) {
+        this.cells += 1;
+        this.last = idx;
+    }
+
+    // count the flood
+    public void flooded(ArrayList<Cell> cells, CellGrid grid) {
+        this.floods += 1;
+    }
+}
+
+class ExamplesFloodBus {
+    ExamplesFloodBus() {
+    }
+
+    // the mountain board of 17 cells a side
+    CellGrid grid() {
+        return new CellGrid(new MountainIslandGenerator(16).generateTerrain(),
+                17);
+    }
+
+    // a list of the given cells
+    ArrayList<Cell> cells(Cell... cells) {
+        ArrayList<Cell> res = new ArrayList<Cell>();
+        for (Cell cell : cells) {
+            res.add(cell);
+        }
+        return res;
+    }
+
+    // test that only the listeners watching a flooded cell are told
+    void testWatch(Tester t) {
+        CellGrid grid = this.grid();
+        FloodBus bus = new FloodBus(grid.size());
+        FloodCounter a = new FloodCounter();
+        FloodCounter b = new FloodCounter();
+        bus.watch(grid.indexOf(grid.cellAt(8, 8)), a);
+        bus.watch(grid.indexOf(grid.cellAt(8, 8)), b);
+        bus.watch(grid.indexOf(grid.cellAt(4, 8)), b);
+
+        bus.publish(this.cells(grid.cellAt(1, 1), grid.cellAt(2, 2)), grid);
+        t.checkExpect(a.cells, 0);
+        t.checkExpect(b.cells, 0);
+        bus.publish(this.cells(grid.cellAt(4, 8)), grid);
+        t.checkExpect(a.cells, 0);
+        t.checkExpect(b.cells, 1);
+        t.checkExpect(b.last, grid.indexOf(grid.cellAt(4, 8)));
+        bus.publish(this.cells(grid.cellAt(3, 3), grid.cellAt(8, 8)), grid);
+        t.checkExpect(a.cells, 1);
+        t.checkExpect(b.cells, 2);
+        t.checkExpect(a.last, grid.indexOf(grid.cellAt(8, 8)));
+    }
+
+    // test giving up watches from either end and the middle of a cell's
+    // list, and reusing them
+    void testGiveUp(Tester t) {
+        CellGrid grid = this.grid();
+        FloodBus bus = new FloodBus(grid.size());
+        FloodCounter[] counters = new FloodCounter[4];
+        int[] ids = new int[4];
+        int idx = grid.indexOf(grid.cellAt(8, 8));
+        for (int i = 0; i < 4; i += 1) {
+            counters[i] = new FloodCounter();
+            ids[i] = bus.watch(idx, counters[i]);
+        }
+        bus.giveUp(ids[0]);
+        bus.giveUp(ids[3]);
+        bus.giveUp(ids[1]);
+        bus.publish(this.cells(grid.cellAt(8, 8)), grid);
+        t.checkExpect(counters[0].cells, 0);
+        t.checkExpect(counters[1].cells, 0);
+        t.checkExpect(counters[2].cells, 1);
+        t.checkExpect(counters[3].cells, 0);
+        t.checkException(new IllegalArgumentException("No such watch: "
+                + ids[1]), bus, "giveUp", ids[1]);
+        t.checkException(new IllegalArgumentException("No such cell: -1"),
+                bus, "watch", -1, counters[0]);
+
+        // the watches given up are reused before any more are made
+        for (int i = 0; i < 3; i += 1) {
+            bus.watch(idx, counters[0]);
+        }
+        t.checkExpect(bus.count, 4);
+        bus.publish(this.cells(grid.cellAt(8, 8)), grid);
+        t.checkExpect(counters[0].cells, 3);
+        t.checkExpect(counters[2].cells, 2);
+    }
+
+    // test that a listener may give up its watch while being told
+    void testGiveUpWhileTold(Tester t) {
+        CellGrid grid = this.grid();
+        FloodBus bus = new FloodBus(grid.size());
+        FloodCounter after = new FloodCounter();
+        int idx = grid.indexOf(grid.cellAt(8, 8));
+        bus.watch(idx, after);
+        int[] id = new int[1];
+        id[0] = bus.watch(idx, new IFloodListener() {
+            public void cellFlooded(int cell) {
+                bus.giveUp(id[0]);
+            }
+        });
+        bus.publish(this.cells(grid.cellAt(8, 8)), grid);
+        t.checkExpect(after.cells, 1);
+        t.checkExpect(bus.heads[idx] != id[0], true);
+    }
+
+    // test that observers are told of every flood
+    void testObserve(Tester t) {
+        CellGrid grid = this.grid();
+        FloodBus bus = new FloodBus(grid.size());
+        FloodCounter counter = new FloodCounter();
+        bus.observe(counter);
+        bus.publish(this.cells(grid.cellAt(1, 1)), grid);
+        bus.publish(this.cells(), grid);
+        t.checkExpect(counter.floods, 2);
+        t.checkExpect(counter.cells, 0);
+    }
+
+    // put the world's pieces and helicopter on cells of their own, as random
+    // ones may share a cell, and watch them
+    // EFFECT: modifies the world's targets and the bus
+    void pinTargets(ForbiddenIslandWorld world) {
+        world.helicopter.link = world.grid.cellAt(8, 8);
+        world.items = new Cons<Target>(
+                new PieceTarget(world.grid.cellAt(8, 6)),
+                new Cons<Target>(new PieceTarget(world.grid.cellAt(8, 4)),
+                        new Empty<Target>()));
+        world.player.link = world.grid.cellAt(6, 8);
+        world.watchTargets();
+    }
+
+    // test that every flood reaches the pyramid, kernel, home field and
+    // history through the world's bus
+    void testWorldObservers(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.historyMode = true;
+        world.reset(world.mountain);
+        this.pinTargets(world);
+        HomeField home = world.homeField();
+        t.checkExpect(world.bus.observers.contains(world.lod), true);
+        t.checkExpect(world.bus.observers.contains(world.kernel), true);
+        t.checkExpect(world.bus.observers.contains(home), true);
+        t.checkExpect(world.bus.observers.contains(world.history), true);
+
+        Cell cell = world.grid.cellAt(8, 2);
+        cell.isFlooded = true;
+        world.flooded.clear();
+        world.flooded.add(cell);
+        world.recordFlooded();
+        int idx = world.grid.indexOf(cell);
+        t.checkExpect(world.lod.levels.get(0).flooded[idx], 1);
+        t.checkExpect(world.kernel.flooded[idx], 1.0f);
+        t.checkExpect(home.distanceOf(cell), HomeField.FAR);
+        t.checkExpect(world.history.current.get(idx), true);
+
+        // a new field for a moved helicopter replaces the old one
+        world.helicopter.link = world.grid.cellAt(8, 7);
+        HomeField moved = world.homeField();
+        t.checkExpect(world.bus.observers.contains(home), false);
+        t.checkExpect(world.bus.observers.contains(moved), true);
+    }
+
+    // test that the world counts the targets lost as their cells flood,
+    // and the pieces left as they are picked up
+    void testWorldCounts(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.reset(world.mountain);
+        t.checkExpect(world.piecesLeft, world.items.size());
+        t.checkExpect(world.drowned, 0);
+        this.pinTargets(world);
+        Cell piece = world.items.asCons().item.link;
+        piece.isFlooded = true;
+        world.flooded.clear();
+        world.flooded.add(piece);
+        world.recordFlooded();
+        t.checkExpect(world.drowned, 1);
+        t.checkExpect(world.isOver(), true);
+
+        // a piece picked up is no longer watched
+        world.reset(world.mountain);
+        this.pinTargets(world);
+        Target first = world.items.asCons().item;
+        world.player.link = first.link;
+        world.checkCollisions();
+        t.checkExpect(world.isOver(), false);
+        t.checkExpect(world.piecesLeft, world.items.size());
+        first.link.isFlooded = true;
+        world.flooded.clear();
+        world.flooded.add(first.link);
+        world.recordFlooded();
+        t.checkExpect(world.drowned, 0);
+
+        // nor are any once all are picked up, and the game is won at the
+        // helicopter
+        world.items = new Empty<Target>();
+        t.checkExpect(world.isWin(), false);
+        t.checkExpect(world.piecesLeft, 0);
+        t.checkExpect(world.watchCount, 1);
+        world.player.link = world.helicopter.link;
+        t.checkExpect(world.isWin(), true);
+    }
+}
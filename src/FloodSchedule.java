@@ -0,0 +1,534 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import tester.*;
+
+// A cell waiting to be given its flood level, with the lowest water that
+// could reach it so far
+class FloodEntry implements Comparable<FloodEntry> {
+    int idx;
+    double bottleneck;
+
+    FloodEntry(int idx, double bottleneck) {
+        this.idx = idx;
+        this.bottleneck = bottleneck;
+    }
+
+    // compare entries so the one with the lower bottleneck comes first
+    public int compareTo(FloodEntry that) {
+        return Double.compare(this.bottleneck, that.bottleneck);
+    }
+}
+
+// When each cell of a board floods. The water reaches a cell once it is
+// above every cell on some path from the ocean to it, so each cell's flood
+// level is found once, when the board is made, by a Dijkstra search that
+// takes the lowest such path
+class FloodSchedule {
+    // the number of cells along each side of the board
+    int side;
+    // the lowest water height each cell is flooded at, in row order, with 0
+    // for the ocean
+    int[] levels;
+    // the land cells in the order they flood, the water heights at which any
+    // of them flood, from lowest to highest, and where each height's cells
+    // start in the order, with the end of the order last
+    int[] order;
+    int[] thresholds;
+    int[] starts;
+
+    FloodSchedule(CellGrid grid) {
+        this.side = grid.side;
+        this.levels = new int[grid.size()];
+        double[] bottlenecks = new double[grid.size()];
+        boolean[] done = new boolean[grid.size()];
+        PriorityQueue<FloodEntry> queue = new PriorityQueue<FloodEntry>();
+
+        for (int i = 0; i < grid.size(); i += 1) {
+            if (grid.get(i).isOcean()) {
+                bottlenecks[i] = Double.NEGATIVE_INFINITY;
+                queue.add(new FloodEntry(i, Double.NEGATIVE_INFINITY));
+            }
+            else {
+                bottlenecks[i] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            FloodEntry entry = queue.poll();
+            if (!done[entry.idx]) {
+                done[entry.idx] = true;
+                Cell cell = grid.get(entry.idx);
+                if (!cell.isOcean()) {
+                    // a cell floods once the water is above it, and the water
+                    // first rises to 1
+                    this.levels[entry.idx] = Math.max(1,
+                            (int) Math.floor(entry.bottleneck) + 1);
+                }
+
+                this.relax(grid, cell.left, entry.bottleneck, bottlenecks, queue);
+                this.relax(grid, cell.top, entry.bottleneck, bottlenecks, queue);
+                this.relax(grid, cell.right, entry.bottleneck, bottlenecks, queue);
+                this.relax(grid, cell.bottom, entry.bottleneck, bottlenecks,
+                        queue);
+            }
+        }
+        this.sortByLevel();
+    }
+
+    // sort the land cells by the water height they flood at
+    // EFFECT: sets order, thresholds and starts
+    void sortByLevel() {
+        int top = 0;
+        for (int i = 0; i < this.levels.length; i += 1) {
+            top = Math.max(top, this.levels[i]);
+        }
+        // the number of cells at each level, then where each level starts
+        int[] next = new int[top + 2];
+        for (int i = 0; i < this.levels.length; i += 1) {
+            if (this.levels[i] > 0) {
+                next[this.levels[i] + 1] += 1;
+            }
+        }
+        int count = 0;
+        for (int l = 1; l <= top; l += 1) {
+            if (next[l + 1] > 0) {
+                count += 1;
+            }
+        }
+        this.thresholds = new int[count];
+        this.starts = new int[count + 1];
+        count = 0;
+        for (int l = 1; l <= top; l += 1) {
+            if (next[l + 1] > 0) {
+                this.thresholds[count] = l;
+                this.starts[count] = next[l];
+                count += 1;
+            }
+            next[l + 1] += next[l];
+        }
+        this.starts[count] = next[top + 1];
+
+        this.order = new int[next[top + 1]];
+        for (int i = 0; i < this.levels.length; i += 1) {
+            if (this.levels[i] > 0) {
+                this.order[next[this.levels[i]]] = i;
+                next[this.levels[i]] += 1;
+            }
+        }
+    }
+
+    // lower the bottleneck of the given neighbour if the water can reach it
+    // lower through a cell with the given bottleneck
+    // EFFECT: modifies bottlenecks and adds to the queue
+    void relax(CellGrid grid, Cell next, double through, double[] bottlenecks,
+            PriorityQueue<FloodEntry> queue) {
+        int idx = grid.indexOf(next);
+        double bottleneck = Math.max(through, next.height);
+        if (!next.isOcean() && bottleneck < bottlenecks[idx]) {
+            bottlenecks[idx] = bottleneck;
+            queue.add(new FloodEntry(idx, bottleneck));
+        }
+    }
+
+    // get the flood level of the cell at the given index
+    int levelOf(int idx) {
+        return this.levels[idx];
+    }
+
+    // check if the cell at the given index is dry at the given water height
+    boolean isDry(int idx, int waterHeight) {
+        return this.levels[idx] > waterHeight;
+    }
+
+    // get the index in thresholds of the next water height above the given
+    // one that floods any cell, which is the number of thresholds if none is
+    // left
+    int nextThreshold(int waterHeight) {
+        int found = Arrays.binarySearch(this.thresholds, waterHeight + 1);
+        if (found < 0) {
+            return -found - 1;
+        }
+        return found;
+    }
+}
+
+// The dry regions of a board at every water height at once. Cells are added
+// to a union-find from the last to flood to the first, which is the board
+// drying out as the water falls, and each link remembers the water height it
+// was made below. Links are never compressed, so the forest at any water
+// height is still there, and finding a cell's region at a height follows only
+// the links made below it. Union by size keeps every path logarithmic
+class DryRegions {
+    FloodSchedule schedule;
+    // the cell each cell is linked to, or itself for a root
+    int[] parents;
+    // the water height each link holds below
+    int[] linkLevels;
+    // the number of cells under each root
+    int[] sizes;
+
+    DryRegions(CellGrid grid, FloodSchedule schedule) {
+        this.schedule = schedule;
+        int size = grid.size();
+        this.parents = new int[size];
+        this.linkLevels = new int[size];
+        this.sizes = new int[size];
+
+        // sort the cells by flood level, last to flood first
+        int top = 0;
+        for (int i = 0; i < size; i += 1) {
+            this.parents[i] = i;
+            this.sizes[i] = 1;
+            top = Math.max(top, schedule.levels[i]);
+        }
+        int[] starts = new int[top + 2];
+        for (int i = 0; i < size; i += 1) {
+            starts[top - schedule.levels[i] + 1] += 1;
+        }
+        for (int l = 1; l < starts.length; l += 1) {
+            starts[l] += starts[l - 1];
+        }
+        int[] order = new int[size];
+        for (int i = 0; i < size; i += 1) {
+            order[starts[top - schedule.levels[i]]] = i;
+            starts[top - schedule.levels[i]] += 1;
+        }
+
+        boolean[] added = new boolean[size];
+        for (int o = 0; o < size && schedule.levels[order[o]] > 0; o += 1) {
+            int idx = order[o];
+            Cell cell = grid.get(idx);
+            added[idx] = true;
+            this.join(idx, grid.indexOf(cell.left), added);
+            this.join(idx, grid.indexOf(cell.top), added);
+            this.join(idx, grid.indexOf(cell.right), added);
+            this.join(idx, grid.indexOf(cell.bottom), added);
+        }
+    }
+
+    // join the regions of a cell just added and its neighbour, if the
+    // neighbour was added already, below the cell's flood level
+    // EFFECT: links the smaller region's root to the larger's
+    void join(int idx, int next, boolean[] added) {
+        if (!added[next]) {
+            return;
+        }
+
+        int level = this.schedule.levels[idx];
+        int a = this.find(idx, level - 1);
+        int b = this.find(next, level - 1);
+        if (a != b) {
+            if (this.sizes[a] < this.sizes[b]) {
+                int swap = a;
+                a = b;
+                b = swap;
+            }
+            this.parents[b] = a;
+            this.linkLevels[b] = level;
+            this.sizes[a] += this.sizes[b];
+        }
+    }
+
+    // find the root of the region the cell at the given index is in at the
+    // given water height
+    int find(int idx, int waterHeight) {
+        while (this.parents[idx] != idx && this.linkLevels[idx] > waterHeight) {
+            idx = this.parents[idx];
+        }
+        return idx;
+    }
+
+    // check if the cells at the given indices are both dry and joined by dry
+    // land at the given water height
+    boolean connected(int a, int b, int waterHeight) {
+        return this.schedule.isDry(a, waterHeight)
+                && this.schedule.isDry(b, waterHeight)
+                && this.find(a, waterHeight) == this.find(b, waterHeight);
+    }
+}
+
+class ExamplesFloodSchedule {
+    AIslandGenerator mountainGen = new MountainIslandGenerator(16, 16);
+    AIslandGenerator terrainGen = new RandomTerrainIslandGenerator(32, 32);
+
+    // flood the grid to the given water height the way the world does
+    void flood(CellGrid grid, int waterHeight) {
+        ArrayList<Cell> stack = new ArrayList<Cell>();
+        ArrayList<Cell> log = new ArrayList<Cell>();
+        for (Cell cell : grid.cells) {
+            if (cell.left.isFlooded || cell.right.isFlooded
+                    || cell.top.isFlooded || cell.bottom.isFlooded) {
+                cell.flood(waterHeight, stack, log);
+            }
+        }
+    }
+
+    // label the dry regions of the grid by searching from each dry cell
+    int[] label(CellGrid grid) {
+        int[] labels = new int[grid.size()];
+        ArrayList<Cell> stack = new ArrayList<Cell>();
+        int next = 1;
+        for (int i = 0; i < grid.size(); i += 1) {
+            if (!grid.get(i).isFlooded && labels[i] == 0) {
+                stack.add(grid.get(i));
+                labels[i] = next;
+                while (!stack.isEmpty()) {
+                    Cell cur = stack.remove(stack.size() - 1);
+                    Cell[] around = { cur.left, cur.top, cur.right, cur.bottom };
+                    for (Cell n : around) {
+                        int idx = grid.indexOf(n);
+                        if (!n.isFlooded && labels[idx] == 0) {
+                            labels[idx] = next;
+                            stack.add(n);
+                        }
+                    }
+                }
+                next += 1;
+            }
+        }
+        return labels;
+    }
+
+    // test the flood levels of the mountain
+    void testLevels(Tester t) {
+        CellGrid grid = new CellGrid(this.mountainGen.generateTerrain(), 17);
+        FloodSchedule schedule = new FloodSchedule(grid);
+        t.checkExpect(schedule.levelOf(0), 0);
+        t.checkExpect(schedule.levelOf(1 * 17 + 8), 10);
+        t.checkExpect(schedule.levelOf(8 * 17 + 8), 17);
+        t.checkExpect(schedule.isDry(8 * 17 + 8, 16), true);
+        t.checkExpect(schedule.isDry(8 * 17 + 8, 17), false);
+    }
+
+    // test that the levels and regions agree with flooding and searching at
+    // every water height of a rough island
+    void testAgainstFlooding(Tester t) {
+        CellGrid grid = new CellGrid(this.terrainGen.generateTerrain(), 33);
+        FloodSchedule schedule = new FloodSchedule(grid);
+        DryRegions regions = new DryRegions(grid, schedule);
+        for (int water = 0; water <= 33; water += 1) {
+            this.flood(grid, water);
+            int[] labels = this.label(grid);
+            boolean same = true;
+            for (int i = 0; i < grid.size(); i += 1) {
+                same = same
+                        && schedule.isDry(i, water) == !grid.get(i).isFlooded;
+                for (int j = i + 1; j < grid.size(); j += 37) {
+                    boolean joined = labels[i] != 0 && labels[i] == labels[j];
+                    same = same && regions.connected(i, j, water) == joined;
+                }
+            }
+            t.checkExpect(same, true);
+        }
+    }
+
+    // test that a world ends as soon as a piece is cut off from the player
+    void testCutOff(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        IList<Cell> board = world.mountain.generateTerrain();
+        // a valley down the east of the mountain that floods at 2
+        for (Cell cell : board) {
+            if (cell.x == 10 && !cell.isOcean()) {
+                cell.height = 1;
+            }
+        }
+        world.reset(world.mountain, board);
+        world.items = new Cons<Target>(
+                new PieceTarget(world.grid.cellAt(12, 8)), new Empty<Target>());
+        world.helicopter.link = world.grid.cellAt(4, 7);
+        world.player.link = world.grid.cellAt(4, 8);
+        world.waterHeight = 1;
+        t.checkExpect(world.isCutOff(), false);
+        t.checkExpect(world.isOver(), false);
+
+        world.waterHeight = 2;
+        t.checkExpect(world.isCutOff(), true);
+        t.checkExpect(world.isOver(), true);
+        world.onTick();
+        t.checkExpect(world.state, new Lose());
+
+        // the helicopter counts too, once the pieces are picked up
+        world.items = new Empty<Target>();
+        world.helicopter.link = world.grid.cellAt(12, 7);
+        t.checkExpect(world.isCutOff(), true);
+        world.helicopter.link = world.grid.cellAt(4, 7);
+        t.checkExpect(world.isCutOff(), false);
+
+        // tidal water lags the schedule, so it is not used
+        world.helicopter.link = world.grid.cellAt(12, 7);
+        world.tidal = new TidalFlow(world.grid);
+        t.checkExpect(world.isCutOff(), false);
+    }
+
+    // test the water heights at which the mountain's cells flood
+    void testThresholds(Tester t) {
+        CellGrid grid = new CellGrid(this.mountainGen.generateTerrain(), 17);
+        FloodSchedule schedule = new FloodSchedule(grid);
+        t.checkExpect(schedule.thresholds,
+                new int[] { 10, 11, 12, 13, 14, 15, 16, 17 });
+        t.checkExpect(schedule.starts[0], 0);
+        t.checkExpect(schedule.starts[1], 28);
+        t.checkExpect(schedule.starts[8], 113);
+        t.checkExpect(schedule.order.length, 113);
+        t.checkExpect(schedule.order[112], 8 * 17 + 8);
+        t.checkExpect(schedule.levelOf(schedule.order[27]), 10);
+        t.checkExpect(schedule.levelOf(schedule.order[28]), 11);
+
+        t.checkExpect(schedule.nextThreshold(0), 0);
+        t.checkExpect(schedule.nextThreshold(9), 0);
+        t.checkExpect(schedule.nextThreshold(10), 1);
+        t.checkExpect(schedule.nextThreshold(16), 7);
+        t.checkExpect(schedule.nextThreshold(17), 8);
+    }
+
+    // start a game on the given board, with the player, helicopter and
+    // pieces where they are in the given world
+    ForbiddenIslandWorld copyOf(ForbiddenIslandWorld world,
+            AIslandGenerator gen) {
+        ForbiddenIslandWorld copy = new ForbiddenIslandWorld();
+        copy.reset(gen);
+        copy.player.link = copy.grid.get(world.grid.indexOf(world.player.link));
+        copy.helicopter.link = copy.grid
+                .get(world.grid.indexOf(world.helicopter.link));
+        IList<Target> items = new Empty<Target>();
+        for (Target item : world.items) {
+            items = new Cons<Target>(new PieceTarget(
+                    copy.grid.get(world.grid.indexOf(item.link))), items);
+        }
+        copy.items = items;
+        return copy;
+    }
+
+    // check that the two worlds' games are in the same place
+    boolean same(ForbiddenIslandWorld a, ForbiddenIslandWorld b) {
+        boolean same = a.state == b.state && a.waterHeight == b.waterHeight
+                && a.tick == b.tick && a.score == b.score
+                && a.items.size() == b.items.size();
+        for (int i = 0; i < a.grid.size(); i += 1) {
+            same = same && a.grid.get(i).isFlooded == b.grid.get(i).isFlooded;
+        }
+        return same;
+    }
+
+    // count the flooded cells of the world's board
+    int countFlooded(ForbiddenIslandWorld world) {
+        int count = 0;
+        for (int i = 0; i < world.grid.size(); i += 1) {
+            if (world.grid.get(i).isFlooded) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    // test that fast-forwarding plays the same game as ticking one tick at a
+    // time
+    void testFastForward(Tester t) {
+        AIslandGenerator gen = new NoiseIslandGenerator(32, 32, 5);
+        ForbiddenIslandWorld fast = new ForbiddenIslandWorld();
+        fast.reset(gen);
+        // everything by the peak, so the game lasts many floods
+        fast.helicopter.link = fast.grid.cellAt(16, 16);
+        fast.player.link = fast.grid.cellAt(16, 15);
+        fast.items = new Cons<Target>(new PieceTarget(fast.grid.cellAt(15, 16)),
+                new Empty<Target>());
+        ForbiddenIslandWorld slow = this.copyOf(fast, gen);
+        slow.onTick();
+        slow.onTick();
+        fast.onTick();
+        fast.onTick();
+
+        boolean same = true;
+        int jumps = 0;
+        while (fast.state == ForbiddenIslandWorld.INGAME) {
+            int ticks = fast.fastForward();
+            int wet = this.countFlooded(slow);
+            for (int i = 0; i < ticks; i += 1) {
+                same = same && slow.state == ForbiddenIslandWorld.INGAME
+                        && this.countFlooded(slow) == wet;
+                slow.onTick();
+            }
+            same = same && this.same(fast, slow) && ticks > 0;
+            same = same && fast.flooded.size() == slow.flooded.size();
+            jumps += 1;
+        }
+        t.checkExpect(same, true);
+        t.checkExpect(jumps > 1, true);
+        t.checkExpect(fast.state, new Lose());
+        t.checkExpect(fast.fastForward(), 0);
+
+        // a player too far from the helicopter loses before the next flood
+        fast = this.flat();
+        slow = this.flat();
+        ForbiddenIslandWorld idle = this.flat();
+        t.checkExpect(fast.fastForward(), 645);
+        t.checkExpect(fast.state, new Lose());
+        t.checkExpect(fast.waterHeight, 64);
+        t.checkExpect(fast.tick, 5);
+        int ticks = 0;
+        while (slow.state == ForbiddenIslandWorld.INGAME) {
+            slow.onTick();
+            ticks += 1;
+        }
+        t.checkExpect(ticks, 645);
+        t.checkExpect(this.same(fast, slow), true);
+        t.checkExpect(idle.playIdle(), 645);
+        t.checkExpect(this.same(idle, slow), true);
+    }
+
+    // start a game on the small mountain flattened to 64, with the helicopter
+    // 5 moves from the player and nothing to pick up
+    ForbiddenIslandWorld flat() {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        IList<Cell> board = world.mountain.generateTerrain();
+        for (Cell cell : board) {
+            if (!cell.isOcean()) {
+                cell.height = 64;
+            }
+        }
+        world.reset(world.mountain, board);
+        world.items = new Empty<Target>();
+        world.helicopter.link = world.grid.cellAt(3, 8);
+        world.player.link = world.grid.cellAt(8, 8);
+        return world;
+    }
+
+    // test playing a whole game without moving
+    void testPlayIdle(Tester t) {
+        AIslandGenerator gen = new NoiseIslandGenerator(32, 32, 9);
+        ForbiddenIslandWorld fast = new ForbiddenIslandWorld();
+        fast.reset(gen);
+        ForbiddenIslandWorld slow = this.copyOf(fast, gen);
+        int ticks = 0;
+        while (slow.state == ForbiddenIslandWorld.INGAME) {
+            slow.onTick();
+            ticks += 1;
+        }
+        t.checkExpect(fast.playIdle(), ticks);
+        t.checkExpect(this.same(fast, slow), true);
+
+        // f skips to the next flood in game
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.reset(world.mountain);
+        world.items = new Empty<Target>();
+        world.helicopter.link = world.grid.cellAt(8, 8);
+        world.player.link = world.grid.cellAt(8, 7);
+        world.onKeyEvent("f");
+        t.checkExpect(world.waterHeight, 58);
+        t.checkExpect(world.tick, 0);
+        t.checkExpect(world.score, 0);
+        t.checkExpect(world.flooded.size(), 28);
+        t.checkExpect(world.grid.cellAt(8, 1).isFlooded, true);
+
+        // but not past keys that are waiting, or tidal water
+        world.keyMode = ForbiddenIslandWorld.KEYS_BATCHED;
+        world.onKeyEvent("left");
+        t.checkExpect(world.fastForward(), 0);
+        world.keys.clear();
+        world.tidal = new TidalFlow(world.grid);
+        t.checkExpect(world.fastForward(), 0);
+        t.checkExpect(world.waterHeight, 58);
+    }
+}
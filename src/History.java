@@ -0,0 +1,538 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import tester.*;
+
+// A set of flooded cells that is never changed once made. The cells are
+// kept as bits in a tree of 32-way nodes over leaves of 512 cells, so adding
+// cells makes a new set that copies only the nodes over the added cells and
+// shares the rest with the old set, and two sets can be compared by skipping
+// every node they share
+class FloodBits {
+    // the cells each leaf covers, as a shift, and the words of a leaf
+    static final int LEAF_SHIFT = 9;
+    static final int LEAF_WORDS = 8;
+    // the children of each node, as a shift
+    static final int BRANCH_SHIFT = 5;
+    static final int BRANCHES = 32;
+
+    // the number of cells
+    int size;
+    // the shift of the cells each child of the root covers
+    int shift;
+    // the root node, whose children are nodes or, at the last level, leaves,
+    // with null for a part with no cells set
+    Object[] root;
+
+    // creates an empty set of the given number of cells
+    FloodBits(int size) {
+        this.size = size;
+        this.shift = FloodBits.LEAF_SHIFT;
+        while ((long) 1 << (this.shift + FloodBits.BRANCH_SHIFT) < size) {
+            this.shift += FloodBits.BRANCH_SHIFT;
+        }
+        this.root = new Object[FloodBits.BRANCHES];
+    }
+
+    FloodBits(int size, int shift, Object[] root) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+    }
+
+    // check if the cell at the given index is in this set
+    boolean get(int idx) {
+        Object[] node = this.root;
+        for (int s = this.shift; s > FloodBits.LEAF_SHIFT;
+                s -= FloodBits.BRANCH_SHIFT) {
+            node = (Object[]) node[(idx >>> s) & (FloodBits.BRANCHES - 1)];
+            if (node == null) {
+                return false;
+            }
+        }
+        long[] leaf = (long[]) node[(idx >>> FloodBits.LEAF_SHIFT)
+                & (FloodBits.BRANCHES - 1)];
+        return leaf != null && (leaf[(idx >>> 6) & (FloodBits.LEAF_WORDS - 1)]
+                >>> idx & 1) != 0;
+    }
+
+    // make the set of these cells and the first count of the given cells,
+    // which are in increasing order
+    FloodBits with(int[] cells, int count) {
+        if (count == 0) {
+            return this;
+        }
+        return new FloodBits(this.size, this.shift,
+                this.set(this.root, this.shift, cells, 0, count));
+    }
+
+    // copy the given node, whose children cover cells by the given shift,
+    // with the cells from from to to set
+    Object[] set(Object[] node, int shift, int[] cells, int from, int to) {
+        Object[] copy;
+        if (node == null) {
+            copy = new Object[FloodBits.BRANCHES];
+        }
+        else {
+            copy = node.clone();
+        }
+
+        int i = from;
+        while (i < to) {
+            int child = (cells[i] >>> shift) & (FloodBits.BRANCHES - 1);
+            int end = i + 1;
+            while (end < to && ((cells[end] >>> shift)
+                    & (FloodBits.BRANCHES - 1)) == child) {
+                end += 1;
+            }
+
+            if (shift == FloodBits.LEAF_SHIFT) {
+                long[] leaf;
+                if (copy[child] == null) {
+                    leaf = new long[FloodBits.LEAF_WORDS];
+                }
+                else {
+                    leaf = ((long[]) copy[child]).clone();
+                }
+                for (int j = i; j < end; j += 1) {
+                    leaf[(cells[j] >>> 6)
+                            & (FloodBits.LEAF_WORDS - 1)] |= 1L << cells[j];
+                }
+                copy[child] = leaf;
+            }
+            else {
+                copy[child] = this.set((Object[]) copy[child],
+                        shift - FloodBits.BRANCH_SHIFT, cells, i, end);
+            }
+            i = end;
+        }
+        return copy;
+    }
+
+    // put the cells in this set but not the given older one into out,
+    // returning how many there are
+    // EFFECT: modifies out
+    int since(FloodBits older, int[] out) {
+        return this.since(this.root, older.root, this.shift, 0, out, 0);
+    }
+
+    // put the cells under the newer node but not the older one, which cover
+    // the cells from base, into out from count, returning the new count
+    // EFFECT: modifies out
+    int since(Object[] newer, Object[] older, int shift, int base, int[] out,
+            int count) {
+        for (int c = 0; c < FloodBits.BRANCHES; c += 1) {
+            Object next = newer[c];
+            Object last = null;
+            if (older != null) {
+                last = older[c];
+            }
+            int start = base + (c << shift);
+            if (next == last || next == null) {
+                continue;
+            }
+
+            if (shift == FloodBits.LEAF_SHIFT) {
+                long[] leaf = (long[]) next;
+                long[] old = (long[]) last;
+                for (int w = 0; w < FloodBits.LEAF_WORDS; w += 1) {
+                    long bits = leaf[w];
+                    if (old != null) {
+                        bits &= ~old[w];
+                    }
+                    while (bits != 0) {
+                        out[count] = start + w * 64
+                                + Long.numberOfTrailingZeros(bits);
+                        count += 1;
+                        bits &= bits - 1;
+                    }
+                }
+            }
+            else {
+                count = this.since((Object[]) next, (Object[]) last,
+                        shift - FloodBits.BRANCH_SHIFT, start, out, count);
+            }
+        }
+        return count;
+    }
+}
+
+// The last several thousand ticks of a game, for stepping back through. Each
+// tick keeps the tick counter, water height, score, the player's cell, the
+// targets, which are a list that is never changed, and the flooded cells as
+// a FloodBits sharing everything but the cells that flooded since the tick
+// before. The ticks are kept in a ring of arrays, so a tick in which nothing
+// floods makes nothing new. A fast-forward is kept as one entry spanning the
+// ticks it skipped, in which only the tick counter and water changed, so
+// stepping back into it works those out rather than keeping each tick
+class History implements IFloodObserver {
+    // the most entries kept
+    int kept;
+    // the number of entries kept, and the ring index of the newest
+    int count;
+    int newest;
+    // the number of ticks each entry is after the one before
+    int[] spans;
+
+    int[] ticks;
+    int[] waters;
+    int[] scores;
+    int[] players;
+    ArrayList<IList<Target>> items;
+    IWorldState[] states;
+    FloodBits[] floods;
+
+    // the cells flooded now, and room for sorting cell indices
+    FloodBits current;
+    int[] cells;
+
+    // keep the given number of ticks of a game on the given grid, starting
+    // with the cells flooded now
+    History(CellGrid grid, int kept) {
+        if (kept < 1) {
+            throw new IllegalArgumentException(
+                    "A history must keep at least one tick");
+        }
+        this.kept = kept;
+        this.ticks = new int[kept];
+        this.spans = new int[kept];
+        this.waters = new int[kept];
+        this.scores = new int[kept];
+        this.players = new int[kept];
+        this.items = new ArrayList<IList<Target>>(kept);
+        for (int i = 0; i < kept; i += 1) {
+            this.items.add(null);
+        }
+        this.states = new IWorldState[kept];
+        this.floods = new FloodBits[kept];
+        this.cells = new int[grid.size()];
+
+        int count = 0;
+        for (int i = 0; i < grid.size(); i += 1) {
+            if (grid.get(i).isFlooded) {
+                this.cells[count] = i;
+                count += 1;
+            }
+        }
+        this.current = new FloodBits(grid.size()).with(this.cells, count);
+    }
+
+    // add the cells that just flooded to the cells flooded now
+    // EFFECT: modifies current
+    public void flooded(ArrayList<Cell> cells, CellGrid grid) {
+        for (int i = 0; i < cells.size(); i += 1) {
+            this.cells[i] = grid.indexOf(cells.get(i));
+        }
+        Arrays.sort(this.cells, 0, cells.size());
+        this.current = this.current.with(this.cells, cells.size());
+    }
+
+    // keep the world as it is now as the newest tick, forgetting the oldest
+    // if there are too many
+    // EFFECT: modifies the ring
+    void record(ForbiddenIslandWorld world) {
+        this.record(world, 1);
+    }
+
+    // keep the world as it is now as the newest entry, the given number of
+    // ticks after the one before, forgetting the oldest if there are too
+    // many
+    // EFFECT: modifies the ring
+    void record(ForbiddenIslandWorld world, int span) {
+        this.newest = (this.newest + 1) % this.kept;
+        this.count = Math.min(this.count + 1, this.kept);
+        this.spans[this.newest] = span;
+        this.ticks[this.newest] = world.tick;
+        this.waters[this.newest] = world.waterHeight;
+        this.scores[this.newest] = world.score;
+        this.players[this.newest] = world.grid.indexOf(world.player.link);
+        this.items.set(this.newest, world.items);
+        this.states[this.newest] = world.state;
+        this.floods[this.newest] = this.current;
+    }
+
+    // put the world back as it was the given number of ticks before the
+    // newest, or as far back as is kept, dropping the ticks after it.
+    // Returns the number of ticks stepped back
+    // EFFECT: modifies the world's board, pyramid, kernel, tick counter,
+    // water height, score, player, targets and state
+    int rewind(ForbiddenIslandWorld world, int steps) {
+        int back = this.newest;
+        int dropped = 0;
+        int stepped = 0;
+        while (dropped < this.count - 1
+                && stepped + this.spans[back] <= steps) {
+            stepped += this.spans[back];
+            back = (back - 1 + this.kept) % this.kept;
+            dropped += 1;
+        }
+        // part way back into a fast-forward, which only moved the tick
+        // counter and water on from the entry before
+        if (stepped < steps && dropped < this.count - 1) {
+            int before = (back - 1 + this.kept) % this.kept;
+            int left = this.spans[back] - (steps - stepped);
+            this.spans[back] = left;
+            this.ticks[back] = (this.ticks[before] + left) % 10;
+            this.waters[back] = this.waters[before]
+                    + (this.ticks[before] + left) / 10;
+            this.scores[back] = this.scores[before];
+            this.players[back] = this.players[before];
+            this.items.set(back, this.items.get(before));
+            this.states[back] = this.states[before];
+            this.floods[back] = this.floods[before];
+            stepped = steps;
+        }
+        if (stepped == 0) {
+            return 0;
+        }
+
+        int dried = this.current.since(this.floods[back], this.cells);
+        for (int i = 0; i < dried; i += 1) {
+            Cell cell = world.grid.get(this.cells[i]);
+            cell.isFlooded = false;
+            world.lod.unflood(cell);
+            world.kernel.unflood(this.cells[i]);
+        }
+        this.current = this.floods[back];
+
+        world.tick = this.ticks[back];
+        world.waterHeight = this.waters[back];
+        world.score = this.scores[back];
+        world.player.link = world.grid.get(this.players[back]);
+        world.items = this.items.get(back);
+        world.state = this.states[back];
+
+        // forget the entries stepped back over
+        for (int i = 0; i < dropped; i += 1) {
+            int idx = (this.newest - i + this.kept) % this.kept;
+            this.items.set(idx, null);
+            this.floods[idx] = null;
+        }
+        this.newest = back;
+        this.count -= dropped;
+        return stepped;
+    }
+}
+
+class ExamplesHistory {
+    // set the given cells of an empty set of the given size
+    FloodBits bits(int size, int... cells) {
+        return new FloodBits(size).with(cells, cells.length);
+    }
+
+    // test sets of flooded cells
+    void testFloodBits(Tester t) {
+        FloodBits empty = new FloodBits(100);
+        t.checkExpect(empty.shift, FloodBits.LEAF_SHIFT);
+        t.checkExpect(new FloodBits(1 << 14).shift, FloodBits.LEAF_SHIFT);
+        t.checkExpect(new FloodBits((1 << 14) + 1).shift, 14);
+        t.checkExpect(new FloodBits(1025 * 1025).shift, 19);
+        t.checkExpect(empty.get(5), false);
+
+        FloodBits some = this.bits(100, 3, 5, 64, 99);
+        t.checkExpect(some.get(3), true);
+        t.checkExpect(some.get(4), false);
+        t.checkExpect(some.get(64), true);
+        t.checkExpect(some.get(99), true);
+        t.checkExpect(empty.get(3), false);
+        t.checkExpect(empty.with(new int[0], 0), empty);
+
+        // cells across leaves and levels of a large board
+        int size = 1025 * 1025;
+        FloodBits big = this.bits(size, 0, 511, 512, 70000, size - 1);
+        boolean right = true;
+        for (int i = 0; i < size; i += 1) {
+            boolean set = i == 0 || i == 511 || i == 512 || i == 70000
+                    || i == size - 1;
+            right = right && big.get(i) == set;
+        }
+        t.checkExpect(right, true);
+    }
+
+    // test that adding cells shares the parts of the set they are not in
+    void testSharing(Tester t) {
+        int size = 1025 * 1025;
+        FloodBits before = this.bits(size, 10, 600000);
+        FloodBits after = before.with(new int[] { 11 }, 1);
+        t.checkExpect(after.root == before.root, false);
+        // the part over cell 600000 is shared
+        int child = 600000 >>> after.shift;
+        t.checkExpect(after.root[child] == before.root[child], true);
+        t.checkExpect(after.root[0] == before.root[0], false);
+        t.checkExpect(before.get(11), false);
+        t.checkExpect(after.get(11), true);
+        t.checkExpect(after.get(600000), true);
+    }
+
+    // test finding the cells flooded since an older set
+    void testSince(Tester t) {
+        int size = 1025 * 1025;
+        FloodBits before = this.bits(size, 10, 600000);
+        FloodBits after = before.with(new int[] { 11, 70, 600001, 1000000 }, 4);
+        int[] out = new int[size];
+        t.checkExpect(after.since(before, out), 4);
+        t.checkExpect(Arrays.copyOf(out, 4),
+                new int[] { 11, 70, 600001, 1000000 });
+        t.checkExpect(before.since(before, out), 0);
+        t.checkExpect(after.since(new FloodBits(size), out), 6);
+    }
+
+    // start a game on a small mountain with a history, with the player
+    // beside the helicopter at the peak and no pieces
+    ForbiddenIslandWorld world() {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.historyMode = true;
+        world.reset(world.mountain);
+        world.items = new Cons<Target>(
+                new PieceTarget(world.grid.cellAt(8, 5)), new Empty<Target>());
+        world.helicopter.link = world.grid.cellAt(8, 8);
+        world.player.link = world.grid.cellAt(8, 6);
+        world.history = new History(world.grid, 100);
+        world.history.record(world);
+        world.bus.observe(world.history);
+        return world;
+    }
+
+    // test stepping a game back
+    void testRewind(Tester t) {
+        ForbiddenIslandWorld world = this.world();
+        world.waterHeight = 57;
+        for (int i = 0; i < 20; i += 1) {
+            world.onTick();
+        }
+        t.checkExpect(world.waterHeight, 59);
+        t.checkExpect(world.grid.cellAt(8, 1).isFlooded, true);
+        t.checkExpect(world.grid.cellAt(8, 2).isFlooded, true);
+        world.onKeyEvent("up");
+        t.checkExpect(world.items.size(), 0);
+        t.checkExpect(world.score, 1);
+
+        // back over the pickup
+        t.checkExpect(world.rewind(1), 1);
+        t.checkExpect(world.items.size(), 1);
+        t.checkExpect(world.player.link, world.grid.cellAt(8, 6));
+        t.checkExpect(world.score, 0);
+        t.checkExpect(world.waterHeight, 59);
+
+        // back over a flood
+        t.checkExpect(world.rewind(10), 10);
+        t.checkExpect(world.waterHeight, 58);
+        t.checkExpect(world.tick, 0);
+        t.checkExpect(world.grid.cellAt(8, 1).isFlooded, true);
+        t.checkExpect(world.grid.cellAt(8, 2).isFlooded, false);
+        t.checkExpect(world.lod.levels.get(0).dry[2 * 17 + 8], 1);
+        t.checkExpect(world.kernel.flooded[2 * 17 + 8], 0.0f);
+
+        // and no further back than the start
+        t.checkExpect(world.rewind(100), 10);
+        t.checkExpect(world.waterHeight, 0);
+        t.checkExpect(world.grid.cellAt(8, 1).isFlooded, false);
+        t.checkExpect(world.grid.cellAt(0, 0).isFlooded, true);
+        t.checkExpect(world.rewind(1), 0);
+
+        // playing again floods the same cells
+        world.waterHeight = 57;
+        for (int i = 0; i < 20; i += 1) {
+            world.onTick();
+        }
+        t.checkExpect(world.grid.cellAt(8, 2).isFlooded, true);
+        t.checkExpect(world.lod.levels.get(0).flooded[2 * 17 + 8], 1);
+    }
+
+    // test stepping back into and across a fast-forward tick by tick
+    void testRewindFastForward(Tester t) {
+        ForbiddenIslandWorld world = this.world();
+        world.onTick();
+        t.checkExpect(world.fastForward(), 579);
+        t.checkExpect(world.waterHeight, 58);
+        t.checkExpect(world.grid.cellAt(8, 1).isFlooded, true);
+        t.checkExpect(world.history.count, 3);
+
+        world.rewindSteps = 5;
+        world.onKeyEvent("b");
+        t.checkExpect(world.waterHeight, 57);
+        t.checkExpect(world.tick, 5);
+        t.checkExpect(world.grid.cellAt(8, 1).isFlooded, false);
+        t.checkExpect(world.history.count, 3);
+
+        t.checkExpect(world.rewind(568), 568);
+        t.checkExpect(world.waterHeight, 0);
+        t.checkExpect(world.tick, 7);
+        t.checkExpect(world.rewind(6), 6);
+        t.checkExpect(world.tick, 1);
+        t.checkExpect(world.history.count, 2);
+        t.checkExpect(world.rewind(10), 1);
+        t.checkExpect(world.tick, 0);
+        t.checkExpect(world.history.count, 1);
+        t.checkExpect(world.rewind(10), 0);
+
+        // and plays on the same as before
+        world.onTick();
+        t.checkExpect(world.fastForward(), 579);
+        t.checkExpect(world.grid.cellAt(8, 1).isFlooded, true);
+    }
+
+    // test stepping back out of a lost game
+    void testRewindLoss(Tester t) {
+        ForbiddenIslandWorld world = this.world();
+        world.player.link = world.grid.cellAt(8, 2);
+        world.waterHeight = 58;
+        for (int i = 0; i < 10; i += 1) {
+            world.onTick();
+        }
+        t.checkExpect(world.state, new Lose());
+        world.rewindSteps = 3;
+        world.onKeyEvent("b");
+        t.checkExpect(world.state, new InGame());
+        t.checkExpect(world.waterHeight, 58);
+        t.checkExpect(world.tick, 7);
+        t.checkExpect(world.grid.cellAt(8, 2).isFlooded, false);
+    }
+
+    // test that only the most recent ticks are kept
+    void testKept(Tester t) {
+        ForbiddenIslandWorld world = this.world();
+        world.bus.ignore(world.history);
+        world.history = new History(world.grid, 5);
+        world.bus.observe(world.history);
+        for (int i = 0; i < 20; i += 1) {
+            world.onTick();
+        }
+        t.checkExpect(world.history.count, 5);
+        t.checkExpect(world.rewind(10), 4);
+        t.checkExpect(world.score, 0);
+        t.checkExpect(world.tick, 6);
+        t.checkExpect(world.history.count, 1);
+        t.checkConstructorException(
+                new IllegalArgumentException(
+                        "A history must keep at least one tick"),
+                "History", world.grid, 0);
+    }
+
+    // test turning history on from the menu, and that games without it
+    // cannot step back
+    void testMenu(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.onKeyEvent("h");
+        t.checkExpect(world.historyMode, true);
+        world.onKeyEvent("m");
+        t.checkExpect(world.history.count, 1);
+        world.onTick();
+        t.checkExpect(world.history.count, 2);
+        world.onKeyEvent("h");
+        t.checkExpect(world.historyMode, true);
+
+        world.state = ForbiddenIslandWorld.LOSE;
+        world.onKeyEvent("h");
+        t.checkExpect(world.historyMode, false);
+        world.onKeyEvent("m");
+        t.checkExpect(world.history, null);
+        t.checkExpect(world.rewind(1), 0);
+
+        // tidal water is not kept
+        world.historyMode = true;
+        world.tidalMode = true;
+        world.reset(world.mountain);
+        t.checkExpect(world.history, null);
+    }
+}
@@ -0,0 +1,519 @@
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import tester.*;
+
+// The number of moves from each dry cell to the helicopter over dry land,
+// kept up to date as cells flood. Cells only ever flood, so distances only
+// grow, and only for the cells whose every shortest path ran through a cell
+// that flooded. An update finds those cells nearest first, since a cell has
+// lost its way home only if every neighbour one move closer has too, then
+// works out their new distances from the cells around them that kept theirs.
+// Nothing else is looked at, and an update allocates nothing
+class HomeField implements IFloodObserver {
+    // the distance of a cell with no way home
+    static final int FAR = Integer.MAX_VALUE;
+
+    CellGrid grid;
+    // the index of the helicopter's cell
+    int home;
+    // the distance of each cell from home, in row order
+    int[] dist;
+    // the number of cells whose distance changed in the last update
+    int changed;
+
+    // cells waiting in buckets by distance, as linked lists through next,
+    // and the lowest and highest bucket in use
+    int[] heads;
+    int[] next;
+    boolean[] queued;
+    int lo;
+    int hi;
+    // the cells found to have lost their way home
+    boolean[] lost;
+    int[] lostCells;
+    int lostCount;
+    // the first-in first-out queue of the searches, and the best distance
+    // found so far for each cell
+    int[] fifo;
+    int[] tentative;
+
+    HomeField(CellGrid grid, Cell home) {
+        int size = grid.size();
+        this.grid = grid;
+        this.home = grid.indexOf(home);
+        this.dist = new int[size];
+        this.heads = new int[size + 2];
+        this.next = new int[size];
+        this.queued = new boolean[size];
+        this.lost = new boolean[size];
+        this.lostCells = new int[size];
+        this.fifo = new int[size];
+        this.tentative = new int[size];
+        Arrays.fill(this.heads, -1);
+        this.search();
+    }
+
+    // work out every distance from scratch by a search out from home
+    // EFFECT: modifies dist
+    void search() {
+        Arrays.fill(this.dist, HomeField.FAR);
+        if (this.grid.get(this.home).isFlooded) {
+            return;
+        }
+        this.dist[this.home] = 0;
+        this.fifo[0] = this.home;
+        int tail = 1;
+        for (int head = 0; head < tail; head += 1) {
+            int cur = this.fifo[head];
+            for (int k = 0; k < 4; k += 1) {
+                int n = this.around(cur, k);
+                if (this.dist[n] == HomeField.FAR
+                        && !this.grid.get(n).isFlooded) {
+                    this.dist[n] = this.dist[cur] + 1;
+                    this.fifo[tail] = n;
+                    tail += 1;
+                }
+            }
+        }
+    }
+
+    // get the index of the left, top, right or bottom neighbour of the cell
+    // at the given index, for k from 0 to 3
+    int around(int idx, int k) {
+        Cell cell = this.grid.get(idx);
+        if (k == 0) {
+            return this.grid.indexOf(cell.left);
+        }
+        else if (k == 1) {
+            return this.grid.indexOf(cell.top);
+        }
+        else if (k == 2) {
+            return this.grid.indexOf(cell.right);
+        }
+        return this.grid.indexOf(cell.bottom);
+    }
+
+    // get the distance home of the given cell
+    int distanceOf(Cell cell) {
+        return this.dist[this.grid.indexOf(cell)];
+    }
+
+    // get the neighbour of the given cell one move closer to home, or null
+    // if it is home or has no way home
+    Cell towardHome(Cell cell) {
+        int idx = this.grid.indexOf(cell);
+        if (this.dist[idx] == HomeField.FAR || this.dist[idx] == 0) {
+            return null;
+        }
+        for (int k = 0; k < 4; k += 1) {
+            int n = this.around(idx, k);
+            if (this.dist[n] == this.dist[idx] - 1) {
+                return this.grid.get(n);
+            }
+        }
+        return null;
+    }
+
+    // put the cell at the given index in the bucket of the given distance
+    // EFFECT: modifies the buckets
+    void push(int idx, int key) {
+        this.next[idx] = this.heads[key];
+        this.heads[key] = idx;
+        this.queued[idx] = true;
+        this.lo = Math.min(this.lo, key);
+        this.hi = Math.max(this.hi, key);
+    }
+
+    // take a cell out of the bucket of the given distance
+    // EFFECT: modifies the buckets
+    int pop(int key) {
+        int idx = this.heads[key];
+        this.heads[key] = this.next[idx];
+        this.queued[idx] = false;
+        return idx;
+    }
+
+    // check if a neighbour of the cell at the given index one move closer to
+    // home still has its way home
+    boolean isHeld(int idx) {
+        for (int k = 0; k < 4; k += 1) {
+            int n = this.around(idx, k);
+            if (this.dist[n] == this.dist[idx] - 1 && !this.lost[n]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // update the distances for the given cells of the grid, which just
+    // flooded
+    // EFFECT: modifies dist, and sets changed
+    public void flooded(ArrayList<Cell> cells, CellGrid grid) {
+        this.flooded(cells);
+    }
+
+    // update the distances for the cells that just flooded
+    // EFFECT: modifies dist, and sets changed
+    void flooded(ArrayList<Cell> cells) {
+        this.changed = 0;
+        if (this.grid.get(this.home).isFlooded) {
+            for (int i = 0; i < this.dist.length; i += 1) {
+                if (this.dist[i] != HomeField.FAR) {
+                    this.dist[i] = HomeField.FAR;
+                    this.changed += 1;
+                }
+            }
+            return;
+        }
+
+        // the cells one move further from home than a flooded cell may have
+        // lost their way home
+        this.lo = HomeField.FAR;
+        this.hi = -1;
+        for (int i = 0; i < cells.size(); i += 1) {
+            int idx = this.grid.indexOf(cells.get(i));
+            int was = this.dist[idx];
+            if (was != HomeField.FAR) {
+                this.dist[idx] = HomeField.FAR;
+                this.changed += 1;
+                this.queueFurther(idx, was);
+            }
+        }
+
+        // nearest first, find the cells with no neighbour one move closer
+        // that still has its way home
+        this.lostCount = 0;
+        for (int d = this.lo; d <= this.hi; d += 1) {
+            while (this.heads[d] != -1) {
+                int idx = this.pop(d);
+                if (!this.isHeld(idx)) {
+                    this.lost[idx] = true;
+                    this.lostCells[this.lostCount] = idx;
+                    this.lostCount += 1;
+                    this.queueFurther(idx, d);
+                }
+            }
+        }
+
+        this.repair();
+    }
+
+    // queue the dry neighbours of the cell at the given index that are one
+    // move further from home than its distance was
+    // EFFECT: modifies the buckets
+    void queueFurther(int idx, int was) {
+        for (int k = 0; k < 4; k += 1) {
+            int n = this.around(idx, k);
+            if (this.dist[n] == was + 1 && !this.queued[n] && !this.lost[n]
+                    && !this.grid.get(n).isFlooded) {
+                this.push(n, was + 1);
+            }
+        }
+    }
+
+    // work out the distances of the cells that lost their way home, starting
+    // each from the best of its neighbours that kept theirs, and spreading
+    // nearest first
+    // EFFECT: modifies dist, and adds to changed
+    void repair() {
+        this.lo = HomeField.FAR;
+        this.hi = -1;
+        for (int i = 0; i < this.lostCount; i += 1) {
+            int idx = this.lostCells[i];
+            this.dist[idx] = HomeField.FAR;
+        }
+        for (int i = 0; i < this.lostCount; i += 1) {
+            int idx = this.lostCells[i];
+            int best = HomeField.FAR;
+            for (int k = 0; k < 4; k += 1) {
+                int n = this.around(idx, k);
+                if (!this.lost[n] && this.dist[n] != HomeField.FAR) {
+                    best = Math.min(best, this.dist[n] + 1);
+                }
+            }
+            this.tentative[idx] = best;
+            if (best != HomeField.FAR) {
+                this.push(idx, best);
+            }
+        }
+
+        // take the nearer of the next starting cell and the next cell of the
+        // search; the search's distances never fall, so each cell is settled
+        // the first time it is taken
+        int head = 0;
+        int tail = 0;
+        int d = this.lo;
+        while (true) {
+            while (d <= this.hi && this.heads[d] == -1) {
+                d += 1;
+            }
+            int idx;
+            int key;
+            if (head < tail && (d > this.hi
+                    || this.tentative[this.fifo[head]] <= d)) {
+                idx = this.fifo[head];
+                key = this.tentative[idx];
+                head += 1;
+            }
+            else if (d <= this.hi) {
+                idx = this.pop(d);
+                key = d;
+            }
+            else {
+                break;
+            }
+
+            if (this.dist[idx] != HomeField.FAR || key != this.tentative[idx]) {
+                continue;
+            }
+            this.dist[idx] = key;
+            for (int k = 0; k < 4; k += 1) {
+                int n = this.around(idx, k);
+                if (this.lost[n] && this.dist[n] == HomeField.FAR
+                        && key + 1 < this.tentative[n]) {
+                    this.tentative[n] = key + 1;
+                    this.fifo[tail] = n;
+                    tail += 1;
+                }
+            }
+        }
+
+        for (int i = 0; i < this.lostCount; i += 1) {
+            this.lost[this.lostCells[i]] = false;
+        }
+        this.changed += this.lostCount;
+    }
+}
+
+class ExamplesHomeField {
+    AIslandGenerator terrainGen = new RandomTerrainIslandGenerator(32, 32);
+
+    // flood the grid to the given water height the way the world does
+    // EFFECT: floods the grid's cells, adding each to log
+    void flood(CellGrid grid, int waterHeight, ArrayList<Cell> log) {
+        ArrayList<Cell> stack = new ArrayList<Cell>();
+        log.clear();
+        for (Cell cell : grid.cells) {
+            if (cell.left.isFlooded || cell.right.isFlooded
+                    || cell.top.isFlooded || cell.bottom.isFlooded) {
+                cell.flood(waterHeight, stack, log);
+            }
+        }
+    }
+
+    // test the distances on the mountain
+    void testSearch(Tester t) {
+        CellGrid grid = new CellGrid(
+                new MountainIslandGenerator(16, 16).generateTerrain(), 17);
+        HomeField field = new HomeField(grid, grid.cellAt(8, 8));
+        t.checkExpect(field.distanceOf(grid.cellAt(8, 8)), 0);
+        t.checkExpect(field.distanceOf(grid.cellAt(8, 1)), 7);
+        t.checkExpect(field.distanceOf(grid.cellAt(5, 6)), 5);
+        t.checkExpect(field.distanceOf(grid.cellAt(0, 0)), HomeField.FAR);
+        t.checkExpect(field.towardHome(grid.cellAt(8, 8)), null);
+        t.checkExpect(field.towardHome(grid.cellAt(0, 0)), null);
+
+        // following the field leads home
+        Cell cell = grid.cellAt(3, 9);
+        int steps = 0;
+        while (field.towardHome(cell) != null) {
+            cell = field.towardHome(cell);
+            steps += 1;
+        }
+        t.checkExpect(cell, grid.cellAt(8, 8));
+        t.checkExpect(steps, 6);
+    }
+
+    // test that updating after each flood gives the same distances as
+    // searching again, and changes only the cells whose distance changes
+    void testAgainstSearch(Tester t) {
+        CellGrid grid = new CellGrid(this.terrainGen.generateTerrain(), 33);
+        Cell peak = grid.cellAt(16, 16);
+        for (Cell cell : grid.cells) {
+            if (cell.height > peak.height) {
+                peak = cell;
+            }
+        }
+        HomeField field = new HomeField(grid, peak);
+        HomeField fresh = new HomeField(grid, peak);
+        ArrayList<Cell> log = new ArrayList<Cell>();
+        boolean same = true;
+        boolean only = true;
+        int updates = 0;
+        for (int water = 1; water <= 33; water += 1) {
+            this.flood(grid, water, log);
+            int[] before = fresh.dist.clone();
+            field.flooded(log);
+            fresh.search();
+            same = same && Arrays.equals(field.dist, fresh.dist);
+            int differ = 0;
+            for (int i = 0; i < before.length; i += 1) {
+                if (before[i] != fresh.dist[i]) {
+                    differ += 1;
+                }
+            }
+            only = only && field.changed == differ;
+            updates += field.changed;
+        }
+        t.checkExpect(same, true);
+        t.checkExpect(only, true);
+        t.checkExpect(updates > 0, true);
+    }
+
+    // test a flood that cuts the field in two, and one that floods home
+    void testCut(Tester t) {
+        CellGrid grid = new CellGrid(
+                new MountainIslandGenerator(16, 16).generateTerrain(), 17);
+        HomeField field = new HomeField(grid, grid.cellAt(8, 8));
+        ArrayList<Cell> wall = new ArrayList<Cell>();
+        for (int y = 0; y <= 16; y += 1) {
+            Cell cell = grid.cellAt(10, y);
+            if (!cell.isFlooded) {
+                cell.isFlooded = true;
+                wall.add(cell);
+            }
+        }
+        field.flooded(wall);
+        t.checkExpect(field.distanceOf(grid.cellAt(12, 8)), HomeField.FAR);
+        t.checkExpect(field.distanceOf(grid.cellAt(9, 8)), 1);
+        t.checkExpect(field.distanceOf(grid.cellAt(10, 8)), HomeField.FAR);
+        // the land of the column, and the 25 land cells east of it
+        t.checkExpect(field.changed, 11 + 25);
+
+        // a detour around a single flooded cell
+        ArrayList<Cell> one = new ArrayList<Cell>();
+        one.add(grid.cellAt(8, 7));
+        grid.cellAt(8, 7).isFlooded = true;
+        field.flooded(one);
+        t.checkExpect(field.distanceOf(grid.cellAt(8, 6)), 4);
+        t.checkExpect(field.distanceOf(grid.cellAt(8, 5)), 5);
+
+        ArrayList<Cell> home = new ArrayList<Cell>();
+        home.add(grid.cellAt(8, 8));
+        grid.cellAt(8, 8).isFlooded = true;
+        field.flooded(home);
+        t.checkExpect(field.distanceOf(grid.cellAt(9, 8)), HomeField.FAR);
+        t.checkExpect(field.distanceOf(grid.cellAt(8, 8)), HomeField.FAR);
+    }
+
+    // start a game on a plateau at 63 with the helicopter on a peak of 64 in
+    // the middle, and the player 14 moves away
+    ForbiddenIslandWorld plateau() {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(32);
+        IList<Cell> board = world.mountain.generateTerrain();
+        for (Cell cell : board) {
+            if (!cell.isOcean()) {
+                cell.height = 63;
+            }
+            if (cell.x == 16 && cell.y == 16) {
+                cell.height = 64;
+            }
+        }
+        world.reset(world.mountain, board);
+        world.items = new Empty<Target>();
+        world.helicopter.link = world.grid.cellAt(16, 16);
+        world.player.link = world.grid.cellAt(16, 2);
+        world.waterHeight = 63;
+        return world;
+    }
+
+    // test losing as soon as the player cannot reach the helicopter before
+    // it floods
+    void testTooFar(Tester t) {
+        ForbiddenIslandWorld world = this.plateau();
+        t.checkExpect(world.homeField().distanceOf(world.player.link), 14);
+        // 19 moves before the tick the helicopter floods in
+        t.checkExpect(world.isTooFar(), false);
+        world.tick = 5;
+        // 14 moves
+        t.checkExpect(world.isTooFar(), false);
+        world.tick = 6;
+        t.checkExpect(world.isTooFar(), true);
+        t.checkExpect(world.isOver(), true);
+        world.onTick();
+        t.checkExpect(world.state, new Lose());
+
+        // several moves a tick when batching keys
+        world = this.plateau();
+        world.tick = 6;
+        world.keyMode = ForbiddenIslandWorld.KEYS_BATCHED;
+        t.checkExpect(world.isTooFar(), false);
+
+        // and no check for tidal water, which lags the schedule
+        world.keyMode = ForbiddenIslandWorld.KEYS_IMMEDIATE;
+        world.tidal = new TidalFlow(world.grid);
+        t.checkExpect(world.isTooFar(), false);
+
+        // a player exactly as many keys away as the ticks left can still win,
+        // since each tick's keys are played before the water rises
+        world = new ForbiddenIslandWorld(16);
+        IList<Cell> board = world.mountain.generateTerrain();
+        for (Cell cell : board) {
+            if (!cell.isOcean()) {
+                cell.height = 64;
+            }
+        }
+        world.reset(world.mountain, board);
+        world.items = new Empty<Target>();
+        world.keyMode = ForbiddenIslandWorld.KEYS_BATCHED;
+        world.keysPerTick = 1;
+        world.helicopter.link = world.grid.cellAt(3, 8);
+        world.player.link = world.grid.cellAt(13, 8);
+        world.waterHeight = 64;
+        t.checkExpect(world.isTooFar(), false);
+        for (int i = 0; i < 9; i += 1) {
+            world.onKeyEvent("left");
+            world.onTick();
+        }
+        t.checkExpect(world.state, ForbiddenIslandWorld.INGAME);
+        world.onKeyEvent("left");
+        world.onTick();
+        t.checkExpect(world.state, new Win());
+    }
+
+    // test that the world keeps the field up to date, and draws the way home
+    void testWorld(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.reset(world.mountain);
+        world.items = new Empty<Target>();
+        world.helicopter.link = world.grid.cellAt(8, 8);
+        world.player.link = world.grid.cellAt(8, 4);
+        HomeField field = world.homeField();
+        t.checkExpect(world.homeField(), field);
+        world.waterHeight = 58;
+        for (int i = 0; i < 10; i += 1) {
+            world.onTick();
+        }
+        t.checkExpect(world.homeField(), field);
+        t.checkExpect(field.distanceOf(world.grid.cellAt(8, 2)),
+                HomeField.FAR);
+        t.checkExpect(field.distanceOf(world.grid.cellAt(8, 3)), 5);
+
+        // moving the helicopter makes a new field
+        world.helicopter.link = world.grid.cellAt(8, 7);
+        t.checkExpect(world.homeField() == field, false);
+        t.checkExpect(world.homeField().distanceOf(world.grid.cellAt(8, 3)),
+                4);
+
+        world.hintMode = true;
+        world.drawInGame();
+        int x = (8 - world.camera.left) * Cell.CELLSIZE + Cell.CELLSIZE / 2;
+        int y = (5 - world.camera.top) * Cell.CELLSIZE + Cell.CELLSIZE / 2;
+        t.checkExpect(world.frame.pixelAt(x, y), Color.YELLOW.getRGB());
+        world.hintMode = false;
+        world.drawInGame();
+        t.checkExpect(world.frame.pixelAt(x, y) == Color.YELLOW.getRGB(),
+                false);
+    }
+
+    // test turning the hint on from the menu
+    void testMenu(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld();
+        world.onKeyEvent("p");
+        t.checkExpect(world.hintMode, true);
+        world.onKeyEvent("p");
+        t.checkExpect(world.hintMode, false);
+    }
+}
@@ -0,0 +1,373 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import tester.*;
+
+// A generated board kept as its heights and which cells are ocean, in row
+// order, so it takes a few bytes a cell instead of a Cell object each, and
+// can be made into a fresh board of cells as often as it is needed. It is
+// never changed once made
+class IslandSnapshot {
+    // the number of cells along each side of the board
+    int side;
+    // the height of each cell, and a bit for each ocean cell
+    double[] heights;
+    long[] ocean;
+
+    // keep the cells of the given board of the given side
+    IslandSnapshot(IList<Cell> board, int side) {
+        this.side = side;
+        this.heights = new double[side * side];
+        this.ocean = new long[(side * side + 63) / 64];
+        int i = 0;
+        for (IList<Cell> rest = board; rest.isCons(); rest = rest
+                .asCons().next) {
+            Cell cell = rest.asCons().item;
+            this.heights[i] = cell.height;
+            if (cell.isOcean()) {
+                this.ocean[i >> 6] |= 1L << i;
+            }
+            i += 1;
+        }
+    }
+
+    // get the number of cells kept
+    int size() {
+        return this.heights.length;
+    }
+
+    // make a new board of these cells, with each cell's neighbours set the
+    // way the generators set them
+    IList<Cell> board() {
+        Cell[] cells = new Cell[this.heights.length];
+        for (int i = 0; i < cells.length; i += 1) {
+            int x = i % this.side;
+            int y = i / this.side;
+            if ((this.ocean[i >> 6] & 1L << i) != 0) {
+                cells[i] = new OceanCell(this.heights[i], x, y);
+            }
+            else {
+                cells[i] = new Cell(this.heights[i], x, y);
+            }
+        }
+
+        // build the list back to front so it ends up in row order
+        IList<Cell> result = new Empty<Cell>();
+        int last = this.side - 1;
+        for (int i = cells.length - 1; i >= 0; i -= 1) {
+            int x = i % this.side;
+            int y = i / this.side;
+            cells[i].setNeighbors(cells[i - x + Math.max(x - 1, 0)],
+                    cells[Math.max(y - 1, 0) * this.side + x],
+                    cells[i - x + Math.min(x + 1, last)],
+                    cells[Math.min(y + 1, last) * this.side + x]);
+            result = new Cons<Cell>(cells[i], result);
+        }
+        return result;
+    }
+}
+
+// A snapshot evicted from the cache, which the garbage collector may clear
+// when memory runs short, remembering its key so it can be forgotten then
+class SoftSnapshot extends SoftReference<IslandSnapshot> {
+    String key;
+
+    SoftSnapshot(String key, IslandSnapshot snapshot,
+            ReferenceQueue<IslandSnapshot> queue) {
+        super(snapshot, queue);
+        this.key = key;
+    }
+}
+
+// Keeps the boards generated from seeds, by the kind of generator, the
+// seed, the size, the maximum height and whatever else sets the generator's
+// island, so starting the same seeded or daily island again makes its cells
+// from a snapshot instead of generating it. The snapshots used most
+// recently are kept up to a number of cells, and the ones evicted past that
+// are kept softly, until the garbage collector needs the memory
+class IslandCache {
+    // the most cells the snapshots kept for certain may hold
+    int budget;
+    // the cells those snapshots hold
+    int held = 0;
+    // the snapshots kept for certain, least recently used first
+    LinkedHashMap<String, IslandSnapshot> recent;
+    // the snapshots evicted, and the queue of those the collector cleared
+    HashMap<String, SoftSnapshot> evicted;
+    ReferenceQueue<IslandSnapshot> cleared;
+
+    // the boards found among the recent snapshots, found among the evicted
+    // ones, and generated, and the snapshots evicted
+    int hits = 0;
+    int softHits = 0;
+    int misses = 0;
+    int evictions = 0;
+
+    // creates a cache keeping snapshots of up to the given number of cells
+    IslandCache(int budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException(
+                    "Budget must be positive: " + budget);
+        }
+        this.budget = budget;
+        this.recent = new LinkedHashMap<String, IslandSnapshot>(16, 0.75f,
+                true);
+        this.evicted = new HashMap<String, SoftSnapshot>();
+        this.cleared = new ReferenceQueue<IslandSnapshot>();
+    }
+
+    // get the key of the board the given generator makes from the given seed
+    String key(AIslandGenerator gen, long seed) {
+        return gen.cacheKey(seed);
+    }
+
+    // get a board of the island the given generator makes from the given
+    // seed, generating it only if it is not kept. The island is generated
+    // by a seeded copy of the generator, which is left as it is
+    // EFFECT: updates the snapshots kept, and counts the hit or miss
+    IList<Cell> board(AIslandGenerator gen, long seed) {
+        this.forgetCleared();
+        String key = this.key(gen, seed);
+        IslandSnapshot snapshot = this.recent.get(key);
+        if (snapshot != null) {
+            this.hits += 1;
+            return snapshot.board();
+        }
+
+        SoftSnapshot soft = this.evicted.remove(key);
+        if (soft != null) {
+            snapshot = soft.get();
+        }
+        if (snapshot != null) {
+            this.softHits += 1;
+            this.keep(key, snapshot);
+            return snapshot.board();
+        }
+
+        this.misses += 1;
+        AIslandGenerator seeded = gen.seeded(seed);
+        IList<Cell> board = seeded.generateTerrain();
+        this.keep(key, new IslandSnapshot(board, seeded.islandSize + 1));
+        return board;
+    }
+
+    // keep the given snapshot as the most recently used, evicting the least
+    // recently used ones until the rest fit the budget. The snapshot just
+    // kept is never evicted, even if it does not fit on its own
+    // EFFECT: modifies recent, evicted, held and evictions
+    void keep(String key, IslandSnapshot snapshot) {
+        this.recent.put(key, snapshot);
+        this.held += snapshot.size();
+        Iterator<Map.Entry<String, IslandSnapshot>> oldest = this.recent
+                .entrySet().iterator();
+        while (this.held > this.budget && this.recent.size() > 1) {
+            Map.Entry<String, IslandSnapshot> entry = oldest.next();
+            this.held -= entry.getValue().size();
+            this.evicted.put(entry.getKey(), new SoftSnapshot(entry.getKey(),
+                    entry.getValue(), this.cleared));
+            oldest.remove();
+            this.evictions += 1;
+        }
+    }
+
+    // forget the evicted snapshots the garbage collector has cleared
+    // EFFECT: modifies evicted
+    void forgetCleared() {
+        SoftSnapshot soft = (SoftSnapshot) this.cleared.poll();
+        while (soft != null) {
+            // the key may have been kept again since
+            if (this.evicted.get(soft.key) == soft) {
+                this.evicted.remove(soft.key);
+            }
+            soft = (SoftSnapshot) this.cleared.poll();
+        }
+    }
+
+    // describe the hits, misses and evictions so far in a line
+    public String toString() {
+        return String.format(
+                "%d hits, %d soft hits, %d misses, %d evictions,"
+                        + " %d snapshots of %d cells kept",
+                this.hits, this.softHits, this.misses, this.evictions,
+                this.recent.size(), this.held);
+    }
+}
+
+// A mountain generator that counts the heights it generates, for testing
+class CountingGenerator extends MountainIslandGenerator {
+    int generated = 0;
+
+    CountingGenerator(int maxHeight, int islandSize) {
+        super(maxHeight, islandSize);
+    }
+
+    // count the heights generated
+    // EFFECT: modifies generated
+    public ArrayList<ArrayList<Double>> generateHeights() {
+        this.generated += 1;
+        return super.generateHeights();
+    }
+}
+
+class ExamplesIslandCache {
+    // check that the two boards have the same cells with the same neighbours
+    boolean same(IList<Cell> a, IList<Cell> b, int side) {
+        CellGrid one = new CellGrid(a, side);
+        CellGrid two = new CellGrid(b, side);
+        boolean same = one.size() == two.size();
+        for (int i = 0; same && i < one.size(); i += 1) {
+            Cell c = one.get(i);
+            Cell d = two.get(i);
+            same = c.height == d.height && c.x == d.x && c.y == d.y
+                    && c.isOcean() == d.isOcean()
+                    && c.isFlooded == d.isFlooded
+                    && one.indexOf(c.left) == two.indexOf(d.left)
+                    && one.indexOf(c.top) == two.indexOf(d.top)
+                    && one.indexOf(c.right) == two.indexOf(d.right)
+                    && one.indexOf(c.bottom) == two.indexOf(d.bottom);
+        }
+        return same;
+    }
+
+    // test that a kept board is made again without generating, the same as
+    // generating it, for every generator
+    void testHit(Tester t) {
+        IslandCache cache = new IslandCache(1 << 16);
+        AIslandGenerator[] gens = { new RandomIslandGenerator(64, 30),
+            new RandomTerrainIslandGenerator(128, 32),
+            new NoiseIslandGenerator(64, 30), new MountainIslandGenerator(16,
+                    16) };
+        boolean same = true;
+        for (AIslandGenerator gen : gens) {
+            IList<Cell> first = cache.board(gen, 11);
+            IList<Cell> again = cache.board(gen, 11);
+            gen.reseed(11);
+            IList<Cell> fresh = gen.generateTerrain();
+            same = same && this.same(again, fresh, gen.islandSize + 1)
+                    && this.same(first, fresh, gen.islandSize + 1)
+                    && first != again;
+        }
+        t.checkExpect(same, true);
+        t.checkExpect(cache.hits, 4);
+        t.checkExpect(cache.misses, 4);
+
+        CountingGenerator counting = new CountingGenerator(16, 16);
+        cache.board(counting, 3);
+        cache.board(counting, 3);
+        cache.board(counting, 3);
+        t.checkExpect(counting.generated, 1);
+        t.checkExpect(cache.toString(), "6 hits, 0 soft hits, 5 misses,"
+                + " 0 evictions, 5 snapshots of 3589 cells kept");
+    }
+
+    // test that boards differing in kind, seed, size or height are kept
+    // apart
+    void testKeys(Tester t) {
+        IslandCache cache = new IslandCache(1 << 16);
+        AIslandGenerator gen = new RandomIslandGenerator(64, 16);
+        t.checkExpect(cache.key(gen, 5),
+                "RandomIslandGenerator/5/16/64");
+        cache.board(gen, 5);
+        cache.board(gen, 6);
+        cache.board(new RandomIslandGenerator(64, 18), 5);
+        cache.board(new RandomIslandGenerator(32, 16), 5);
+        cache.board(new MountainIslandGenerator(64, 16), 5);
+        t.checkExpect(cache.misses, 5);
+        cache.board(gen, 5);
+        t.checkExpect(cache.hits, 1);
+    }
+
+    // test evicting the least recently used boards past the budget, and
+    // finding them again among the evicted ones
+    void testEvict(Tester t) {
+        // room for two boards of 17 by 17
+        IslandCache cache = new IslandCache(2 * 289 + 10);
+        CountingGenerator gen = new CountingGenerator(16, 16);
+        cache.board(gen, 1);
+        cache.board(gen, 2);
+        cache.board(gen, 1);
+        cache.board(gen, 3);
+        t.checkExpect(cache.evictions, 1);
+        t.checkExpect(cache.recent.containsKey(cache.key(gen, 2)), false);
+        t.checkExpect(cache.recent.containsKey(cache.key(gen, 1)), true);
+        t.checkExpect(cache.held, 2 * 289);
+
+        // nothing has needed the memory, so the board is still kept softly
+        cache.board(gen, 2);
+        t.checkExpect(cache.softHits, 1);
+        t.checkExpect(cache.evictions, 2);
+        t.checkExpect(cache.recent.containsKey(cache.key(gen, 1)), false);
+        t.checkExpect(gen.generated, 3);
+
+        // once cleared, an evicted board is generated again
+        cache.evicted.get(cache.key(gen, 1)).enqueue();
+        cache.board(gen, 1);
+        t.checkExpect(cache.misses, 4);
+        t.checkExpect(gen.generated, 4);
+        t.checkExpect(cache.evicted.containsKey(cache.key(gen, 1)), false);
+
+        // a board bigger than the budget is still kept until the next one
+        IslandCache small = new IslandCache(100);
+        small.board(gen, 1);
+        t.checkExpect(small.held, 289);
+        small.board(gen, 2);
+        t.checkExpect(small.held, 289);
+        t.checkExpect(small.evictions, 1);
+        t.checkConstructorException(new IllegalArgumentException(
+                "Budget must be positive: 0"), "IslandCache", 0);
+    }
+
+    // test that the world starts the same seeded and daily islands from
+    // its cache
+    void testWorld(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.startSeeded(world.random, 9);
+        IList<Cell> board = world.board;
+        world.startSeeded(world.random, 9);
+        t.checkExpect(world.state, ForbiddenIslandWorld.INGAME);
+        t.checkExpect(this.same(board, world.board, 17), true);
+        t.checkExpect(world.cache.hits, 1);
+
+        world.state = ForbiddenIslandWorld.MENU;
+        world.onKeyEvent("d");
+        t.checkExpect(world.state, ForbiddenIslandWorld.INGAME);
+        world.state = ForbiddenIslandWorld.MENU;
+        world.onKeyEvent("d");
+        t.checkExpect(world.cache.hits, 2);
+        t.checkExpect(world.cache.misses, 2);
+
+        // the world's own generators still make new islands
+        IList<Cell> daily = world.board;
+        world.state = ForbiddenIslandWorld.MENU;
+        world.onKeyEvent("n");
+        t.checkExpect(world.state, ForbiddenIslandWorld.INGAME);
+        t.checkExpect(this.same(daily, world.board, 17), false);
+    }
+
+    // test that generating a seeded island leaves the generator as it was
+    void testSeeded(Tester t) {
+        IslandCache cache = new IslandCache(1 << 16);
+        AIslandGenerator gen = new RandomIslandGenerator(64, 16);
+        AIslandGenerator twin = new RandomIslandGenerator(64, 16);
+        gen.reseed(5);
+        twin.reseed(5);
+        cache.board(gen, 11);
+        t.checkExpect(gen.generateHeights(), twin.generateHeights());
+
+        NoiseIslandGenerator noise = new NoiseIslandGenerator(64, 16);
+        cache.board(noise, 11);
+        t.checkExpect(noise.pinned, false);
+        AIslandGenerator terrain = new RandomTerrainIslandGenerator(64, 16);
+        t.checkExpect(this.same(cache.board(terrain, 4),
+                terrain.seeded(4).generateTerrain(), 17), true);
+        t.checkExpect(this.same(terrain.seeded(4).generateTerrain(),
+                terrain.seeded(5).generateTerrain(), 17), false);
+        MountainIslandGenerator mountain = new MountainIslandGenerator(16, 16);
+        t.checkExpect(mountain.seeded(4), mountain);
+    }
+}
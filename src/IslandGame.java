@@ -1,5 +1,11 @@
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import tester.*;
 import javalib.impworld.*;
@@ -32,6 +38,27 @@ class Utility {
 
         return new Color(red, green, blue);
     }
+
+    // the colour of a flooded cell of the given height
+    public Color floodedColor(double height, int waterHeight, int maxHeight) {
+        return this.mix(new Color(0.0f, 0.0f, 1.0f),
+                new Color(0.0f, 0.35f, 0.5f),
+                Math.min(Math.sqrt((waterHeight - height) / maxHeight), 1.0f));
+    }
+
+    // the colour of a dry cell of the given height, which turns red as the
+    // water rises above it
+    public Color dryColor(double height, int waterHeight, int maxHeight) {
+        if (height - waterHeight > 0) {
+            return this.mix(Color.white, new Color(0.0f, 0.5f, 0.0f),
+                    (height - waterHeight) / maxHeight);
+        }
+        else {
+            return this.mix(Color.red, new Color(0.25f, 0.5f, 0.0f),
+                    Math.min(Math.sqrt((waterHeight - height) / maxHeight),
+                            1.0f));
+        }
+    }
 }
 
 // Represents a single square of the game area
@@ -72,44 +99,37 @@ class Cell {
     // draw this cell based on the water height and the maximum height of the
     // island
     public WorldImage draw(int waterHeight, int maxHeight) {
-        Color maxNoFlood = Color.white;
-        Color minNoFlood = new Color(0.0f, 0.5f, 0.0f);
-        Color minToFlood = new Color(0.25f, 0.5f, 0.0f);
-        Color maxToFlood = Color.red;
-        Color minFlooded = new Color(0.0f, 0.35f, 0.5f);
-        Color maxFlooded = new Color(0.0f, 0.0f, 1.0f);
-
         if (this.isFlooded) {
             return new RectangleImage(CELLSIZE, CELLSIZE, OutlineMode.SOLID,
-                    new Utility().mix(maxFlooded, minFlooded,
-                            Math.min(Math.sqrt(
-                                    (waterHeight - this.height) / maxHeight),
-                            1.0f)));
-        }
-
-        if (this.height - waterHeight > 0) {
-            return new RectangleImage(CELLSIZE, CELLSIZE, OutlineMode.SOLID,
-                    new Utility().mix(maxNoFlood, minNoFlood,
-                            (this.height - waterHeight) / maxHeight));
-        }
-        else {
-            return new RectangleImage(CELLSIZE, CELLSIZE, OutlineMode.SOLID,
-                    new Utility().mix(maxToFlood, minToFlood,
-                            Math.min(Math.sqrt(
-                                    (waterHeight - this.height) / maxHeight),
-                            1.0f)));
+                    new Utility().floodedColor(this.height, waterHeight,
+                            maxHeight));
         }
+        return new RectangleImage(CELLSIZE, CELLSIZE, OutlineMode.SOLID,
+                new Utility().dryColor(this.height, waterHeight, maxHeight));
     }
 
     // flood this cell
     // EFFECT: sets the isFlooded flag
     void flood(int waterHeight) {
-        if (this.height < waterHeight && !this.isFlooded) {
-            this.isFlooded = true;
-            this.left.flood(waterHeight);
-            this.top.flood(waterHeight);
-            this.right.flood(waterHeight);
-            this.bottom.flood(waterHeight);
+        this.flood(waterHeight, new ArrayList<Cell>(), new ArrayList<Cell>());
+    }
+
+    // flood this cell and every cell reachable from it below the water,
+    // keeping pending cells on the given stack instead of recursing so that
+    // large boards cannot overflow the call stack
+    // EFFECT: sets the isFlooded flags, and adds each newly flooded cell to log
+    void flood(int waterHeight, ArrayList<Cell> stack, ArrayList<Cell> log) {
+        stack.add(this);
+        while (!stack.isEmpty()) {
+            Cell cur = stack.remove(stack.size() - 1);
+            if (cur.height < waterHeight && !cur.isFlooded) {
+                cur.isFlooded = true;
+                log.add(cur);
+                stack.add(cur.left);
+                stack.add(cur.top);
+                stack.add(cur.right);
+                stack.add(cur.bottom);
+            }
         }
     }
 
@@ -118,6 +138,11 @@ class Cell {
     void addIfOcean(ArrayList<OceanCell> list) {
         // do nothing
     }
+
+    // check if this is an ocean cell
+    boolean isOcean() {
+        return false;
+    }
 }
 
 // An OceanCell
@@ -143,11 +168,84 @@ class OceanCell extends Cell {
         // do nothing
     }
 
+    // flood this oceanCell
+    void flood(int waterHeight, ArrayList<Cell> stack, ArrayList<Cell> log) {
+        // do nothing
+    }
+
     // add self to list if you are an ocean cell
     // EFFECT: modifies the list
     void addIfOcean(ArrayList<OceanCell> list) {
         list.add(this);
     }
+
+    // check if this is an ocean cell
+    boolean isOcean() {
+        return true;
+    }
+}
+
+// The cells of a board indexed by position, so that a cell can be found
+// without walking the board list
+class CellGrid implements IBoard {
+    // the number of cells along each side of the board
+    int side;
+    // the cells in row order
+    ArrayList<Cell> cells;
+
+    CellGrid(IList<Cell> board, int side) {
+        this.side = side;
+        this.cells = new ArrayList<Cell>(side * side);
+        for (Cell cell : board) {
+            this.cells.add(cell);
+        }
+    }
+
+    // get the cell at the given index in row order
+    Cell get(int idx) {
+        return this.cells.get(idx);
+    }
+
+    // get the cell at the given position
+    Cell cellAt(int x, int y) {
+        return this.cells.get(y * this.side + x);
+    }
+
+    // get the index in row order of the given cell
+    int indexOf(Cell cell) {
+        return cell.y * this.side + cell.x;
+    }
+
+    // get the number of cells on the board
+    public int size() {
+        return this.cells.size();
+    }
+
+    // get the number of cells along each side of the board
+    public int cellsPerSide() {
+        return this.side;
+    }
+
+    // get the height of the cell at the given index
+    public double height(int idx) {
+        return this.cells.get(idx).height;
+    }
+
+    // check if the cell at the given index is ocean
+    public boolean isOcean(int idx) {
+        return this.cells.get(idx).isOcean();
+    }
+
+    // check if the cell at the given index is flooded
+    public boolean isFlooded(int idx) {
+        return this.cells.get(idx).isFlooded;
+    }
+
+    // flood the cell at the given index
+    // EFFECT: sets the cell's isFlooded flag
+    public void setFlooded(int idx) {
+        this.cells.get(idx).isFlooded = true;
+    }
 }
 
 // Represents an IslandGenerator generally
@@ -158,11 +256,37 @@ abstract class AIslandGenerator {
     // Maximum height of this island
     int maxHeight;
 
+    // The largest row and column index of the island, so the board has
+    // islandSize + 1 cells along each side (ISLAND_SIZE by default)
+    int islandSize = AIslandGenerator.ISLAND_SIZE;
+
+    // where random heights come from
+    Random rand = new Random();
+
     // calculate ManhattanDistance
     double manhattanDistance(int x, int y, int centerX, int centerY) {
         return Math.abs(x - centerX) + Math.abs(y - centerY);
     }
 
+    // make the same islands every time from now on for the given seed
+    // EFFECT: modifies rand
+    void reseed(long seed) {
+        this.rand = new Random(seed);
+    }
+
+    // get a generator like this one that makes the same island every time
+    // for the given seed, leaving this one as it is
+    abstract AIslandGenerator seeded(long seed);
+
+    // get the key the cache keeps the island made from the given seed by,
+    // which must tell apart every island this kind of generator can make.
+    // Generators set by more than their size and height, such as a file,
+    // add those settings to it
+    String cacheKey(long seed) {
+        return this.getClass().getName() + "/" + seed + "/" + this.islandSize
+                + "/" + this.maxHeight;
+    }
+
     // generate the heights of the cells on the island
     abstract ArrayList<ArrayList<Double>> generateHeights();
 
@@ -184,9 +308,8 @@ abstract class AIslandGenerator {
                 left = cells.get(cur.y).get(Math.max(cur.x - 1, 0));
                 top = cells.get(Math.max(cur.y - 1, 0)).get(cur.x);
                 right = cells.get(cur.y)
-                        .get(Math.min(cur.x + 1, AIslandGenerator.ISLAND_SIZE));
-                bottom = cells
-                        .get(Math.min(cur.y + 1, AIslandGenerator.ISLAND_SIZE))
+                        .get(Math.min(cur.x + 1, this.islandSize));
+                bottom = cells.get(Math.min(cur.y + 1, this.islandSize))
                         .get(cur.x);
 
                 cur.setNeighbors(left, top, right, bottom);
@@ -202,17 +325,14 @@ abstract class AIslandGenerator {
         ArrayList<ArrayList<Double>> heights = this.generateHeights();
         ArrayList<ArrayList<Cell>> cells = this.generateCells(heights);
         ArrayList<ArrayList<Cell>> fixedCells = this.fixNeighbors(cells);
-        ArrayList<Cell> reversed = new ArrayList<Cell>();
-
-        for (ArrayList<Cell> row : fixedCells) {
-            for (Cell cell : row) {
-                reversed.add(0, cell);
-            }
-        }
 
+        // build the list back to front so it ends up in row order
         IList<Cell> result = new Empty<Cell>();
-        for (Cell cell : reversed) {
-            result = new Cons<Cell>(cell, result);
+        for (int i = fixedCells.size() - 1; i >= 0; i -= 1) {
+            ArrayList<Cell> row = fixedCells.get(i);
+            for (int j = row.size() - 1; j >= 0; j -= 1) {
+                result = new Cons<Cell>(row.get(j), result);
+            }
         }
 
         return result;
@@ -225,6 +345,11 @@ abstract class AIslandGenerator {
     AIslandGenerator(int maxHeight) {
         this.maxHeight = maxHeight;
     }
+
+    AIslandGenerator(int maxHeight, int islandSize) {
+        this.maxHeight = maxHeight;
+        this.islandSize = islandSize;
+    }
 }
 
 // A Diamond-shaped AIslandGenerator
@@ -236,8 +361,8 @@ abstract class DiamondIslandGenerator extends AIslandGenerator {
     // generate the cells for this mountain island based on their heights
     public ArrayList<ArrayList<Cell>> generateCells(
             ArrayList<ArrayList<Double>> heights) {
-        int centerX = AIslandGenerator.ISLAND_SIZE / 2;
-        int centerY = AIslandGenerator.ISLAND_SIZE / 2;
+        int centerX = this.islandSize / 2;
+        int centerY = this.islandSize / 2;
 
         ArrayList<ArrayList<Cell>> result = new ArrayList<ArrayList<Cell>>();
 
@@ -265,24 +390,29 @@ abstract class DiamondIslandGenerator extends AIslandGenerator {
     DiamondIslandGenerator(int maxHeight) {
         this.maxHeight = maxHeight;
     }
+
+    DiamondIslandGenerator(int maxHeight, int islandSize) {
+        super(maxHeight, islandSize);
+        this.oceanDistance = islandSize / 2;
+    }
 }
 
 // A Mountain AIslandGenerator
 class MountainIslandGenerator extends DiamondIslandGenerator {
     // generate the heights of the cells on this mountain island
     public ArrayList<ArrayList<Double>> generateHeights() {
-        int centerX = AIslandGenerator.ISLAND_SIZE / 2;
-        int centerY = AIslandGenerator.ISLAND_SIZE / 2;
+        int centerX = this.islandSize / 2;
+        int centerY = this.islandSize / 2;
 
         // initialize the heights of the cells in this island
         ArrayList<ArrayList<Double>> heights = new ArrayList<ArrayList<Double>>();
         // iterate over the rows (Y coordinates)
-        for (int i = 0; i <= AIslandGenerator.ISLAND_SIZE; i += 1) {
+        for (int i = 0; i <= this.islandSize; i += 1) {
             // Create a temporary ArrayList<Double> for this row
             ArrayList<Double> curRow = new ArrayList<Double>();
 
             // iterate over the columns (X coordinates)
-            for (int j = 0; j <= AIslandGenerator.ISLAND_SIZE; j += 1) {
+            for (int j = 0; j <= this.islandSize; j += 1) {
                 // create cells with their heights based on Manhattan distance
                 curRow.add(this.maxHeight
                         - this.manhattanDistance(j, i, centerX, centerY));
@@ -298,24 +428,33 @@ class MountainIslandGenerator extends DiamondIslandGenerator {
     MountainIslandGenerator(int maxHeight) {
         super(maxHeight);
     }
+
+    MountainIslandGenerator(int maxHeight, int islandSize) {
+        super(maxHeight, islandSize);
+    }
+
+    // the mountain is the same whatever the seed, so this is its own seeded
+    // generator
+    AIslandGenerator seeded(long seed) {
+        return this;
+    }
 }
 
 // A Diamond-shaped island with random heights
 class RandomIslandGenerator extends DiamondIslandGenerator {
     // generate the heights of the cells on this random island
     public ArrayList<ArrayList<Double>> generateHeights() {
-
-        Random r = new Random();
+        Random r = this.rand;
 
         // initialize the heights of the cells in this island
         ArrayList<ArrayList<Double>> heights = new ArrayList<ArrayList<Double>>();
         // iterate over the rows (Y coordinates)
-        for (int i = 0; i <= AIslandGenerator.ISLAND_SIZE; i += 1) {
+        for (int i = 0; i <= this.islandSize; i += 1) {
             // Create a temporary ArrayList<Double> for this row
             ArrayList<Double> curRow = new ArrayList<Double>();
 
             // iterate over the columns (X coordinates)
-            for (int j = 0; j <= AIslandGenerator.ISLAND_SIZE; j += 1) {
+            for (int j = 0; j <= this.islandSize; j += 1) {
                 // create cells with their heights determined randomly from 0 to
                 // maxSize
                 curRow.add(r.nextInt(this.maxHeight + 1) * 1.0);
@@ -335,18 +474,32 @@ class RandomIslandGenerator extends DiamondIslandGenerator {
     RandomIslandGenerator(int maxHeight) {
         super(maxHeight);
     }
+
+    RandomIslandGenerator(int maxHeight, int islandSize) {
+        super(maxHeight, islandSize);
+    }
+
+    // get a generator like this one that makes its islands from the given
+    // seed
+    AIslandGenerator seeded(long seed) {
+        RandomIslandGenerator gen = new RandomIslandGenerator(this.maxHeight,
+                this.islandSize);
+        gen.oceanDistance = this.oceanDistance;
+        gen.reseed(seed);
+        return gen;
+    }
 }
 
 class RandomTerrainIslandGenerator extends AIslandGenerator {
     // generate the nudge
     double nudge(double area) {
-        if (Math.random() <= .5) {
-            return -1 * Math.random() * area
-                    + (Math.random() * this.maxHeight) / this.maxHeight;
+        if (this.rand.nextDouble() <= .5) {
+            return -1 * this.rand.nextDouble() * area
+                    + (this.rand.nextDouble() * this.maxHeight) / this.maxHeight;
         }
         else {
-            return Math.random() * area
-                    + (Math.random() * this.maxHeight) / this.maxHeight;
+            return this.rand.nextDouble() * area
+                    + (this.rand.nextDouble() * this.maxHeight) / this.maxHeight;
         }
     }
 
@@ -354,26 +507,25 @@ class RandomTerrainIslandGenerator extends AIslandGenerator {
     public ArrayList<ArrayList<Double>> generateHeights() {
         // Initialize the arraylist to be IslandSize + 1 columns and rows big
         ArrayList<ArrayList<Double>> result = new ArrayList<ArrayList<Double>>(
-                AIslandGenerator.ISLAND_SIZE + 1);
-        for (int i = 0; i < AIslandGenerator.ISLAND_SIZE + 1; i += 1) {
-            ArrayList<Double> row = new ArrayList<Double>(
-                    AIslandGenerator.ISLAND_SIZE + 1);
-            for (int j = 0; j < AIslandGenerator.ISLAND_SIZE + 1; j += 1) {
+                this.islandSize + 1);
+        for (int i = 0; i < this.islandSize + 1; i += 1) {
+            ArrayList<Double> row = new ArrayList<Double>(this.islandSize + 1);
+            for (int j = 0; j < this.islandSize + 1; j += 1) {
                 row.add(0d);
             }
             result.add(row);
         }
 
         // set the center of the arraylist to the max height
-        int centerX = (AIslandGenerator.ISLAND_SIZE + 1) / 2;
-        int centerY = (AIslandGenerator.ISLAND_SIZE + 1) / 2;
+        int centerX = (this.islandSize + 1) / 2;
+        int centerY = (this.islandSize + 1) / 2;
         result.get(centerY).set(centerX, (double) this.maxHeight);
 
         // set the edges to height 1
         result.get(0).set(centerX, 1d);
-        result.get(AIslandGenerator.ISLAND_SIZE - 1).set(centerX, 1d);
+        result.get(this.islandSize - 1).set(centerX, 1d);
         result.get(centerY).set(0, 1d);
-        result.get(centerY).set(AIslandGenerator.ISLAND_SIZE - 1, 1d);
+        result.get(centerY).set(this.islandSize - 1, 1d);
 
         this.generateTerrain(result, 0, 0, centerX, 0, centerX, centerY, 0,
                 centerY);
@@ -478,9 +630,25 @@ class RandomTerrainIslandGenerator extends AIslandGenerator {
     RandomTerrainIslandGenerator(int maxHeight) {
         super(maxHeight);
     }
+
+    RandomTerrainIslandGenerator(int maxHeight, int islandSize) {
+        super(maxHeight, islandSize);
+    }
+
+    // get a generator like this one that makes its islands from the given
+    // seed
+    AIslandGenerator seeded(long seed) {
+        AIslandGenerator gen = new RandomTerrainIslandGenerator(
+                this.maxHeight, this.islandSize);
+        gen.reseed(seed);
+        return gen;
+    }
 }
 
 abstract class Target {
+    // the radius of the circle drawn for a target
+    static final int RADIUS = (Cell.CELLSIZE - 2) / 2;
+
     Cell link;
 
     Target(Cell link) {
@@ -489,17 +657,43 @@ abstract class Target {
 
     // draw the target on top of the world
     WorldImage drawInto(WorldImage world, int waterHeight, int maxHeight) {
+        return this.drawInto(world, waterHeight, maxHeight, Cell.CELLSIZE, 0,
+                0);
+    }
+
+    // draw the target on top of a world drawn with the given number of
+    // pixels per cell, whose top-left corner is the cell at left, top
+    WorldImage drawInto(WorldImage world, int waterHeight, int maxHeight,
+            double cellPixels, int left, int top) {
         WorldImage empty = new PhantomImage(new EmptyImage(),
                 Cell.CELLSIZE * (AIslandGenerator.ISLAND_SIZE + 1),
                 Cell.CELLSIZE * (AIslandGenerator.ISLAND_SIZE + 1));
         WorldImage onEmpty = new OverlayOffsetAlign(AlignModeX.LEFT,
-                AlignModeY.TOP, empty, this.link.x * Cell.CELLSIZE,
-                this.link.y * Cell.CELLSIZE, this.draw(waterHeight, maxHeight));
+                AlignModeY.TOP, empty, (this.link.x - left) * cellPixels,
+                (this.link.y - top) * cellPixels,
+                this.draw(waterHeight, maxHeight));
         return new OverlayImage(onEmpty, world);
     }
 
     // draw the given target
-    abstract WorldImage draw(int waterHeight, int maxHeight);
+    WorldImage draw(int waterHeight, int maxHeight) {
+        return new CircleImage(Target.RADIUS, OutlineMode.SOLID,
+                this.color(waterHeight, maxHeight));
+    }
+
+    // draw the target into the given frame, whose top-left corner is the
+    // cell at left, top
+    // EFFECT: modifies the frame's pixels under the target
+    void drawInto(FrameRaster frame, SpriteCache sprites, int waterHeight,
+            int maxHeight, int left, int top) {
+        frame.blit(sprites.circle(Target.RADIUS,
+                this.color(waterHeight, maxHeight)),
+                (this.link.x - left) * Cell.CELLSIZE,
+                (this.link.y - top) * Cell.CELLSIZE);
+    }
+
+    // get the colour of the target
+    abstract Color color(int waterHeight, int maxHeight);
 
     // check if this target is alive
     boolean isAlive() {
@@ -526,14 +720,13 @@ class PieceTarget extends Target {
         super(link);
     }
 
-    // draw this piece based on urgency of the water height
-    WorldImage draw(int waterHeight, int maxHeight) {
+    // colour this piece based on urgency of the water height
+    Color color(int waterHeight, int maxHeight) {
         Color safest = Color.DARK_GRAY;
         Color unsafest = Color.RED;
 
-        return new CircleImage((Cell.CELLSIZE - 2) / 2, OutlineMode.SOLID,
-                new Utility().mix(safest, unsafest, Math.max(0,
-                        (this.link.height - waterHeight) / maxHeight)));
+        return new Utility().mix(safest, unsafest,
+                Math.max(0, (this.link.height - waterHeight) / maxHeight));
     }
 }
 
@@ -542,10 +735,9 @@ class HelicopterTarget extends Target {
         super(link);
     }
 
-    // draw the helicopter
-    WorldImage draw(int waterHeight, int maxHeight) {
-        return new CircleImage((Cell.CELLSIZE - 2) / 2, OutlineMode.SOLID,
-                Color.MAGENTA);
+    // colour the helicopter
+    Color color(int waterHeight, int maxHeight) {
+        return Color.MAGENTA;
     }
 }
 
@@ -562,14 +754,30 @@ class Player {
                 OutlineMode.SOLID, Color.BLACK);
     }
 
+    // draw the player into the given frame, whose top-left corner is the
+    // cell at left, top
+    // EFFECT: modifies the frame's pixels under the player
+    void drawInto(FrameRaster frame, SpriteCache sprites, int left, int top) {
+        frame.blit(sprites.square(Cell.CELLSIZE - 2, Color.BLACK),
+                (this.link.x - left) * Cell.CELLSIZE,
+                (this.link.y - top) * Cell.CELLSIZE);
+    }
+
     // draw the player on top of the given image
     WorldImage drawInto(WorldImage world) {
+        return this.drawInto(world, Cell.CELLSIZE, 0, 0);
+    }
+
+    // draw the player on top of an image drawn with the given number of
+    // pixels per cell, whose top-left corner is the cell at left, top
+    WorldImage drawInto(WorldImage world, double cellPixels, int left,
+            int top) {
         WorldImage empty = new PhantomImage(new EmptyImage(),
                 Cell.CELLSIZE * (AIslandGenerator.ISLAND_SIZE + 1),
                 Cell.CELLSIZE * (AIslandGenerator.ISLAND_SIZE + 1));
         WorldImage onEmpty = new OverlayOffsetAlign(AlignModeX.LEFT,
-                AlignModeY.TOP, empty, this.link.x * Cell.CELLSIZE,
-                this.link.y * Cell.CELLSIZE, this.draw());
+                AlignModeY.TOP, empty, (this.link.x - left) * cellPixels,
+                (this.link.y - top) * cellPixels, this.draw());
         return new OverlayImage(onEmpty, world);
     }
 
@@ -590,9 +798,10 @@ class Player {
         }
     }
 
-    // check if the move is legal
+    // check if the move is legal: a drowned player, whose crowd may still
+    // be playing, stays where it is
     boolean isLegalMove(Cell next) {
-        return !next.isFlooded;
+        return !next.isFlooded && this.isAlive();
     }
 
     // Move player up
@@ -671,19 +880,132 @@ class Win implements IWorldState {
     }
 }
 
-class ForbiddenIslandWorld extends World {
+// waiting for an island to be generated
+class Loading implements IWorldState {
+    // check if the given string matches "loading"
+    public boolean check(String s) {
+        return s.equals("loading");
+    }
+}
+
+class ForbiddenIslandWorld extends World implements IFloodListener {
+    // the world states, shared so that changing state does not allocate and
+    // the tick can tell states apart without comparing strings
+    static final IWorldState MENU = new Menu();
+    static final IWorldState INGAME = new InGame();
+    static final IWorldState LOSE = new Lose();
+    static final IWorldState WIN = new Win();
+    static final IWorldState LOADING = new Loading();
+
     IList<Cell> board; // All the cells of the game,
                        // including the ocean
+    CellGrid grid; // the same cells, indexed by position
     int waterHeight; // the current height of the ocean
 
+    // the largest row and column index of the board
+    int islandSize = AIslandGenerator.ISLAND_SIZE;
+
+    // coarser copies of the board, for boards too large to draw cell by cell
+    LodPyramid lod;
+
+    // the board's heights and flooding as pixels, and whether to draw the
+    // terrain from them rather than from one image per cell
+    TerrainKernel kernel;
+    boolean rasterized = true;
+
+    // the pixels of the last frame drawn from the kernel, and the sprites
+    // drawn into it
+    FrameRaster frame;
+    SpriteCache sprites = new SpriteCache();
+
+    // the part of a large board shown around the player, unless the whole
+    // board is shown zoomed out
+    Camera camera = new Camera(AIslandGenerator.ISLAND_SIZE + 1);
+    boolean zoomedOut = false;
+
+    // cells flooded by the last flood, and the stack used to find them
+    ArrayList<Cell> flooded = new ArrayList<Cell>();
+    ArrayList<Cell> floodStack = new ArrayList<Cell>();
+    // how new games flood the board when the water rises: cell by cell, in
+    // rounds spread across the pool by bands of rows, or as planes of bits
+    // 64 cells at a time, and the engine flooding this game if it is not
+    // flooded cell by cell
+    static final int FLOOD_CELLS = 0;
+    static final int FLOOD_PARALLEL = 1;
+    static final int FLOOD_BITS = 2;
+    int floodMode = ForbiddenIslandWorld.FLOOD_CELLS;
+    IFloodEngine engine;
+
+    // whether new games spread water a cell per tick rather than filling
+    // instantly, and the water spreading in this game if it does
+    boolean tidalMode = false;
+    TidalFlow tidal;
+    // when each cell floods, and the dry regions at every water height, for
+    // telling when a target is cut off from the player
+    FloodSchedule schedule;
+    DryRegions regions;
+    // how far each cell is from the helicopter, and whether to show the way
+    // there
+    HomeField home;
+    boolean hintMode = false;
+    // who is told of the cells flooding, and the targets watched through it:
+    // the pieces and helicopter last watched, the watches on their cells,
+    // how many pieces are left to pick up and how many watched targets have
+    // been flooded, so ending the game does not look at every target
+    FloodBus bus;
+    IList<Target> watchedItems;
+    Cell watchedHelicopter;
+    int[] watches = new int[16];
+    int watchCount;
+    int piecesLeft;
+    int drowned;
+    // whether a target was cut off from the player when last checked, and
+    // the water height, the player's dry region, the pieces and the
+    // helicopter's cell it was checked for
+    boolean cutOff;
+    int cutWater;
+    int cutRegion;
+    IList<Target> cutItems;
+    Cell cutHelicopter;
+
     // the maximum height of the cells
     int maxHeight;
 
     // Tick counter
     int tick;
+    // whether the water has risen since the last flood
+    boolean floodDue = false;
+
+    // how key presses in game are played: each at once as a move and a tick,
+    // queued and played as moves at the next tick, or queued and played at
+    // the next tick as a move and a tick each with one flood for them all
+    static final int KEYS_IMMEDIATE = 0;
+    static final int KEYS_BATCHED = 1;
+    static final int KEYS_STEPPED = 2;
+    int keyMode = ForbiddenIslandWorld.KEYS_IMMEDIATE;
+    // the keys waiting for the next tick, the most kept, and the most played
+    // in one tick
+    ArrayDeque<String> keys = new ArrayDeque<String>();
+    int keysKept = 16;
+    int keysPerTick = 4;
+
+    // whether new games keep their last ticks to step back through, the
+    // ticks this game keeps if it does, how many are kept, and how many ticks
+    // b steps back
+    boolean historyMode = false;
+    History history;
+    int historyKept = 4096;
+    int rewindSteps = 10;
+
+    // how many agents new games put on the island with the player, as an
+    // index into the sizes to choose from, and the agents of this game if
+    // there are any
+    static final int[] CROWD_SIZES = { 0, 100, 500 };
+    int crowdMode = 0;
+    Crowd crowd;
 
     // Clock
-    Integer score;
+    int score;
 
     // Player
     Player player;
@@ -698,15 +1020,37 @@ class ForbiddenIslandWorld extends World {
     AIslandGenerator mountain = new MountainIslandGenerator(64);
     AIslandGenerator random = new RandomIslandGenerator(64);
     AIslandGenerator terrain = new RandomTerrainIslandGenerator(128);
+    AIslandGenerator noise = new NoiseIslandGenerator(64);
 
     // World State
-    IWorldState state = new Menu();
+    IWorldState state = ForbiddenIslandWorld.MENU;
+
+    // Islands generated ahead of time, if the world has a pool, and the
+    // island being generated while the world is loading
+    IslandPool pool;
+    Future<IList<Cell>> loading;
+    AIslandGenerator loadingGen;
+
+    // the islands made from seeds, kept to start them again without
+    // generating them
+    IslandCache cache = new IslandCache(1 << 18);
+
+    // where the game is recorded, if it is
+    EventLog events;
 
     // creates a default IslandWorld
     ForbiddenIslandWorld() {
         // default
     }
 
+    // creates an IslandWorld whose generators make boards of the given size
+    ForbiddenIslandWorld(int islandSize) {
+        this.mountain = new MountainIslandGenerator(64, islandSize);
+        this.random = new RandomIslandGenerator(64, islandSize);
+        this.terrain = new RandomTerrainIslandGenerator(128, islandSize);
+        this.noise = new NoiseIslandGenerator(64, islandSize);
+    }
+
     // creates an IslandWorld using the given generator
     ForbiddenIslandWorld(AIslandGenerator gen) {
         this.reset(gen);
@@ -726,6 +1070,9 @@ class ForbiddenIslandWorld extends World {
         else if (this.state.check("win")) {
             return this.makeWinScene();
         }
+        else if (this.state.check("loading")) {
+            return this.makeLoadingScene();
+        }
         return defaultScene();
     }
 
@@ -740,15 +1087,61 @@ class ForbiddenIslandWorld extends World {
     WorldScene makeMenuScene() {
         WorldScene res = this.defaultScene();
         WorldImage text = new TextImage(
-                "m - mountain | r - random | t - terrain", 30, Color.BLACK);
+                "m - mountain | r - random | t - terrain | n - noise", 30,
+                Color.BLACK);
+        WorldImage daily = new TextImage("d - today's island", 30,
+                Color.BLACK);
+        String tide;
+        if (this.tidalMode) {
+            tide = "on";
+        }
+        else {
+            tide = "off";
+        }
+        WorldImage tidal = new TextImage("w - tidal water: " + tide, 30,
+                Color.BLACK);
+        String[] modes = { "immediate", "batched", "stepped" };
+        WorldImage keys = new TextImage("k - keys: " + modes[this.keyMode], 30,
+                Color.BLACK);
+        String rewind;
+        if (this.historyMode) {
+            rewind = "on";
+        }
+        else {
+            rewind = "off";
+        }
+        WorldImage history = new TextImage("h - rewind with b: " + rewind, 30,
+                Color.BLACK);
+        String hint;
+        if (this.hintMode) {
+            hint = "on";
+        }
+        else {
+            hint = "off";
+        }
+        WorldImage path = new TextImage("p - path home: " + hint, 30,
+                Color.BLACK);
+        String[] engines = { "cells", "parallel", "bits" };
+        WorldImage engine = new TextImage("e - flood engine: "
+                + engines[this.floodMode], 30, Color.BLACK);
+        WorldImage crowd = new TextImage("c - crowd: "
+                + ForbiddenIslandWorld.CROWD_SIZES[this.crowdMode], 30,
+                Color.BLACK);
+        res.placeImageXY(daily, 450, 375);
         res.placeImageXY(text, 450, 450);
+        res.placeImageXY(tidal, 450, 525);
+        res.placeImageXY(keys, 450, 600);
+        res.placeImageXY(history, 450, 675);
+        res.placeImageXY(path, 450, 750);
+        res.placeImageXY(engine, 450, 825);
+        res.placeImageXY(crowd, 450, 900);
         return res;
     }
 
     // draw the game scene
     WorldScene makeGameScene() {
         WorldScene scene = this.defaultScene();
-        WorldImage score = new TextImage(this.score.toString(), 30,
+        WorldImage score = new TextImage(Integer.toString(this.score), 30,
                 Color.MAGENTA);
         scene.placeImageXY(this.drawInGame(),
                 (int) ((AIslandGenerator.ISLAND_SIZE / 2.0) * Cell.CELLSIZE)
@@ -763,10 +1156,11 @@ class ForbiddenIslandWorld extends World {
     WorldScene makeLoseScene() {
         WorldScene scene = this.defaultScene();
         WorldImage lose = new TextImage("You lose", 30, Color.BLACK);
-        WorldImage score = new TextImage("Your score: " + this.score.toString(),
+        WorldImage score = new TextImage("Your score: " + Integer.toString(this.score),
                 30, Color.BLACK);
         WorldImage menu = new TextImage(
-                "m - mountain | r - random | t - terrain", 30, Color.BLACK);
+                "m - mountain | r - random | t - terrain | n - noise", 30,
+                Color.BLACK);
         scene.placeImageXY(lose, 450, 375);
         scene.placeImageXY(score, 450, 450);
         scene.placeImageXY(menu, 450, 525);
@@ -777,86 +1171,427 @@ class ForbiddenIslandWorld extends World {
     WorldScene makeWinScene() {
         WorldScene scene = this.defaultScene();
         WorldImage lose = new TextImage("You win", 30, Color.BLACK);
-        WorldImage score = new TextImage("Your score: " + this.score.toString(),
+        WorldImage score = new TextImage("Your score: " + Integer.toString(this.score),
                 30, Color.BLACK);
         WorldImage menu = new TextImage(
-                "m - mountain | r - random | t - terrain", 30, Color.BLACK);
+                "m - mountain | r - random | t - terrain | n - noise", 30,
+                Color.BLACK);
         scene.placeImageXY(lose, 450, 375);
         scene.placeImageXY(score, 450, 450);
         scene.placeImageXY(menu, 450, 525);
         return scene;
     }
 
-    // draw the in-game screen
+    // draw the loading scene
+    WorldScene makeLoadingScene() {
+        WorldScene scene = this.defaultScene();
+        WorldImage text = new TextImage("Generating island...", 30,
+                Color.BLACK);
+        scene.placeImageXY(text, 450, 450);
+        return scene;
+    }
+
+    // draw the in-game screen: the cells the camera shows around the player,
+    // or the whole of a large board zoomed out, under the targets, helicopter
+    // and player
     WorldImage drawInGame() {
-        WorldImage result = new EmptyImage();
-        ArrayList<WorldImage> rows = new ArrayList<WorldImage>();
+        if (this.zoomedOut
+                && this.islandSize > AIslandGenerator.ISLAND_SIZE) {
+            return this.drawZoomedOut();
+        }
+
+        this.camera.follow(this.player.link, this.islandSize + 1);
+        if (this.rasterized) {
+            return this.drawFrame();
+        }
 
-        int idx = 0;
-        for (Cell cell : this.board) {
-            if (idx == 0) {
-                rows.add(new EmptyImage());
+        WorldImage result = this.drawCells();
+        for (Target target : this.items) {
+            if (this.camera.shows(target.link)) {
+                result = target.drawInto(result, this.waterHeight,
+                        this.maxHeight, Cell.CELLSIZE, this.camera.left,
+                        this.camera.top);
             }
-            rows.set(rows.size() - 1, new BesideImage(rows.get(rows.size() - 1),
-                    cell.draw(this.waterHeight, this.maxHeight)));
-            idx += 1;
-            idx = idx % (AIslandGenerator.ISLAND_SIZE + 1);
         }
 
-        for (WorldImage image : rows) {
-            result = new AboveImage(result, image);
+        if (this.camera.shows(this.helicopter.link)) {
+            result = this.helicopter.drawInto(result, this.waterHeight,
+                    this.maxHeight, Cell.CELLSIZE, this.camera.left,
+                    this.camera.top);
         }
+        result = this.player.drawInto(result, Cell.CELLSIZE, this.camera.left,
+                this.camera.top);
+
+        return result;
+    }
+
+    // draw the cells the camera shows from the kernel's pixels into the frame,
+    // with the sprites of the targets, helicopter and player among them
+    // copied on top
+    WorldImage drawFrame() {
+        int pixels = this.camera.shown * Cell.CELLSIZE;
+        if (this.frame == null || this.frame.width != pixels) {
+            this.frame = new FrameRaster(pixels, pixels);
+        }
+
+        this.kernel.shade(this.camera, this.waterHeight, this.maxHeight);
+        this.frame.drawTerrain(this.kernel, this.camera);
 
         for (Target target : this.items) {
-            result = target.drawInto(result, this.waterHeight, this.maxHeight);
+            if (this.camera.shows(target.link)) {
+                target.drawInto(this.frame, this.sprites, this.waterHeight,
+                        this.maxHeight, this.camera.left, this.camera.top);
+            }
         }
 
-        result = this.helicopter.drawInto(result, this.waterHeight,
+        if (this.crowd != null) {
+            this.crowd.drawInto(this.frame, this.sprites, this.camera);
+        }
+        if (this.hintMode) {
+            this.drawPathHome();
+        }
+        if (this.camera.shows(this.helicopter.link)) {
+            this.helicopter.drawInto(this.frame, this.sprites,
+                    this.waterHeight, this.maxHeight, this.camera.left,
+                    this.camera.top);
+        }
+        this.player.drawInto(this.frame, this.sprites, this.camera.left,
+                this.camera.top);
+
+        return this.frame.toImage();
+    }
+
+    // mark the cells of a shortest way from the player to the helicopter
+    // EFFECT: modifies the frame's pixels under the marks
+    void drawPathHome() {
+        HomeField field = this.homeField();
+        int inset = (Cell.CELLSIZE - 5) / 2;
+        for (Cell cell = field.towardHome(this.player.link); cell != null
+                && cell != this.helicopter.link; cell = field
+                        .towardHome(cell)) {
+            if (this.camera.shows(cell)) {
+                this.frame.blit(this.sprites.square(5, Color.YELLOW),
+                        (cell.x - this.camera.left) * Cell.CELLSIZE + inset,
+                        (cell.y - this.camera.top) * Cell.CELLSIZE + inset);
+            }
+        }
+    }
+
+    // draw the cells the camera shows, one image per cell
+    WorldImage drawCells() {
+        WorldImage result = new EmptyImage();
+
+        for (int y = this.camera.top; y < this.camera.bottom(); y += 1) {
+            WorldImage row = new EmptyImage();
+            for (int x = this.camera.left; x < this.camera.right(); x += 1) {
+                row = new BesideImage(row, this.grid.cellAt(x, y)
+                        .draw(this.waterHeight, this.maxHeight));
+            }
+            result = new AboveImage(result, row);
+        }
+
+        return result;
+    }
+
+    // draw the whole board scaled down to fit the scene, using the level of
+    // the pyramid that has about one entry per pixel
+    WorldImage drawZoomedOut() {
+        int pixels = (AIslandGenerator.ISLAND_SIZE + 1) * Cell.CELLSIZE;
+        double cellPixels = pixels / (this.islandSize + 1.0);
+        WorldImage result = this.lod.render(pixels, this.waterHeight,
                 this.maxHeight);
-        result = this.player.drawInto(result);
+
+        for (Target target : this.items) {
+            result = target.drawInto(result, this.waterHeight, this.maxHeight,
+                    cellPixels, 0, 0);
+        }
+
+        result = this.helicopter.drawInto(result, this.waterHeight,
+                this.maxHeight, cellPixels, 0, 0);
+        result = this.player.drawInto(result, cellPixels, 0, 0);
 
         return result;
     }
 
     // handle ticking
-    // EFFECT: if in game, update the tick counter, increase the water height,
-    // check collisions, and update the state
+    // EFFECT: if in game, play the keys waiting for this tick, then update
+    // the tick counter, increase the water height, check collisions, and
+    // update the state. Once the arrays the flood uses have grown, this
+    // allocates nothing
     public void onTick() {
-        if (this.state.check("ingame")) {
-            this.tick = (this.tick + 1) % 10;
-            if (this.tick == 0) {
-                this.waterHeight += 1;
-                this.flood();
+        if (this.state == ForbiddenIslandWorld.LOADING) {
+            this.finishLoading();
+        }
+        else if (this.state == ForbiddenIslandWorld.INGAME) {
+            this.playKeys();
+            if (this.state == ForbiddenIslandWorld.INGAME) {
+                this.advance();
+                this.floodIfDue();
+                if (this.crowd != null) {
+                    this.crowd.step();
+                }
+
+                // check collisions with targets
+                this.checkCollisions();
+
+                // check game state
+                this.updateState();
+            }
+            if (this.history != null) {
+                this.history.record(this);
             }
+        }
+    }
 
-            // check collisions with targets
+    // play up to keysPerTick of the keys waiting for this tick, dropping the
+    // rest if the game ends
+    // EFFECT: moves the player, and when stepping, updates the tick counter
+    // and water height for each key
+    void playKeys() {
+        for (int i = 0; i < this.keysPerTick && !this.keys.isEmpty()
+                && this.state == ForbiddenIslandWorld.INGAME; i += 1) {
+            this.move(this.keys.poll());
+            if (this.keyMode == ForbiddenIslandWorld.KEYS_STEPPED) {
+                this.advance();
+            }
             this.checkCollisions();
+            this.updateState();
+        }
+        if (this.state != ForbiddenIslandWorld.INGAME) {
+            this.keys.clear();
+        }
+    }
+
+    // move the player by the given key, which scores a point. Water that
+    // stepped keys raised floods only at the end of the tick, but no move
+    // is made onto a cell already below it, as no move would be if each key
+    // were played as a tick of its own
+    // EFFECT: modifies the player and score
+    void move(String key) {
+        Cell from = this.player.link;
+        this.player.handleKey(key);
+        if (this.floodDue && this.tidal == null && !this.schedule
+                .isDry(this.grid.indexOf(this.player.link), this.waterHeight)) {
+            this.player.link = from;
+        }
+        if (this.events != null && this.player.link != from) {
+            this.events.move(this.grid.indexOf(this.player.link));
+        }
+        this.score += 1;
+    }
 
-            // check game state
+    // update the tick counter, and raise the water every tenth tick, leaving
+    // the flood for floodIfDue except for tidal water, which spreads a step
+    // every tick
+    // EFFECT: modifies tick and waterHeight
+    void advance() {
+        this.tick = (this.tick + 1) % 10;
+        if (this.events != null) {
+            this.events.tick();
+        }
+        if (this.tick == 0) {
+            this.waterHeight += 1;
+            this.floodDue = true;
+            if (this.events != null) {
+                this.events.water(this.waterHeight);
+            }
+        }
+        if (this.tidal != null) {
+            this.flowTide();
+        }
+    }
+
+    // step the game back by the given number of ticks, or as far as its
+    // history goes, returning the number of ticks stepped back, which is 0
+    // if the game keeps no history
+    // EFFECT: modifies the board, tick counter, water height, score, player,
+    // targets and state, and records the step back in the event log
+    int rewind(int steps) {
+        if (this.history == null) {
+            return 0;
+        }
+        this.floodDue = false;
+        this.keys.clear();
+        this.flooded.clear();
+        // cells dry out going back, which the field and the count of flooded
+        // targets cannot follow
+        this.bus.ignore(this.home);
+        this.home = null;
+        this.watchedItems = null;
+        int stepped = this.history.rewind(this, steps);
+        if (this.events != null && stepped > 0) {
+            this.events.rewind(stepped, this.waterHeight,
+                    this.grid.indexOf(this.player.link));
+        }
+        return stepped;
+    }
+
+    // skip the ticks in which nothing can happen, when no cell floods and so
+    // no target can be lost or cut off, and play the next tick at which the
+    // water floods a cell, or at which the player gets too far from the
+    // helicopter to reach it if that comes first. This leaves the game as
+    // ticking to it one tick at a time would. Returns the number of ticks
+    // played, which is 0 if no cell is left to flood, keys are waiting, the
+    // water is tidal or the game is not being played
+    // EFFECT: modifies the tick counter, water height, board, targets and
+    // state
+    int fastForward() {
+        if (this.state != ForbiddenIslandWorld.INGAME || this.tidal != null
+                || !this.keys.isEmpty() || this.crowd != null) {
+            return 0;
+        }
+        this.floodIfDue();
+        int next = this.schedule.nextThreshold(this.waterHeight);
+        if (next == this.schedule.thresholds.length) {
+            return 0;
+        }
+
+        int level = this.schedule.thresholds[next];
+        int ticks = 10 - this.tick + 10 * (level - this.waterHeight - 1);
+        // the player may be too far from the helicopter before then
+        int lost = this.ticksUntilTooFar();
+        if (lost < ticks) {
+            this.skip(lost);
             this.updateState();
+            if (this.history != null) {
+                this.history.record(this, lost);
+            }
+            return lost;
+        }
+        this.skip(ticks);
+
+        // the cells at this level are exactly the ones the flood would reach
+        this.flooded.clear();
+        for (int i = this.schedule.starts[next]; i < this.schedule.starts[next
+                + 1]; i += 1) {
+            Cell cell = this.grid.get(this.schedule.order[i]);
+            if (!cell.isFlooded) {
+                cell.isFlooded = true;
+                this.flooded.add(cell);
+            }
+        }
+        this.recordFlooded();
+
+        this.checkCollisions();
+        this.updateState();
+        if (this.history != null) {
+            this.history.record(this, ticks);
         }
+        return ticks;
+    }
+
+    // move the tick counter and water on by the given number of ticks in
+    // which no cell floods
+    // EFFECT: modifies the tick counter and water height, and records them
+    // in the event log
+    void skip(int ticks) {
+        while (ticks > 0) {
+            int step = Math.min(ticks, 10 - this.tick);
+            ticks -= step;
+            this.tick = (this.tick + step) % 10;
+            if (this.events != null) {
+                this.events.tick(step);
+            }
+            if (this.tick == 0) {
+                this.waterHeight += 1;
+                if (this.events != null) {
+                    this.events.water(this.waterHeight);
+                }
+            }
+        }
+    }
+
+    // play the rest of the game without moving, returning the number of
+    // ticks played
+    // EFFECT: modifies the tick counter, water height, board, targets and
+    // state
+    int playIdle() {
+        int ticks = 0;
+        for (int skipped = this.fastForward(); skipped > 0; skipped = this
+                .fastForward()) {
+            ticks += skipped;
+        }
+        return ticks;
+    }
+
+    // flood to the water height if it has risen since the last flood, which
+    // floods the same cells as flooding at each height on the way
+    // EFFECT: floods the board
+    void floodIfDue() {
+        if (this.floodDue && this.tidal == null) {
+            this.flood();
+        }
+        this.floodDue = false;
     }
 
     // update the game state
     // EFFECT: modifies the game state based on win and lose conditions
     public void updateState() {
         if (this.isOver()) {
-            this.state = new Lose();
+            this.state = ForbiddenIslandWorld.LOSE;
+            if (this.events != null) {
+                this.events.end(false);
+            }
         }
         else if (this.isWin()) {
-            this.state = new Win();
+            this.state = ForbiddenIslandWorld.WIN;
+            if (this.events != null) {
+                this.events.end(true);
+            }
         }
     }
 
     // handle keys
-    // EFFECT: if in game, allow player to handle input, and run onTick().
-    // Otherwise,
-    // handle resetting the game
+    // EFFECT: z zooms in and out of large boards. In game, f skips to the
+    // next flood, b steps back, and any other key moves the player and plays
+    // a tick at once, or waits for the next tick when keys are batched or
+    // stepped. Once the game is won or lost, b steps back into it. Otherwise
+    // w, k, h, p, e and c choose the water, key, history, hint, flood and
+    // crowd modes, and m, r, t, n and d start a game
     public void onKeyEvent(String key) {
-        if (this.state.check("ingame")) {
-            this.player.handleKey(key);
-            this.score += 1;
-            this.onTick();
+        if (key.equals("z")) {
+            this.zoomedOut = !this.zoomedOut;
+        }
+        else if (this.state == ForbiddenIslandWorld.INGAME) {
+            if (key.equals("f")) {
+                this.fastForward();
+            }
+            else if (key.equals("b")) {
+                this.rewind(this.rewindSteps);
+            }
+            else if (this.keyMode == ForbiddenIslandWorld.KEYS_IMMEDIATE) {
+                this.move(key);
+                this.onTick();
+            }
+            else if (this.keys.size() < this.keysKept) {
+                this.keys.add(key);
+            }
+        }
+        else if (key.equals("w")) {
+            this.tidalMode = !this.tidalMode;
+        }
+        else if (key.equals("k")) {
+            this.keyMode = (this.keyMode + 1) % 3;
+        }
+        else if (key.equals("h")) {
+            this.historyMode = !this.historyMode;
+        }
+        else if (key.equals("p")) {
+            this.hintMode = !this.hintMode;
+        }
+        else if (key.equals("e")) {
+            this.floodMode = (this.floodMode + 1) % 3;
+        }
+        else if (key.equals("c")) {
+            this.crowdMode = (this.crowdMode + 1)
+                    % ForbiddenIslandWorld.CROWD_SIZES.length;
+        }
+        else if (key.equals("b")) {
+            // only back into the game just ended, not while another loads
+            if (this.state == ForbiddenIslandWorld.WIN
+                    || this.state == ForbiddenIslandWorld.LOSE) {
+                this.rewind(this.rewindSteps);
+            }
         }
         else {
             this.handleReset(key);
@@ -867,41 +1602,98 @@ class ForbiddenIslandWorld extends World {
     // EFFECT: resets the game
     void handleReset(String key) {
         if (key.equals("m")) {
-            this.reset(this.mountain);
+            this.start(this.mountain);
         }
         else if (key.equals("r")) {
-            this.reset(this.random);
+            this.start(this.random);
         }
         else if (key.equals("t")) {
-            this.reset(this.terrain);
+            this.start(this.terrain);
+        }
+        else if (key.equals("n")) {
+            this.start(this.noise);
+        }
+        else if (key.equals("d")) {
+            this.startSeeded(this.noise, LocalDate.now().toEpochDay());
+        }
+    }
+
+    // start a game on the island the given generator makes from the given
+    // seed, from the cache if it has been made before
+    // EFFECT: resets the game
+    void startSeeded(AIslandGenerator gen, long seed) {
+        this.reset(gen, this.cache.board(gen, seed));
+    }
+
+    // keep islands for each of this world's generators ready in the given
+    // pool
+    // EFFECT: sets the pool and starts it filling
+    void usePool(IslandPool pool) {
+        this.pool = pool;
+        pool.add(this.mountain);
+        pool.add(this.random);
+        pool.add(this.terrain);
+        pool.add(this.noise);
+    }
+
+    // start a game on an island from the given generator, taking one from
+    // the pool if it has one ready, and otherwise generating one in the
+    // background while the world is loading
+    // EFFECT: resets the game, or sets the world to loading
+    void start(AIslandGenerator gen) {
+        if (this.pool == null) {
+            this.reset(gen);
+            return;
+        }
+
+        IList<Cell> board = this.pool.take(gen);
+        if (board != null) {
+            this.reset(gen, board);
+        }
+        else {
+            this.loading = this.pool.generate(gen);
+            this.loadingGen = gen;
+            this.state = ForbiddenIslandWorld.LOADING;
+        }
+    }
+
+    // start the game if the island being loaded has been generated
+    // EFFECT: resets the game once the island is ready
+    void finishLoading() {
+        if (this.loading.isDone()) {
+            try {
+                this.reset(this.loadingGen, this.loading.get());
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
         }
     }
 
     // get a random non-flooded cell from the list of cells
     Cell getRandomDry() {
-        int rand = (int) (Math.random() * (AIslandGenerator.ISLAND_SIZE + 1)
-                * (AIslandGenerator.ISLAND_SIZE + 1));
+        int rand = (int) (Math.random() * this.grid.size());
 
-        while (this.board.get(rand).isFlooded) {
-            rand = (int) (Math.random() * (AIslandGenerator.ISLAND_SIZE + 1)
-                    * (AIslandGenerator.ISLAND_SIZE + 1));
+        while (this.grid.get(rand).isFlooded) {
+            rand = (int) (Math.random() * this.grid.size());
         }
 
-        return this.board.get(rand);
+        return this.grid.get(rand);
     }
 
     // get a random non-flooded cell from the list of cells which is also at
     // maxHeight
     Cell getRandomDryMaxHeight() {
-        int rand = (int) (Math.random() * (AIslandGenerator.ISLAND_SIZE + 1)
-                * (AIslandGenerator.ISLAND_SIZE + 1));
+        int rand = (int) (Math.random() * this.grid.size());
 
-        while (this.board.get(rand).height != this.maxHeight) {
-            rand = (int) (Math.random() * (AIslandGenerator.ISLAND_SIZE + 1)
-                    * (AIslandGenerator.ISLAND_SIZE + 1));
+        while (this.grid.get(rand).height != this.maxHeight) {
+            rand = (int) (Math.random() * this.grid.size());
         }
 
-        return this.board.get(rand);
+        return this.grid.get(rand);
     }
 
     // place items in the world
@@ -931,67 +1723,363 @@ class ForbiddenIslandWorld extends World {
     // flood the world
     // EFFECT: modifies the board
     void flood() {
-        for (Cell cell : this.board) {
-            if (cell.left.isFlooded || cell.right.isFlooded
-                    || cell.top.isFlooded || cell.bottom.isFlooded) {
-                cell.flood(this.waterHeight);
-            }
-        }
+        this.flood(this.waterHeight);
     }
 
     // flood the world with the given water height
-    // EFFECT: modifies the board
+    // EFFECT: modifies the board, records the newly flooded cells, and
+    // updates the pyramid and kernel with them
     void flood(int waterHeight) {
-        for (Cell cell : this.board) {
-            if (cell.left.isFlooded || cell.right.isFlooded
-                    || cell.top.isFlooded || cell.bottom.isFlooded) {
-                cell.flood(waterHeight);
+        this.flooded.clear();
+        if (this.engine != null) {
+            this.engine.flood(waterHeight, this.flooded);
+        }
+        else {
+            for (int i = 0; i < this.grid.size(); i += 1) {
+                Cell cell = this.grid.get(i);
+                if (cell.left.isFlooded || cell.right.isFlooded
+                        || cell.top.isFlooded || cell.bottom.isFlooded) {
+                    cell.flood(waterHeight, this.floodStack, this.flooded);
+                }
             }
         }
+
+        this.recordFlooded();
+    }
+
+    // spread the tide by one step
+    // EFFECT: floods the cells the water reached, records them, and updates
+    // the pyramid and kernel with them
+    void flowTide() {
+        this.tidal.step(this.waterHeight);
+        this.flooded.clear();
+        for (int b = 0; b < this.tidal.bands.length; b += 1) {
+            TidalBand band = this.tidal.bands[b];
+            for (int i = 0; i < band.freshCount; i += 1) {
+                Cell cell = this.grid.get(band.fresh[i]);
+                cell.isFlooded = true;
+                this.flooded.add(cell);
+            }
+        }
+
+        this.recordFlooded();
+    }
+
+    // tell the watchers of the cells that just flooded, and the pyramid,
+    // kernel, home field and record of the game, which observe the bus
+    // EFFECT: calls the bus's listeners and observers
+    void recordFlooded() {
+        if (this.bus != null) {
+            this.bus.publish(this.flooded, this.grid);
+        }
     }
 
     // update the targets to remove the ones that the player has landed on
     // EFFECT: modifies the targets by removing the one that player is currently
     // touching
     void checkCollisions() {
-        IList<Target> res = new Empty<Target>();
-        for (Target t : this.items) {
-            res = t.pickup(this.player, res);
+        if (this.anyCollide()) {
+            if (this.events != null) {
+                this.events.pickup(this.grid.indexOf(this.player.link));
+            }
+            IList<Target> res = new Empty<Target>();
+            for (Target t : this.items) {
+                res = t.pickup(this.player, res);
+            }
+
+            this.items = res;
         }
+    }
 
-        this.items = res;
+    // check if the player is on any of the targets, walking the list by hand
+    // so no iterator is made
+    boolean anyCollide() {
+        for (IList<Target> rest = this.items; rest.isCons(); rest = rest
+                .asCons().next) {
+            if (rest.asCons().item.collide(this.player)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    // check if we have lost
+    // check if we have lost: a target has flooded, or neither the player nor
+    // any agent of the crowd is above water, or can still reach every target
+    // in time
     boolean isOver() {
-        boolean res = true;
-        for (Target t : this.items) {
-            res = res && t.isAlive();
+        this.watchTargets();
+        return this.drowned > 0 || !this.anyAlive() || this.isCutOff()
+                || this.isTooFar();
+    }
+
+    // check if the player or any agent of the crowd is above water
+    boolean anyAlive() {
+        return this.player.isAlive()
+                || this.crowd != null && this.crowd.aliveCount > 0;
+    }
+
+    // count a watched target's cell flooding
+    // EFFECT: increments drowned
+    public void cellFlooded(int idx) {
+        this.drowned += 1;
+    }
+
+    // watch the cells of the pieces and the helicopter, unless they are the
+    // ones already watched, which they are until a piece is picked up
+    // EFFECT: modifies the bus, watches, piecesLeft and drowned
+    void watchTargets() {
+        if (this.items == this.watchedItems
+                && this.helicopter.link == this.watchedHelicopter) {
+            return;
         }
 
-        res = res && this.player.isAlive() && this.helicopter.isAlive();
-        return !res;
+        for (int i = 0; i < this.watchCount; i += 1) {
+            this.bus.giveUp(this.watches[i]);
+        }
+        this.watchCount = 0;
+        this.piecesLeft = 0;
+        this.drowned = 0;
+        for (IList<Target> rest = this.items; rest.isCons(); rest = rest
+                .asCons().next) {
+            this.watch(rest.asCons().item);
+            this.piecesLeft += 1;
+        }
+        this.watch(this.helicopter);
+        this.watchedItems = this.items;
+        this.watchedHelicopter = this.helicopter.link;
+    }
+
+    // watch the cell of the given target, counting it now if it is flooded
+    // EFFECT: modifies the bus, watches and drowned
+    void watch(Target target) {
+        if (this.watchCount == this.watches.length) {
+            this.watches = Arrays.copyOf(this.watches, this.watchCount * 2);
+        }
+        this.watches[this.watchCount] = this.bus
+                .watch(this.grid.indexOf(target.link), this);
+        this.watchCount += 1;
+        if (!target.isAlive()) {
+            this.drowned += 1;
+        }
+    }
+
+    // get the distances to the helicopter, searching again if it has moved
+    // EFFECT: may set home, and the bus's observers
+    HomeField homeField() {
+        if (this.home == null
+                || this.home.home != this.grid.indexOf(this.helicopter.link)) {
+            this.bus.ignore(this.home);
+            this.home = new HomeField(this.grid, this.helicopter.link);
+            this.bus.observe(this.home);
+        }
+        return this.home;
+    }
+
+    // check if the player, and every agent of the crowd, is too far from the
+    // helicopter to reach it before the tick it floods in, even if no other
+    // cell were to flood, which only the schedule can tell while the water
+    // spreads instantly
+    boolean isTooFar() {
+        if (this.tidal != null) {
+            return false;
+        }
+        int ticks = this.ticksToHelicopter();
+        boolean far = this.homeField().distanceOf(this.player.link) > this
+                .movesIn(ticks);
+        if (far && this.crowd != null) {
+            // agents move once a tick, after the water rises
+            far = this.crowd.nearest(this.homeField()) > ticks - 1L;
+        }
+        return far;
+    }
+
+    // get the number of ticks from now to the tick the helicopter floods in
+    int ticksToHelicopter() {
+        int level = this.schedule.levelOf(
+                this.grid.indexOf(this.helicopter.link));
+        return 10 - this.tick + 10 * (level - this.waterHeight - 1);
+    }
+
+    // get the number of moves the player has in the given number of ticks up
+    // to and including the tick the helicopter floods in. Batched keys are
+    // played before the water rises in each tick, so that tick's keys still
+    // count, while a move made any other way plays the tick after it
+    long movesIn(int ticks) {
+        if (this.keyMode == ForbiddenIslandWorld.KEYS_BATCHED) {
+            return (long) ticks * this.keysPerTick;
+        }
+        return ticks - 1;
+    }
+
+    // get the number of ticks from now until the player, standing still, is
+    // too far from the helicopter to reach it, which is at least 1
+    int ticksUntilTooFar() {
+        long distance = this.homeField().distanceOf(this.player.link);
+        long ticks = this.ticksToHelicopter();
+        long until;
+        if (this.keyMode == ForbiddenIslandWorld.KEYS_BATCHED) {
+            // the first tick with fewer ticks left than the player needs
+            long needed = (distance + this.keysPerTick - 1) / this.keysPerTick;
+            until = ticks - needed + 1;
+        }
+        else {
+            until = ticks - distance;
+        }
+        return (int) Math.max(until, 1);
+    }
+
+    // check if a piece or the helicopter is on dry land neither the player
+    // nor any agent of the crowd can walk to any longer, which only the
+    // schedule can tell while the water spreads instantly
+    boolean isCutOff() {
+        if (this.tidal != null) {
+            return false;
+        }
+
+        // the player only walks within its region, so the answer holds
+        // until the water rises or a target moves
+        int from = this.grid.indexOf(this.player.link);
+        int region = -1;
+        if (this.schedule.isDry(from, this.waterHeight)) {
+            region = this.regions.find(from, this.waterHeight);
+        }
+        if (this.cutItems != this.items
+                || this.cutHelicopter != this.helicopter.link
+                || this.cutWater != this.waterHeight
+                || this.cutRegion != region) {
+            this.cutOff = !this.regions.connected(from,
+                    this.grid.indexOf(this.helicopter.link), this.waterHeight);
+            for (IList<Target> rest = this.items; rest.isCons()
+                    && !this.cutOff; rest = rest.asCons().next) {
+                this.cutOff = !this.regions.connected(from,
+                        this.grid.indexOf(rest.asCons().item.link),
+                        this.waterHeight);
+            }
+            this.cutItems = this.items;
+            this.cutHelicopter = this.helicopter.link;
+            this.cutWater = this.waterHeight;
+            this.cutRegion = region;
+        }
+
+        // the agents move every tick, so the regions they are in are found
+        // again each time the player alone is cut off
+        if (this.cutOff && this.crowd != null) {
+            this.crowd.markRegions(this.waterHeight);
+            boolean cut = !this.canReach(from, this.helicopter.link);
+            for (IList<Target> rest = this.items; rest.isCons()
+                    && !cut; rest = rest.asCons().next) {
+                cut = !this.canReach(from, rest.asCons().item.link);
+            }
+            return cut;
+        }
+        return this.cutOff;
+    }
+
+    // check if the player, from the cell at the given index, or an agent of
+    // the crowd can walk to the given cell, as of the regions last marked
+    boolean canReach(int from, Cell cell) {
+        int idx = this.grid.indexOf(cell);
+        return this.regions.connected(from, idx, this.waterHeight)
+                || this.crowd.reaches(idx, this.waterHeight);
     }
 
     // check if we win
     boolean isWin() {
-        return !this.items.isCons() && this.helicopter.collide(this.player);
+        this.watchTargets();
+        return this.piecesLeft == 0 && (this.helicopter.collide(this.player)
+                || this.crowd != null && this.crowd
+                        .isAt(this.grid.indexOf(this.helicopter.link)));
+    }
+
+    // make the given number of agents, half heading for the targets and half
+    // wandering
+    IAgent[] makeAgents(int count) {
+        IAgent[] agents = new IAgent[count];
+        for (int a = 0; a < count; a += 1) {
+            if (a % 2 == 0) {
+                agents[a] = new SeekAgent();
+            }
+            else {
+                agents[a] = new WanderAgent();
+            }
+        }
+        return agents;
     }
 
     // reset this world with the given terrain generator
     // EFFECT: initialize the board, height, water height, player, helicopter,
     // score, and targets and set the game state to InGame
     void reset(AIslandGenerator gen) {
-        this.board = gen.generateTerrain();
+        this.reset(gen, gen.generateTerrain());
+    }
+
+    // reset this world with a board made by the given terrain generator
+    // EFFECT: initialize the board, height, water height, player, helicopter,
+    // score, and targets and set the game state to InGame
+    void reset(AIslandGenerator gen, IList<Cell> board) {
+        this.board = board;
+        this.islandSize = gen.islandSize;
+        this.grid = new CellGrid(this.board, gen.islandSize + 1);
+        this.lod = new LodPyramid(this.grid);
+        this.kernel = new TerrainKernel(this.grid);
+        this.schedule = new FloodSchedule(this.grid);
+        this.regions = new DryRegions(this.grid, this.schedule);
+        this.flooded.ensureCapacity(this.grid.size());
+        this.floodStack.ensureCapacity(this.grid.size());
+        if (this.tidalMode) {
+            this.tidal = new TidalFlow(this.grid);
+        }
+        else {
+            this.tidal = null;
+        }
+        if (this.floodMode == ForbiddenIslandWorld.FLOOD_PARALLEL) {
+            this.engine = new ParallelFlood(this.grid);
+        }
+        else if (this.floodMode == ForbiddenIslandWorld.FLOOD_BITS) {
+            this.engine = new BitboardFlood(this.grid);
+        }
+        else {
+            this.engine = null;
+        }
         this.maxHeight = gen.maxHeight;
         this.waterHeight = 0;
+        this.floodDue = false;
+        this.keys.clear();
         this.score = 0;
 
         this.createPlayer();
         this.createHelicopter();
         this.createTargets();
+        this.home = new HomeField(this.grid, this.helicopter.link);
+        this.bus = new FloodBus(this.grid.size());
+        this.bus.observe(this.lod);
+        this.bus.observe(this.kernel);
+        this.bus.observe(this.home);
+        if (this.events != null) {
+            this.bus.observe(this.events);
+        }
+        this.watchCount = 0;
+        this.watchedItems = null;
+        this.cutItems = null;
+        this.watchTargets();
+        int agents = ForbiddenIslandWorld.CROWD_SIZES[this.crowdMode];
+        if (agents > 0) {
+            this.crowd = new Crowd(this, this.makeAgents(agents), new Random());
+        }
+        else {
+            this.crowd = null;
+        }
 
-        this.state = new InGame();
+        this.state = ForbiddenIslandWorld.INGAME;
+        // the history does not keep the crowd, so a crowd cannot be rewound
+        if (this.historyMode && this.tidal == null && this.crowd == null) {
+            this.history = new History(this.grid, this.historyKept);
+            this.history.record(this);
+            this.bus.observe(this.history);
+        }
+        else {
+            this.history = null;
+        }
     }
 }
 
@@ -1102,22 +2190,31 @@ class ExamplesIslandGame {
         t.checkExpect(worldRandom.isWin(), true);
 
         this.initializeIslands();
-        worldRandom.items.asCons().item.link.isFlooded = true;
+        this.drown(worldRandom, worldRandom.items.asCons().item.link);
         worldRandom.onTick();
         t.checkExpect(worldRandom.state.check("lose"), true);
         t.checkExpect(worldRandom.isOver(), true);
 
-        worldTerrain.items.asCons().item.link.isFlooded = true;
+        this.drown(worldTerrain, worldTerrain.items.asCons().item.link);
         worldTerrain.onTick();
         t.checkExpect(worldTerrain.state.check("lose"), true);
         t.checkExpect(worldTerrain.isOver(), true);
 
-        worldMountain.items.asCons().item.link.isFlooded = true;
+        this.drown(worldMountain, worldMountain.items.asCons().item.link);
         worldMountain.onTick();
         t.checkExpect(worldMountain.state.check("lose"), true);
         t.checkExpect(worldMountain.isOver(), true);
     }
 
+    // flood the given cell of the world as the water would
+    // EFFECT: modifies the cell and the world's record of the last flood
+    void drown(ForbiddenIslandWorld world, Cell cell) {
+        cell.isFlooded = true;
+        world.flooded.clear();
+        world.flooded.add(cell);
+        world.recordFlooded();
+    }
+
     // test movement
     void testMovement(Tester t) {
         this.initializeIslands();
@@ -1287,6 +2384,166 @@ class ExamplesIslandGame {
         worldMountain.flood(0);
     }
 
+    // get the number of bytes the current thread has allocated so far
+    long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean())
+                        .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // test that ticks and moves in game allocate nothing, through floods and
+    // the end of the game
+    void testTickAllocation(Tester t) {
+        this.initializeIslands();
+        // warm up playing a game, and after it ends, so nothing is compiled
+        // again while measuring
+        for (int i = 0; i < 100; i += 1) {
+            this.worldTerrain.onTick();
+            this.worldTerrain.onKeyEvent("left");
+        }
+        this.worldTerrain.state = ForbiddenIslandWorld.LOSE;
+        for (int i = 0; i < 100; i += 1) {
+            this.worldTerrain.onTick();
+            this.worldTerrain.onKeyEvent("up");
+        }
+
+        this.worldMountain.waterHeight = 95;
+        long overhead = this.allocated();
+        overhead = this.allocated() - overhead;
+
+        long before = this.allocated();
+        for (int i = 0; i < 500; i += 1) {
+            this.worldMountain.onTick();
+            this.worldMountain.onKeyEvent("up");
+            this.worldMountain.onKeyEvent("down");
+        }
+        long after = this.allocated();
+
+        t.checkExpect(this.worldMountain.waterHeight > 97, true);
+        t.checkExpect(this.worldMountain.state, new Lose());
+        t.checkExpect(after - before - overhead, 0L);
+    }
+
+    // start a game on a small mountain, with the player beside the
+    // helicopter at the peak and no pieces
+    ForbiddenIslandWorld smallWorld(int keyMode) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.keyMode = keyMode;
+        world.reset(world.mountain);
+        world.items = new Empty<Target>();
+        world.helicopter.link = world.grid.cellAt(8, 8);
+        world.player.link = world.grid.cellAt(8, 6);
+        return world;
+    }
+
+    // test choosing how keys are played from the menu
+    void testKeyModeMenu(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld();
+        world.onKeyEvent("k");
+        t.checkExpect(world.keyMode, ForbiddenIslandWorld.KEYS_BATCHED);
+        world.onKeyEvent("k");
+        t.checkExpect(world.keyMode, ForbiddenIslandWorld.KEYS_STEPPED);
+        world.onKeyEvent("k");
+        t.checkExpect(world.keyMode, ForbiddenIslandWorld.KEYS_IMMEDIATE);
+    }
+
+    // test that batched keys wait for the tick, and only a few are played in
+    // each
+    void testBatchedKeys(Tester t) {
+        ForbiddenIslandWorld world = this.smallWorld(
+                ForbiddenIslandWorld.KEYS_BATCHED);
+        world.onKeyEvent("left");
+        world.onKeyEvent("left");
+        t.checkExpect(world.player.link, world.grid.cellAt(8, 6));
+        t.checkExpect(world.tick, 0);
+
+        world.onTick();
+        t.checkExpect(world.player.link, world.grid.cellAt(6, 6));
+        t.checkExpect(world.score, 2);
+        t.checkExpect(world.tick, 1);
+
+        // a storm of keys is cut short
+        for (int i = 0; i < 40; i += 1) {
+            world.onKeyEvent("right");
+        }
+        t.checkExpect(world.keys.size(), 16);
+        world.onTick();
+        t.checkExpect(world.player.link, world.grid.cellAt(10, 6));
+        t.checkExpect(world.keys.size(), 12);
+        t.checkExpect(world.tick, 2);
+    }
+
+    // test that stepped keys end up where keys played at once do, refusing
+    // moves onto cells the water has risen over before it floods them
+    void testSteppedMatchesImmediate(Tester t) {
+        ForbiddenIslandWorld stepped = this.smallWorld(
+                ForbiddenIslandWorld.KEYS_STEPPED);
+        ForbiddenIslandWorld immediate = this.smallWorld(
+                ForbiddenIslandWorld.KEYS_IMMEDIATE);
+        stepped.keysPerTick = 20;
+        ForbiddenIslandWorld[] worlds = { stepped, immediate };
+        for (ForbiddenIslandWorld world : worlds) {
+            world.waterHeight = 57;
+            world.tick = 6;
+            // the coast, at 57, floods on the fourth key
+            for (int i = 0; i < 7; i += 1) {
+                world.onKeyEvent("up");
+            }
+        }
+        stepped.onTick();
+        t.checkExpect(immediate.player.link, immediate.grid.cellAt(8, 2));
+        t.checkExpect(immediate.state, new InGame());
+        t.checkExpect(stepped.player.link, stepped.grid.cellAt(8, 2));
+        t.checkExpect(stepped.state, new InGame());
+        t.checkExpect(stepped.score, immediate.score);
+        t.checkExpect(stepped.waterHeight, immediate.waterHeight);
+        t.checkExpect(stepped.grid.cellAt(8, 1).isFlooded, true);
+    }
+
+    // test that stepped keys each take a tick, but flood only once
+    void testSteppedKeys(Tester t) {
+        ForbiddenIslandWorld world = this.smallWorld(
+                ForbiddenIslandWorld.KEYS_STEPPED);
+        world.keysPerTick = 20;
+        world.waterHeight = 57;
+        world.tick = 5;
+        for (int i = 0; i < 15; i += 1) {
+            if (i % 2 == 0) {
+                world.onKeyEvent("left");
+            }
+            else {
+                world.onKeyEvent("right");
+            }
+        }
+        world.onTick();
+        t.checkExpect(world.score, 15);
+        t.checkExpect(world.tick, 1);
+        t.checkExpect(world.waterHeight, 59);
+        // the cells at 57 and 58 flooded in the one flood
+        t.checkExpect(world.flooded.size(), 28 + 24);
+        t.checkExpect(world.grid.cellAt(8, 2).isFlooded, true);
+        t.checkExpect(world.grid.cellAt(8, 3).isFlooded, false);
+        t.checkExpect(world.state, new InGame());
+
+        // the same as playing the keys one at a time
+        ForbiddenIslandWorld immediate = this.smallWorld(
+                ForbiddenIslandWorld.KEYS_IMMEDIATE);
+        immediate.waterHeight = 57;
+        immediate.tick = 5;
+        for (int i = 0; i < 15; i += 1) {
+            if (i % 2 == 0) {
+                immediate.onKeyEvent("left");
+            }
+            else {
+                immediate.onKeyEvent("right");
+            }
+        }
+        immediate.onTick();
+        t.checkExpect(immediate.waterHeight, world.waterHeight);
+        t.checkExpect(immediate.score, world.score);
+        t.checkExpect(immediate.player.link, world.player.link);
+    }
+
     // test drawing cells
     void testCellDraws(Tester t) {
         Cell cell = new Cell(10, 10, 10);
@@ -1322,6 +2579,7 @@ class ExamplesPlay {
 
     // play the game
     void testGame(Tester t) {
+        this.world.usePool(new IslandPool(2));
         this.world.bigBang(Cell.CELLSIZE * (AIslandGenerator.ISLAND_SIZE + 1),
                 Cell.CELLSIZE * (AIslandGenerator.ISLAND_SIZE + 1), .016);
     }
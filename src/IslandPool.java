@@ -0,0 +1,257 @@
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tester.*;
+
+// Makes the pool's threads daemons, so a pool never keeps the game running
+class DaemonThreads implements ThreadFactory {
+    // make a daemon thread to run the given task
+    public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "island-pool");
+        thread.setDaemon(true);
+        return thread;
+    }
+}
+
+// Generates a board with a generator, on whatever thread runs it
+class GenerateTask implements Callable<IList<Cell>> {
+    AIslandGenerator gen;
+
+    GenerateTask(AIslandGenerator gen) {
+        this.gen = gen;
+    }
+
+    // generate the board
+    public IList<Cell> call() {
+        return this.gen.generateTerrain();
+    }
+}
+
+// Generates a board and adds it to a pool's ready boards
+class RefillTask implements Runnable {
+    IslandPool pool;
+    AIslandGenerator gen;
+
+    RefillTask(IslandPool pool, AIslandGenerator gen) {
+        this.pool = pool;
+        this.gen = gen;
+    }
+
+    // generate the board
+    // EFFECT: adds the board to the pool
+    public void run() {
+        this.pool.ready.get(this.gen).add(this.gen.generateTerrain());
+        this.pool.pending.get(this.gen).decrementAndGet();
+    }
+}
+
+// Keeps a few boards ready for each of its generators, generating more on a
+// background thread whenever one is taken, so starting a game does not have
+// to wait for generation
+class IslandPool {
+    // the number of boards to keep ready for each generator
+    int perGenerator;
+    // the thread that generates boards to refill the pool, and the thread
+    // that generates the boards games are waiting for, so they never wait
+    // behind the refills
+    ExecutorService executor = Executors
+            .newSingleThreadExecutor(new DaemonThreads());
+    ExecutorService loader = Executors
+            .newSingleThreadExecutor(new DaemonThreads());
+
+    // the boards ready for each generator, and the number being generated
+    ConcurrentHashMap<AIslandGenerator, ConcurrentLinkedQueue<IList<Cell>>> ready;
+    ConcurrentHashMap<AIslandGenerator, AtomicInteger> pending;
+
+    IslandPool(int perGenerator) {
+        this.perGenerator = perGenerator;
+        this.ready = new ConcurrentHashMap<AIslandGenerator, ConcurrentLinkedQueue<IList<Cell>>>();
+        this.pending = new ConcurrentHashMap<AIslandGenerator, AtomicInteger>();
+    }
+
+    // start keeping boards ready for the given generator
+    // EFFECT: starts generating boards for it in the background
+    void add(AIslandGenerator gen) {
+        if (!this.ready.containsKey(gen)) {
+            this.ready.put(gen, new ConcurrentLinkedQueue<IList<Cell>>());
+            this.pending.put(gen, new AtomicInteger(0));
+            this.refill(gen);
+        }
+    }
+
+    // take a ready board for the given generator, or null if there is none
+    // EFFECT: removes the board from the pool and starts generating another
+    IList<Cell> take(AIslandGenerator gen) {
+        if (!this.ready.containsKey(gen)) {
+            return null;
+        }
+
+        IList<Cell> board = this.ready.get(gen).poll();
+        this.refill(gen);
+        return board;
+    }
+
+    // generate a board for the given generator in the background, on its own
+    // thread so it does not wait for the boards queued to refill the pool.
+    // The board is not added to the pool, which the refills keep stocked for
+    // the games after this one
+    Future<IList<Cell>> generate(AIslandGenerator gen) {
+        return this.loader.submit(new GenerateTask(gen));
+    }
+
+    // get the number of boards ready for the given generator
+    int readyCount(AIslandGenerator gen) {
+        return this.ready.get(gen).size();
+    }
+
+    // generate as many boards as the generator is short of
+    // EFFECT: submits refill tasks for the generator
+    void refill(AIslandGenerator gen) {
+        AtomicInteger pending = this.pending.get(gen);
+        while (this.ready.get(gen).size()
+                + pending.get() < this.perGenerator) {
+            pending.incrementAndGet();
+            this.executor.execute(new RefillTask(this, gen));
+        }
+    }
+}
+
+// A generator that waits until it is let go before generating, for testing
+class WaitingGenerator extends MountainIslandGenerator {
+    CountDownLatch go = new CountDownLatch(1);
+
+    WaitingGenerator(int maxHeight, int islandSize) {
+        super(maxHeight, islandSize);
+    }
+
+    // wait to be let go, then generate the heights
+    public ArrayList<ArrayList<Double>> generateHeights() {
+        try {
+            this.go.await();
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return super.generateHeights();
+    }
+}
+
+class ExamplesIslandPool {
+    AIslandGenerator mountainGen = new MountainIslandGenerator(16, 16);
+    AIslandGenerator randomGen = new RandomIslandGenerator(16, 16);
+    IslandPool pool;
+
+    void initialize() {
+        this.pool = new IslandPool(2);
+    }
+
+    // wait until the pool has the given number of boards for the generator
+    void awaitReady(AIslandGenerator gen, int count) {
+        while (this.pool.readyCount(gen) < count) {
+            Thread.yield();
+        }
+    }
+
+    // test filling and taking from the pool
+    void testTake(Tester t) {
+        this.initialize();
+        t.checkExpect(this.pool.take(this.mountainGen), null);
+
+        this.pool.add(this.mountainGen);
+        this.awaitReady(this.mountainGen, 2);
+        t.checkExpect(this.pool.readyCount(this.mountainGen), 2);
+
+        IList<Cell> board = this.pool.take(this.mountainGen);
+        t.checkExpect(board.size(), 17 * 17);
+        t.checkExpect(board.get(8 * 17 + 8).height, 16.0);
+
+        // refilled after taking
+        this.awaitReady(this.mountainGen, 2);
+        t.checkExpect(this.pool.readyCount(this.mountainGen), 2);
+    }
+
+    // test that a world starts instantly from a ready board
+    void testReadyStart(Tester t) {
+        this.initialize();
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.usePool(this.pool);
+        this.awaitReady(world.mountain, 2);
+        world.handleReset("m");
+        t.checkExpect(world.state, new InGame());
+        t.checkExpect(world.grid.size(), 17 * 17);
+    }
+
+    // test that a world with nothing ready loads in the background
+    void testLoadingStart(Tester t) {
+        this.initialize();
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.pool = this.pool;
+        world.start(this.randomGen);
+        t.checkExpect(world.state, new Loading());
+        t.checkExpect(world.loadingGen, this.randomGen);
+
+        while (!world.loading.isDone()) {
+            Thread.yield();
+        }
+        world.onTick();
+        t.checkExpect(world.state, new InGame());
+        t.checkExpect(world.grid.size(), 17 * 17);
+    }
+
+    // test that stepping back does nothing while a new game loads, which
+    // then starts as it would have
+    void testRewindWhileLoading(Tester t) {
+        this.initialize();
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.historyMode = true;
+        world.reset(world.mountain);
+        world.onTick();
+        world.onTick();
+        world.pool = this.pool;
+        WaitingGenerator stuck = new WaitingGenerator(16, 24);
+        world.start(stuck);
+        world.onKeyEvent("b");
+        t.checkExpect(world.state, new Loading());
+        t.checkExpect(world.tick, 2);
+        t.checkExpect(world.loadingGen, stuck);
+
+        stuck.go.countDown();
+        while (!world.loading.isDone()) {
+            Thread.yield();
+        }
+        world.onTick();
+        t.checkExpect(world.state, new InGame());
+        t.checkExpect(world.grid.size(), 25 * 25);
+    }
+
+    // test that a board a game is waiting for is generated while the refills
+    // queued ahead of it are still stuck
+    void testGenerateFirst(Tester t) {
+        this.initialize();
+        WaitingGenerator stuck = new WaitingGenerator(16, 16);
+        this.pool.add(stuck);
+        Future<IList<Cell>> board = this.pool.generate(this.mountainGen);
+        try {
+            t.checkExpect(board.get().size(), 17 * 17);
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        t.checkExpect(this.pool.readyCount(stuck), 0);
+        stuck.go.countDown();
+        this.awaitReady(stuck, 2);
+        t.checkExpect(this.pool.readyCount(stuck), 2);
+    }
+}
@@ -0,0 +1,272 @@
+import java.awt.Color;
+import java.util.ArrayList;
+
+import tester.*;
+import javalib.worldimages.*;
+
+// One level of a LodPyramid, where each entry sums up a square block of cells
+class LodLevel {
+    // the number of entries along each side of this level
+    int side;
+    // the number of cells along each side of the block each entry covers
+    int span;
+
+    // for each entry, the number of its cells that are dry, flooded and ocean
+    int[] dry;
+    int[] flooded;
+    int[] ocean;
+    // for each entry, the summed heights of its dry and flooded cells
+    double[] dryHeight;
+    double[] floodedHeight;
+
+    // creates the finest level, with one entry per cell of the grid
+    LodLevel(CellGrid grid) {
+        this(grid.side, 1);
+        for (Cell cell : grid.cells) {
+            int idx = this.indexOf(cell.x, cell.y);
+            if (cell.isOcean()) {
+                this.ocean[idx] += 1;
+            }
+            else if (cell.isFlooded) {
+                this.flooded[idx] += 1;
+                this.floodedHeight[idx] += cell.height;
+            }
+            else {
+                this.dry[idx] += 1;
+                this.dryHeight[idx] += cell.height;
+            }
+        }
+    }
+
+    // creates the level above the given one, each entry summing up a 2x2
+    // block of entries below it
+    LodLevel(LodLevel finer) {
+        this((finer.side + 1) / 2, finer.span * 2);
+        for (int y = 0; y < finer.side; y += 1) {
+            for (int x = 0; x < finer.side; x += 1) {
+                int from = y * finer.side + x;
+                int to = (y / 2) * this.side + x / 2;
+                this.dry[to] += finer.dry[from];
+                this.flooded[to] += finer.flooded[from];
+                this.ocean[to] += finer.ocean[from];
+                this.dryHeight[to] += finer.dryHeight[from];
+                this.floodedHeight[to] += finer.floodedHeight[from];
+            }
+        }
+    }
+
+    LodLevel(int side, int span) {
+        this.side = side;
+        this.span = span;
+        this.dry = new int[side * side];
+        this.flooded = new int[side * side];
+        this.ocean = new int[side * side];
+        this.dryHeight = new double[side * side];
+        this.floodedHeight = new double[side * side];
+    }
+
+    // get the index of the entry covering the cell at the given position
+    int indexOf(int x, int y) {
+        return (y / this.span) * this.side + x / this.span;
+    }
+
+    // move the given cell from the dry to the flooded sums of its entry
+    // EFFECT: modifies the sums of the entry covering the cell
+    void flood(Cell cell) {
+        int idx = this.indexOf(cell.x, cell.y);
+        this.dry[idx] -= 1;
+        this.dryHeight[idx] -= cell.height;
+        this.flooded[idx] += 1;
+        this.floodedHeight[idx] += cell.height;
+    }
+
+    // move the given cell from the flooded back to the dry sums of its entry
+    // EFFECT: modifies the sums of the entry covering the cell
+    void unflood(Cell cell) {
+        int idx = this.indexOf(cell.x, cell.y);
+        this.flooded[idx] -= 1;
+        this.floodedHeight[idx] -= cell.height;
+        this.dry[idx] += 1;
+        this.dryHeight[idx] += cell.height;
+    }
+
+    // get the colour of the entry at the given index, the colours of its dry,
+    // flooded and ocean cells averaged by how many of each it covers
+    Color color(int idx, int waterHeight, int maxHeight) {
+        Utility util = new Utility();
+        double total = this.dry[idx] + this.flooded[idx] + this.ocean[idx];
+        double red = this.ocean[idx] * Color.BLUE.getRed();
+        double green = this.ocean[idx] * Color.BLUE.getGreen();
+        double blue = this.ocean[idx] * Color.BLUE.getBlue();
+
+        if (this.dry[idx] > 0) {
+            Color dryColor = util.dryColor(this.dryHeight[idx] / this.dry[idx],
+                    waterHeight, maxHeight);
+            red += this.dry[idx] * dryColor.getRed();
+            green += this.dry[idx] * dryColor.getGreen();
+            blue += this.dry[idx] * dryColor.getBlue();
+        }
+        if (this.flooded[idx] > 0) {
+            Color floodedColor = util.floodedColor(
+                    this.floodedHeight[idx] / this.flooded[idx], waterHeight,
+                    maxHeight);
+            red += this.flooded[idx] * floodedColor.getRed();
+            green += this.flooded[idx] * floodedColor.getGreen();
+            blue += this.flooded[idx] * floodedColor.getBlue();
+        }
+
+        return new Color((int) (red / total), (int) (green / total),
+                (int) (blue / total));
+    }
+}
+
+// A mip pyramid of the board's terrain and flood coverage. Each level halves
+// the one below it, so a board with more cells than the scene has pixels can
+// be drawn from the level with about one entry per pixel
+class LodPyramid implements IFloodObserver {
+    // the levels, finest first, ending with a single entry for the board
+    ArrayList<LodLevel> levels = new ArrayList<LodLevel>();
+
+    LodPyramid(CellGrid grid) {
+        LodLevel level = new LodLevel(grid);
+        this.levels.add(level);
+        while (level.side > 1) {
+            level = new LodLevel(level);
+            this.levels.add(level);
+        }
+    }
+
+    // get the index of the finest level which fits in the given number of
+    // pixels
+    int levelFor(int pixels) {
+        int idx = 0;
+        while (this.levels.get(idx).side > pixels) {
+            idx += 1;
+        }
+        return idx;
+    }
+
+    // record that the given cell has flooded
+    // EFFECT: updates the one entry covering the cell on every level
+    void flood(Cell cell) {
+        for (int i = 0; i < this.levels.size(); i += 1) {
+            this.levels.get(i).flood(cell);
+        }
+    }
+
+    // record that the given cells have flooded
+    // EFFECT: updates the entries covering the cells on every level
+    public void flooded(ArrayList<Cell> cells, CellGrid grid) {
+        for (int i = 0; i < cells.size(); i += 1) {
+            this.flood(cells.get(i));
+        }
+    }
+
+    // record that the given cell is dry again
+    // EFFECT: updates the one entry covering the cell on every level
+    void unflood(Cell cell) {
+        for (int i = 0; i < this.levels.size(); i += 1) {
+            this.levels.get(i).unflood(cell);
+        }
+    }
+
+    // draw the board as a square of the given number of pixels, one pixel per
+    // entry of the level that fits, scaled up to fill the square
+    WorldImage render(int pixels, int waterHeight, int maxHeight) {
+        LodLevel level = this.levels.get(this.levelFor(pixels));
+        ComputedPixelImage image = new ComputedPixelImage(level.side,
+                level.side);
+        for (int y = 0; y < level.side; y += 1) {
+            for (int x = 0; x < level.side; x += 1) {
+                image.setPixel(x, y, level.color(y * level.side + x,
+                        waterHeight, maxHeight));
+            }
+        }
+        return new ScaleImage(image, pixels / (double) level.side);
+    }
+}
+
+class ExamplesLod {
+    AIslandGenerator mountainGen = new MountainIslandGenerator(16, 16);
+    CellGrid grid;
+    LodPyramid lod;
+
+    void initialize() {
+        this.grid = new CellGrid(this.mountainGen.generateTerrain(), 17);
+        this.lod = new LodPyramid(this.grid);
+    }
+
+    // test the shape of the pyramid
+    void testLevels(Tester t) {
+        this.initialize();
+        t.checkExpect(this.lod.levels.size(), 6);
+        t.checkExpect(this.lod.levels.get(0).side, 17);
+        t.checkExpect(this.lod.levels.get(1).side, 9);
+        t.checkExpect(this.lod.levels.get(2).side, 5);
+        t.checkExpect(this.lod.levels.get(5).side, 1);
+        t.checkExpect(this.lod.levels.get(5).span, 32);
+
+        LodLevel top = this.lod.levels.get(5);
+        t.checkExpect(top.dry[0] + top.flooded[0] + top.ocean[0], 17 * 17);
+        t.checkExpect(top.flooded[0], 0);
+        // the diamond of land inside the ocean
+        t.checkExpect(top.dry[0], 113);
+    }
+
+    // test choosing a level for a number of pixels
+    void testLevelFor(Tester t) {
+        this.initialize();
+        t.checkExpect(this.lod.levelFor(975), 0);
+        t.checkExpect(this.lod.levelFor(17), 0);
+        t.checkExpect(this.lod.levelFor(16), 1);
+        t.checkExpect(this.lod.levelFor(5), 2);
+        t.checkExpect(this.lod.levelFor(1), 5);
+    }
+
+    // test that flooding updates every level like rebuilding would
+    void testFlood(Tester t) {
+        this.initialize();
+        ArrayList<Cell> log = new ArrayList<Cell>();
+        this.grid.cellAt(8, 1).flood(12, new ArrayList<Cell>(), log);
+        t.checkExpect(log.size() > 0, true);
+        for (Cell cell : log) {
+            this.lod.flood(cell);
+        }
+
+        LodPyramid rebuilt = new LodPyramid(this.grid);
+        for (int i = 0; i < this.lod.levels.size(); i += 1) {
+            LodLevel level = this.lod.levels.get(i);
+            LodLevel expected = rebuilt.levels.get(i);
+            t.checkExpect(level.dry, expected.dry);
+            t.checkExpect(level.flooded, expected.flooded);
+            t.checkExpect(level.ocean, expected.ocean);
+        }
+        t.checkExpect(this.lod.levels.get(5).flooded[0], log.size());
+    }
+
+    // test the colours of entries
+    void testColor(Tester t) {
+        this.initialize();
+        LodLevel finest = this.lod.levels.get(0);
+        t.checkExpect(finest.color(0, 0, 16), Color.BLUE);
+        t.checkExpect(finest.color(8 * 17 + 8, 3, 16),
+                new Utility().dryColor(16, 3, 16));
+        this.grid.cellAt(8, 8).isFlooded = true;
+        this.lod.flood(this.grid.cellAt(8, 8));
+        t.checkExpect(finest.color(8 * 17 + 8, 20, 16),
+                new Utility().floodedColor(16, 20, 16));
+    }
+
+    // test that big boards are drawn zoomed out and kept up to date
+    void testBigBoard(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(256);
+        world.reset(world.mountain);
+        t.checkExpect(world.grid.size(), 257 * 257);
+        t.checkExpect(world.lod.levelFor(975), 0);
+        world.waterHeight = 20;
+        world.flood();
+        t.checkExpect(world.lod.levels.get(world.lod.levels.size() - 1)
+                .flooded[0], world.flooded.size());
+        t.checkExpect(world.lod.levelFor(100), 2);
+    }
+}
@@ -0,0 +1,677 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import tester.*;
+
+// The cells that flooded in one tick, sent as runs of consecutive indices so
+// that its size follows the number of cells that changed, not the board
+class FloodDelta {
+    // the indices of the flooded cells, sorted once written
+    int[] cells;
+    int count;
+
+    FloodDelta(int capacity) {
+        this.cells = new int[capacity];
+    }
+
+    // forget every cell
+    // EFFECT: modifies count
+    void clear() {
+        this.count = 0;
+    }
+
+    // add the cell at the given index, making room if the cells are full
+    // EFFECT: modifies cells and count
+    void add(int idx) {
+        if (this.count == this.cells.length) {
+            this.cells = Arrays.copyOf(this.cells,
+                    Math.max(16, this.cells.length * 2));
+        }
+        this.cells[this.count] = idx;
+        this.count += 1;
+    }
+
+    // write the cells as a number of runs, then for each the gap since the
+    // end of the last and its length
+    // EFFECT: sorts cells, and writes to out
+    void write(DataOutput out) throws IOException {
+        Arrays.sort(this.cells, 0, this.count);
+        int runs = 0;
+        for (int i = 0; i < this.count; i += 1) {
+            if (i == 0 || this.cells[i] != this.cells[i - 1] + 1) {
+                runs += 1;
+            }
+        }
+
+        FloodDelta.writeVarint(out, runs);
+        int end = 0;
+        int i = 0;
+        while (i < this.count) {
+            int start = i;
+            while (i + 1 < this.count && this.cells[i + 1] == this.cells[i] + 1) {
+                i += 1;
+            }
+            i += 1;
+            FloodDelta.writeVarint(out, this.cells[start] - end);
+            FloodDelta.writeVarint(out, i - start);
+            end = this.cells[i - 1] + 1;
+        }
+    }
+
+    // read cells written by write in place of these
+    // EFFECT: modifies cells and count
+    void read(DataInput in) throws IOException {
+        this.clear();
+        int runs = FloodDelta.readVarint(in);
+        int end = 0;
+        for (int r = 0; r < runs; r += 1) {
+            int start = end + FloodDelta.readVarint(in);
+            int length = FloodDelta.readVarint(in);
+            for (int idx = start; idx < start + length; idx += 1) {
+                this.add(idx);
+            }
+            end = start + length;
+        }
+    }
+
+    // write a non-negative number in as few bytes as it needs, seven bits to
+    // a byte with the top bit set on all but the last
+    static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    // read a number written by writeVarint
+    static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
+
+// Reads a client's key presses off its socket onto a queue for the server
+class KeyReader implements Runnable {
+    DataInputStream in;
+    ConcurrentLinkedQueue<String> keys;
+
+    KeyReader(DataInputStream in, ConcurrentLinkedQueue<String> keys) {
+        this.in = in;
+        this.keys = keys;
+    }
+
+    // read keys until the client goes away
+    // EFFECT: adds each key to the queue
+    public void run() {
+        try {
+            while (true) {
+                this.keys.add(this.in.readUTF());
+            }
+        }
+        catch (IOException e) {
+            // the client has gone
+        }
+    }
+}
+
+// Runs a game for several players on one island, with each player on a
+// client connected over TCP. Clients are sent the whole island once, and
+// after that each tick only what changed: the water height, the cells that
+// flooded as runs of indices, the players that moved and the pieces picked up
+class IslandServer {
+    // the kinds of message sent to clients
+    static final int WELCOME = 1;
+    static final int TICK = 2;
+
+    ForbiddenIslandWorld world;
+    ServerSocket socket;
+    ArrayList<Socket> clients = new ArrayList<Socket>();
+    ArrayList<DataOutputStream> outs = new ArrayList<DataOutputStream>();
+    ArrayList<ConcurrentLinkedQueue<String>> inboxes;
+
+    // each client's player, the first being the world's own
+    ArrayList<Player> players = new ArrayList<Player>();
+    // where each player and target was when the clients last heard
+    int[] sentPlayers;
+    ArrayList<Target> sentTargets = new ArrayList<Target>();
+    FloodDelta delta;
+
+    // creates a server for the game in the given world, listening on a free
+    // port of the loopback address
+    IslandServer(ForbiddenIslandWorld world) throws IOException {
+        this.world = world;
+        this.socket = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        this.inboxes = new ArrayList<ConcurrentLinkedQueue<String>>();
+        this.delta = new FloodDelta(world.grid.size());
+    }
+
+    // get the port the server is listening on
+    int port() {
+        return this.socket.getLocalPort();
+    }
+
+    // wait for the given number of clients to connect, give each a player
+    // and send them the island
+    // EFFECT: adds the clients and their players, and starts reading keys
+    void accept(int count) throws IOException {
+        for (int i = 0; i < count; i += 1) {
+            Socket client = this.socket.accept();
+            client.setTcpNoDelay(true);
+            ConcurrentLinkedQueue<String> keys = new ConcurrentLinkedQueue<String>();
+            Thread reader = new Thread(new KeyReader(new DataInputStream(
+                    new BufferedInputStream(client.getInputStream())), keys),
+                    "island-keys");
+            reader.setDaemon(true);
+            reader.start();
+
+            this.clients.add(client);
+            this.outs.add(new DataOutputStream(
+                    new BufferedOutputStream(client.getOutputStream())));
+            this.inboxes.add(keys);
+            if (this.players.isEmpty()) {
+                this.players.add(this.world.player);
+            }
+            else {
+                this.players.add(new Player(this.world.getRandomDry()));
+            }
+        }
+
+        this.sentPlayers = new int[this.players.size()];
+        for (int i = 0; i < this.players.size(); i += 1) {
+            this.sentPlayers[i] = this.world.grid.indexOf(this.players.get(i).link);
+        }
+        this.sentTargets.clear();
+        for (Target t : this.world.items) {
+            this.sentTargets.add(t);
+        }
+        for (int i = 0; i < this.outs.size(); i += 1) {
+            this.welcome(this.outs.get(i), i);
+        }
+    }
+
+    // send a client the whole island and which player is theirs
+    // EFFECT: writes to out
+    void welcome(DataOutputStream out, int id) throws IOException {
+        CellGrid grid = this.world.grid;
+        out.writeByte(IslandServer.WELCOME);
+        FloodDelta.writeVarint(out, grid.side);
+        FloodDelta.writeVarint(out, this.world.maxHeight);
+        FloodDelta.writeVarint(out, id);
+        for (int i = 0; i < grid.size(); i += 1) {
+            out.writeFloat((float) grid.get(i).height);
+        }
+
+        FloodDelta flooded = new FloodDelta(grid.size());
+        for (int i = 0; i < grid.size(); i += 1) {
+            if (grid.get(i).isFlooded) {
+                flooded.add(i);
+            }
+        }
+        flooded.write(out);
+
+        FloodDelta.writeVarint(out, this.players.size());
+        for (int i = 0; i < this.players.size(); i += 1) {
+            FloodDelta.writeVarint(out, this.sentPlayers[i]);
+        }
+        FloodDelta.writeVarint(out, this.sentTargets.size());
+        for (Target t : this.sentTargets) {
+            FloodDelta.writeVarint(out, grid.indexOf(t.link));
+        }
+        FloodDelta.writeVarint(out, grid.indexOf(this.world.helicopter.link));
+        out.flush();
+    }
+
+    // play one tick: move each player by the keys their client sent, run the
+    // world's rules for every player, and send the clients what changed
+    // EFFECT: modifies the world, and writes to the clients
+    void step() throws IOException {
+        for (int i = 0; i < this.players.size(); i += 1) {
+            String key = this.inboxes.get(i).poll();
+            while (key != null) {
+                if (this.world.state == ForbiddenIslandWorld.INGAME) {
+                    this.players.get(i).handleKey(key);
+                }
+                key = this.inboxes.get(i).poll();
+            }
+        }
+
+        int water = this.world.waterHeight;
+        this.world.player = this.players.get(0);
+        this.world.onTick();
+        for (int i = 1; i < this.players.size()
+                && this.world.state == ForbiddenIslandWorld.INGAME; i += 1) {
+            this.world.player = this.players.get(i);
+            this.world.checkCollisions();
+            this.world.updateState();
+        }
+        this.world.player = this.players.get(0);
+
+        // the world's list of flooded cells is only new when it flooded
+        this.delta.clear();
+        if (water != this.world.waterHeight || this.world.tidal != null) {
+            for (int i = 0; i < this.world.flooded.size(); i += 1) {
+                this.delta.add(this.world.grid.indexOf(this.world.flooded.get(i)));
+            }
+        }
+        for (DataOutputStream out : this.outs) {
+            this.tick(out);
+        }
+        this.record();
+    }
+
+    // send a client what changed this tick
+    // EFFECT: writes to out
+    void tick(DataOutputStream out) throws IOException {
+        out.writeByte(IslandServer.TICK);
+        FloodDelta.writeVarint(out, this.world.waterHeight);
+        out.writeByte(this.stateCode());
+        this.delta.write(out);
+
+        int moved = 0;
+        for (int i = 0; i < this.players.size(); i += 1) {
+            if (this.indexOf(this.players.get(i)) != this.sentPlayers[i]) {
+                moved += 1;
+            }
+        }
+        FloodDelta.writeVarint(out, moved);
+        for (int i = 0; i < this.players.size(); i += 1) {
+            int idx = this.indexOf(this.players.get(i));
+            if (idx != this.sentPlayers[i]) {
+                FloodDelta.writeVarint(out, i);
+                FloodDelta.writeVarint(out, idx);
+            }
+        }
+
+        int picked = this.sentTargets.size() - this.world.items.size();
+        FloodDelta.writeVarint(out, picked);
+        if (picked > 0) {
+            for (Target t : this.sentTargets) {
+                if (!this.isLeft(t)) {
+                    FloodDelta.writeVarint(out, this.world.grid.indexOf(t.link));
+                }
+            }
+        }
+        out.flush();
+    }
+
+    // remember what the clients have been sent
+    // EFFECT: modifies sentPlayers and sentTargets
+    void record() {
+        for (int i = 0; i < this.players.size(); i += 1) {
+            this.sentPlayers[i] = this.indexOf(this.players.get(i));
+        }
+        if (this.sentTargets.size() != this.world.items.size()) {
+            this.sentTargets.clear();
+            for (Target t : this.world.items) {
+                this.sentTargets.add(t);
+            }
+        }
+    }
+
+    // check if the given target is still in the world
+    boolean isLeft(Target target) {
+        for (Target t : this.world.items) {
+            if (t == target) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // get the index of the cell the given player is on
+    int indexOf(Player player) {
+        return this.world.grid.indexOf(player.link);
+    }
+
+    // get the code sent for the state of the world
+    int stateCode() {
+        if (this.world.state == ForbiddenIslandWorld.INGAME) {
+            return 0;
+        }
+        else if (this.world.state == ForbiddenIslandWorld.LOSE) {
+            return 1;
+        }
+        else if (this.world.state == ForbiddenIslandWorld.WIN) {
+            return 2;
+        }
+        return 3;
+    }
+
+    // stop listening and disconnect every client
+    // EFFECT: closes the sockets
+    void close() throws IOException {
+        for (Socket client : this.clients) {
+            client.close();
+        }
+        this.socket.close();
+    }
+}
+
+// A player's view of a game run by an IslandServer: a copy of the island
+// kept up to date from the server's messages, and a way to send it keys
+class IslandClient {
+    Socket socket;
+    CountingStream counter;
+    DataInputStream in;
+    DataOutputStream out;
+
+    // which of the server's players is this client's
+    int id;
+    int side;
+    int maxHeight;
+    int waterHeight;
+    // 0 while playing, 1 once lost, 2 once won
+    int state;
+    float[] heights;
+    boolean[] flooded;
+    // the cell each player is on
+    int[] players;
+    // the cells of the pieces left, and the helicopter
+    ArrayList<Integer> targets = new ArrayList<Integer>();
+    int helicopter;
+    FloodDelta delta;
+    // the number of bytes of the last tick read
+    int lastTickBytes;
+
+    // connects to a server on this machine at the given port
+    IslandClient(int port) throws IOException {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        this.socket.setTcpNoDelay(true);
+        this.counter = new CountingStream(
+                new BufferedInputStream(this.socket.getInputStream()));
+        this.in = new DataInputStream(this.counter);
+        this.out = new DataOutputStream(
+                new BufferedOutputStream(this.socket.getOutputStream()));
+    }
+
+    // read the island the server sends when the game starts
+    // EFFECT: sets up this client's copy of the island
+    void readWelcome() throws IOException {
+        if (this.in.readUnsignedByte() != IslandServer.WELCOME) {
+            throw new IOException("Expected the island");
+        }
+        this.side = FloodDelta.readVarint(this.in);
+        this.maxHeight = FloodDelta.readVarint(this.in);
+        this.id = FloodDelta.readVarint(this.in);
+        this.heights = new float[this.side * this.side];
+        for (int i = 0; i < this.heights.length; i += 1) {
+            this.heights[i] = this.in.readFloat();
+        }
+
+        this.delta = new FloodDelta(this.heights.length);
+        this.flooded = new boolean[this.heights.length];
+        this.applyDelta();
+
+        this.players = new int[FloodDelta.readVarint(this.in)];
+        for (int i = 0; i < this.players.length; i += 1) {
+            this.players[i] = FloodDelta.readVarint(this.in);
+        }
+        int count = FloodDelta.readVarint(this.in);
+        for (int i = 0; i < count; i += 1) {
+            this.targets.add(FloodDelta.readVarint(this.in));
+        }
+        this.helicopter = FloodDelta.readVarint(this.in);
+    }
+
+    // read one tick of changes from the server
+    // EFFECT: updates this client's copy of the island
+    void readTick() throws IOException {
+        long start = this.counter.count;
+        if (this.in.readUnsignedByte() != IslandServer.TICK) {
+            throw new IOException("Expected a tick");
+        }
+        this.waterHeight = FloodDelta.readVarint(this.in);
+        this.state = this.in.readUnsignedByte();
+        this.delta.read(this.in);
+        for (int i = 0; i < this.delta.count; i += 1) {
+            this.flooded[this.delta.cells[i]] = true;
+        }
+
+        int moved = FloodDelta.readVarint(this.in);
+        for (int i = 0; i < moved; i += 1) {
+            int player = FloodDelta.readVarint(this.in);
+            this.players[player] = FloodDelta.readVarint(this.in);
+        }
+        int picked = FloodDelta.readVarint(this.in);
+        for (int i = 0; i < picked; i += 1) {
+            this.targets.remove(Integer.valueOf(FloodDelta.readVarint(this.in)));
+        }
+        this.lastTickBytes = (int) (this.counter.count - start);
+    }
+
+    // read the flooded cells of a delta
+    // EFFECT: modifies flooded
+    void applyDelta() throws IOException {
+        this.delta.read(this.in);
+        for (int i = 0; i < this.delta.count; i += 1) {
+            this.flooded[this.delta.cells[i]] = true;
+        }
+    }
+
+    // send the server a key for this client's player
+    // EFFECT: writes to the socket
+    void send(String key) throws IOException {
+        this.out.writeUTF(key);
+        this.out.flush();
+    }
+
+    // disconnect from the server
+    // EFFECT: closes the socket
+    void close() throws IOException {
+        this.socket.close();
+    }
+}
+
+// Reads from a stream, counting the bytes read
+class CountingStream extends FilterInputStream {
+    long count;
+
+    CountingStream(InputStream in) {
+        super(in);
+    }
+
+    // read a byte, counting it
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            this.count += 1;
+        }
+        return b;
+    }
+
+    // read some bytes, counting them
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int read = super.read(bytes, offset, length);
+        if (read > 0) {
+            this.count += read;
+        }
+        return read;
+    }
+}
+
+class ExamplesMultiplayer {
+    ForbiddenIslandWorld world;
+    IslandServer server;
+    IslandClient first;
+    IslandClient second;
+
+    // start a game on a small mountain with two clients
+    void initialize() {
+        try {
+            this.world = new ForbiddenIslandWorld(16);
+            this.world.reset(this.world.mountain);
+            this.server = new IslandServer(this.world);
+            this.first = new IslandClient(this.server.port());
+            this.second = new IslandClient(this.server.port());
+            this.server.accept(2);
+            this.first.readWelcome();
+            this.second.readWelcome();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // close the server and the clients
+    void close() {
+        try {
+            this.first.close();
+            this.second.close();
+            this.server.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // write a delta and read it back
+    FloodDelta roundTrip(FloodDelta delta) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            delta.write(new DataOutputStream(bytes));
+            FloodDelta read = new FloodDelta(1000);
+            read.read(new DataInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())));
+            return read;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // test encoding deltas as runs
+    void testFloodDelta(Tester t) {
+        FloodDelta delta = new FloodDelta(1000);
+        int[] cells = { 7, 300, 5, 6, 301, 999, 302 };
+        for (int c : cells) {
+            delta.add(c);
+        }
+        FloodDelta read = this.roundTrip(delta);
+        t.checkExpect(read.count, 7);
+        t.checkExpect(Arrays.copyOf(read.cells, 7),
+                new int[] { 5, 6, 7, 300, 301, 302, 999 });
+
+        // a long run costs no more than a short one
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FloodDelta run = new FloodDelta(1000);
+        for (int i = 100; i < 900; i += 1) {
+            run.add(i);
+        }
+        try {
+            run.write(new DataOutputStream(bytes));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        t.checkExpect(bytes.size(), 4);
+        t.checkExpect(this.roundTrip(new FloodDelta(0)).count, 0);
+    }
+
+    // test that clients get the island when they join
+    void testWelcome(Tester t) {
+        this.initialize();
+        t.checkExpect(this.first.id, 0);
+        t.checkExpect(this.second.id, 1);
+        t.checkExpect(this.first.side, 17);
+        t.checkExpect(this.first.heights[8 * 17 + 8], 64.0f);
+        t.checkExpect(this.first.flooded[0], true);
+        t.checkExpect(this.first.flooded[8 * 17 + 8], false);
+        t.checkExpect(this.first.players.length, 2);
+        t.checkExpect(this.first.players[1],
+                this.world.grid.indexOf(this.server.players.get(1).link));
+        t.checkExpect(this.second.targets, this.first.targets);
+        t.checkExpect(this.first.helicopter,
+                this.world.grid.indexOf(this.world.helicopter.link));
+        this.close();
+    }
+
+    // test that ticks send only what changed
+    void testTicks(Tester t) {
+        try {
+            this.initialize();
+            this.world.items = new Empty<Target>();
+            this.server.sentTargets.clear();
+            this.world.helicopter.link = this.world.grid.cellAt(8, 8);
+            this.server.players.get(0).link = this.world.grid.cellAt(8, 10);
+            this.server.players.get(1).link = this.world.grid.cellAt(6, 8);
+            this.server.record();
+
+            // nothing changes on a quiet tick
+            this.server.step();
+            this.first.readTick();
+            this.second.readTick();
+            t.checkExpect(this.first.lastTickBytes, 6);
+
+            // a move is sent to both clients
+            this.second.send("right");
+            while (this.server.inboxes.get(1).isEmpty()) {
+                Thread.yield();
+            }
+            this.server.step();
+            this.first.readTick();
+            this.second.readTick();
+            t.checkExpect(this.first.players[1], 8 * 17 + 7);
+            t.checkExpect(this.second.players[1], 8 * 17 + 7);
+
+            // the flood at the tenth tick is sent as runs
+            this.world.waterHeight = 57;
+            for (int i = 0; i < 8; i += 1) {
+                this.server.step();
+                this.first.readTick();
+            }
+            t.checkExpect(this.first.waterHeight, 58);
+            t.checkExpect(this.first.flooded[1 * 17 + 8], true);
+            t.checkExpect(this.first.flooded[2 * 17 + 8], false);
+            boolean same = true;
+            for (int i = 0; i < this.world.grid.size(); i += 1) {
+                same = same && this.first.flooded[i] == this.world.grid.get(i).isFlooded;
+            }
+            t.checkExpect(same, true);
+            this.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // test that the game ends for every client
+    void testEnd(Tester t) {
+        try {
+            this.initialize();
+            this.world.items = new Empty<Target>();
+            this.server.players.get(1).link = this.world.helicopter.link;
+            this.server.step();
+            this.first.readTick();
+            t.checkExpect(this.first.state, 2);
+            t.checkExpect(this.world.state, new Win());
+            this.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
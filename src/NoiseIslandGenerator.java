@@ -0,0 +1,339 @@
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import tester.*;
+
+// Fills a band of rows of a noise island's heights, splitting it in half
+// across the pool until the bands are small
+class NoiseRowsTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    NoiseIslandGenerator gen;
+    ArrayList<ArrayList<Double>> heights;
+    int from;
+    int to;
+    // the number of rows below which a band is filled directly
+    int grain;
+
+    NoiseRowsTask(NoiseIslandGenerator gen, ArrayList<ArrayList<Double>> heights,
+            int from, int to, int grain) {
+        this.gen = gen;
+        this.heights = heights;
+        this.from = from;
+        this.to = to;
+        this.grain = grain;
+    }
+
+    // fill the band
+    // EFFECT: sets the rows of heights from from to to
+    protected void compute() {
+        if (this.to - this.from <= this.grain) {
+            for (int y = this.from; y < this.to; y += 1) {
+                this.heights.set(y, this.gen.row(y));
+            }
+        }
+        else {
+            int mid = (this.from + this.to) >>> 1;
+            NoiseRowsTask.invokeAll(
+                    new NoiseRowsTask(this.gen, this.heights, this.from, mid,
+                            this.grain),
+                    new NoiseRowsTask(this.gen, this.heights, mid, this.to,
+                            this.grain));
+        }
+    }
+}
+
+// An island of rolling hills from a few octaves of gradient noise, sinking
+// into the ocean towards its edge. The edge is where the distance from the
+// centre reaches oceanDistance, measured with the given roundness: 1 is the
+// Manhattan distance of the diamond islands, 2 a circle, and more a rounded
+// square. Every cell's height depends only on the seed and its position, so
+// the rows are worked out in parallel and the same seed always makes the
+// same island. Unless a seed is given, each island is made from a new one
+class NoiseIslandGenerator extends DiamondIslandGenerator {
+    // the number of octaves of noise added together
+    static final int OCTAVES = 5;
+
+    long seed;
+    // whether every island is made from the seed, rather than from a new
+    // one each time
+    boolean pinned;
+    // the exponent of the distance used for the edge of the island
+    double roundness = 1;
+    // the number of rows each parallel task fills
+    int grain = 16;
+
+    // make the same island every time from now on for the given seed
+    // EFFECT: modifies seed and pinned
+    void reseed(long seed) {
+        this.seed = seed;
+        this.pinned = true;
+    }
+
+    // get a generator like this one that makes its islands from the given
+    // seed
+    NoiseIslandGenerator seeded(long seed) {
+        NoiseIslandGenerator gen = new NoiseIslandGenerator(this.maxHeight,
+                this.islandSize, seed);
+        gen.oceanDistance = this.oceanDistance;
+        gen.roundness = this.roundness;
+        gen.grain = this.grain;
+        return gen;
+    }
+
+    // generate the heights of the cells on this noise island, from a new
+    // seed unless one was given. A new seed is generated by a copy of this
+    // generator, so islands can be generated on several threads at once
+    public ArrayList<ArrayList<Double>> generateHeights() {
+        if (!this.pinned) {
+            return this.seeded(this.rand.nextLong()).generateHeights();
+        }
+
+        ArrayList<ArrayList<Double>> heights = new ArrayList<ArrayList<Double>>(
+                this.islandSize + 1);
+        for (int y = 0; y <= this.islandSize; y += 1) {
+            heights.add(null);
+        }
+        ForkJoinPool.commonPool().invoke(new NoiseRowsTask(this, heights, 0,
+                this.islandSize + 1, this.grain));
+
+        // the peak is always at the centre, so the helicopter has somewhere
+        // to land
+        int center = this.islandSize / 2;
+        heights.get(center).set(center, (double) this.maxHeight);
+        return heights;
+    }
+
+    // generate the heights of the given row
+    ArrayList<Double> row(int y) {
+        ArrayList<Double> row = new ArrayList<Double>(this.islandSize + 1);
+        for (int x = 0; x <= this.islandSize; x += 1) {
+            row.add(this.heightAt(x, y));
+        }
+        return row;
+    }
+
+    // get the height of the cell at x, y, which is 0 in the ocean
+    double heightAt(int x, int y) {
+        int center = this.islandSize / 2;
+        double dx = Math.abs(x - center) / (double) this.oceanDistance;
+        double dy = Math.abs(y - center) / (double) this.oceanDistance;
+        double distance = Math.pow(Math.pow(dx, this.roundness)
+                + Math.pow(dy, this.roundness), 1 / this.roundness);
+        if (distance >= 1) {
+            return 0;
+        }
+
+        // the noise lifts or lowers the falloff by up to half
+        double falloff = 1 - distance;
+        double shape = 0.5 + 0.5 * Math.max(-1, Math.min(1,
+                1.5 * this.noise(x, y)));
+        return Math.max(Double.MIN_VALUE, this.maxHeight * falloff * shape);
+    }
+
+    // add up the octaves of noise at x, y, each at twice the frequency and
+    // half the amplitude of the last, scaled to about -1 to 1
+    double noise(int x, int y) {
+        double period = Math.max(2.0, this.oceanDistance / 2.0);
+        double total = 0;
+        double amplitude = 1;
+        double sum = 0;
+        for (int octave = 0; octave < NoiseIslandGenerator.OCTAVES; octave += 1) {
+            total += amplitude * this.gradientNoise(x / period, y / period,
+                    octave);
+            sum += amplitude;
+            period /= 2;
+            amplitude /= 2;
+        }
+        return total / sum * 1.4;
+    }
+
+    // get one octave of gradient noise at x, y: the gradients at the corners
+    // of the lattice square around the point, dotted with the offsets to it
+    // and blended smoothly
+    double gradientNoise(double x, double y, int octave) {
+        int ix = (int) Math.floor(x);
+        int iy = (int) Math.floor(y);
+        double fx = x - ix;
+        double fy = y - iy;
+        double u = this.fade(fx);
+        double v = this.fade(fy);
+
+        double top = this.lerp(this.corner(ix, iy, octave, fx, fy),
+                this.corner(ix + 1, iy, octave, fx - 1, fy), u);
+        double bottom = this.lerp(this.corner(ix, iy + 1, octave, fx, fy - 1),
+                this.corner(ix + 1, iy + 1, octave, fx - 1, fy - 1), u);
+        return this.lerp(top, bottom, v);
+    }
+
+    // dot the gradient at the lattice point ix, iy with the offset dx, dy
+    double corner(int ix, int iy, int octave, double dx, double dy) {
+        long hash = this.seed ^ (ix * 0x9E3779B97F4A7C15L)
+                ^ (iy * 0xC2B2AE3D27D4EB4FL) ^ (octave * 0x165667B19E3779F9L);
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        hash = hash ^ (hash >>> 33);
+        // one of eight directions around the point
+        switch ((int) (hash & 7)) {
+        case 0:
+            return dx + dy;
+        case 1:
+            return dx - dy;
+        case 2:
+            return -dx + dy;
+        case 3:
+            return -dx - dy;
+        case 4:
+            return dx;
+        case 5:
+            return -dx;
+        case 6:
+            return dy;
+        default:
+            return -dy;
+        }
+    }
+
+    // ease t from 0 to 1 with zero slope and curvature at both ends
+    double fade(double t) {
+        return t * t * t * (t * (t * 6 - 15) + 10);
+    }
+
+    // blend from a to b by t
+    double lerp(double a, double b, double t) {
+        return a + t * (b - a);
+    }
+
+    // generate the cells, with the ocean wherever the height is 0
+    public ArrayList<ArrayList<Cell>> generateCells(
+            ArrayList<ArrayList<Double>> heights) {
+        ArrayList<ArrayList<Cell>> results = new ArrayList<ArrayList<Cell>>();
+        for (int i = 0; i < heights.size(); i += 1) {
+            ArrayList<Cell> cellRow = new ArrayList<Cell>();
+            for (int j = 0; j < heights.get(i).size(); j += 1) {
+                if (heights.get(i).get(j) <= 0) {
+                    cellRow.add(new OceanCell(j, i));
+                }
+                else {
+                    cellRow.add(new Cell(heights.get(i).get(j), j, i));
+                }
+            }
+            results.add(cellRow);
+        }
+        return results;
+    }
+
+    NoiseIslandGenerator(int maxHeight) {
+        super(maxHeight);
+        this.seed = new Random().nextLong();
+    }
+
+    NoiseIslandGenerator(int maxHeight, int islandSize) {
+        this(maxHeight, islandSize, new Random().nextLong());
+        this.pinned = false;
+    }
+
+    NoiseIslandGenerator(int maxHeight, int islandSize, long seed) {
+        super(maxHeight, islandSize);
+        this.seed = seed;
+        this.pinned = true;
+    }
+}
+
+class ExamplesNoiseIslandGenerator {
+    NoiseIslandGenerator gen;
+
+    void initialize() {
+        this.gen = new NoiseIslandGenerator(64, 64, 42);
+    }
+
+    // test that a seed always makes the same island, whatever the bands
+    void testDeterministic(Tester t) {
+        this.initialize();
+        ArrayList<ArrayList<Double>> heights = this.gen.generateHeights();
+        t.checkExpect(new NoiseIslandGenerator(64, 64, 42).generateHeights(),
+                heights);
+
+        this.gen.grain = 1;
+        t.checkExpect(this.gen.generateHeights(), heights);
+        this.gen.grain = 65;
+        t.checkExpect(this.gen.generateHeights(), heights);
+
+        t.checkExpect(new NoiseIslandGenerator(64, 64, 43).generateHeights()
+                .equals(heights), false);
+    }
+
+    // test the shape of the island
+    void testShape(Tester t) {
+        this.initialize();
+        ArrayList<ArrayList<Double>> heights = this.gen.generateHeights();
+        t.checkExpect(heights.size(), 65);
+        t.checkExpect(heights.get(10).size(), 65);
+        t.checkExpect(heights.get(32).get(32), 64.0);
+
+        // a diamond, as far out as the diamond islands
+        boolean diamond = true;
+        for (int y = 0; y <= 64; y += 1) {
+            for (int x = 0; x <= 64; x += 1) {
+                boolean land = heights.get(y).get(x) > 0;
+                boolean inside = Math.abs(x - 32) + Math.abs(y - 32) < 32;
+                diamond = diamond && land == inside;
+                diamond = diamond && heights.get(y).get(x) <= 64;
+            }
+        }
+        t.checkExpect(diamond, true);
+
+        // a circle once the island is rounded
+        this.gen.roundness = 2;
+        heights = this.gen.generateHeights();
+        t.checkExpect(heights.get(10).get(10) > 0, true);
+        t.checkExpect(heights.get(2).get(10), 0.0);
+    }
+
+    // test making the cells of the island
+    void testTerrain(Tester t) {
+        this.initialize();
+        CellGrid grid = new CellGrid(this.gen.generateTerrain(), 65);
+        t.checkExpect(grid.cellAt(0, 0).isOcean(), true);
+        t.checkExpect(grid.cellAt(32, 32).isOcean(), false);
+        t.checkExpect(grid.cellAt(32, 32).height, 64.0);
+        t.checkExpect(grid.cellAt(32, 1).isOcean(), false);
+    }
+
+    // test that a generator given no seed makes a new island each time,
+    // until it is given one
+    void testUnseeded(Tester t) {
+        NoiseIslandGenerator gen = new NoiseIslandGenerator(64, 64);
+        ArrayList<ArrayList<Double>> heights = gen.generateHeights();
+        t.checkExpect(gen.generateHeights().equals(heights), false);
+        t.checkExpect(gen.pinned, false);
+
+        gen.reseed(42);
+        this.initialize();
+        t.checkExpect(gen.generateHeights(), this.gen.generateHeights());
+        t.checkExpect(gen.generateHeights(), this.gen.generateHeights());
+
+        // a copy keeps the shape
+        this.gen.roundness = 2;
+        t.checkExpect(this.gen.seeded(42).generateHeights(),
+                this.gen.generateHeights());
+    }
+
+    // test playing on a noise island, which is new each game
+    void testWorld(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(32);
+        world.handleReset("n");
+        t.checkExpect(world.state, new InGame());
+        t.checkExpect(world.grid.size(), 33 * 33);
+        t.checkExpect(world.helicopter.link.height, 64.0);
+        CellGrid first = world.grid;
+        world.handleReset("n");
+        boolean same = true;
+        for (int i = 0; i < first.size(); i += 1) {
+            same = same && first.get(i).height == world.grid.get(i).height;
+        }
+        t.checkExpect(same, false);
+    }
+}
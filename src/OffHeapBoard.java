@@ -0,0 +1,490 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import tester.*;
+
+// The heights and flooding of a board's cells by index in row order, for
+// game logic that must work on boards too large to make a Cell for each
+// square
+interface IBoard {
+    // get the number of cells along each side of the board
+    int cellsPerSide();
+
+    // get the number of cells on the board
+    int size();
+
+    // get the height of the cell at the given index
+    double height(int idx);
+
+    // check if the cell at the given index is ocean
+    boolean isOcean(int idx);
+
+    // check if the cell at the given index is flooded
+    boolean isFlooded(int idx);
+
+    // flood the cell at the given index
+    // EFFECT: marks the cell flooded
+    void setFlooded(int idx);
+}
+
+// Fills a band of rows of an off-heap board from a noise island, splitting
+// it in half across the pool until the bands are small
+class OffHeapRowsTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    OffHeapBoard board;
+    NoiseIslandGenerator gen;
+    int from;
+    int to;
+
+    OffHeapRowsTask(OffHeapBoard board, NoiseIslandGenerator gen, int from,
+            int to) {
+        this.board = board;
+        this.gen = gen;
+        this.from = from;
+        this.to = to;
+    }
+
+    // fill the band
+    // EFFECT: sets the heights of the rows from from to to
+    protected void compute() {
+        if (this.to - this.from <= this.gen.grain) {
+            int side = this.board.side;
+            for (int y = this.from; y < this.to; y += 1) {
+                for (int x = 0; x < side; x += 1) {
+                    double height = this.gen.heightAt(x, y);
+                    if (height <= 0) {
+                        this.board.setOcean(y * side + x);
+                    }
+                    else {
+                        this.board.setHeight(y * side + x, height);
+                    }
+                }
+            }
+        }
+        else {
+            int mid = (this.from + this.to) >>> 1;
+            OffHeapRowsTask.invokeAll(
+                    new OffHeapRowsTask(this.board, this.gen, this.from, mid),
+                    new OffHeapRowsTask(this.board, this.gen, mid, this.to));
+        }
+    }
+}
+
+// A board kept outside the heap, so that boards of hundreds of millions of
+// cells neither fill the heap nor slow down the collector. The heights are
+// floats, with the ocean infinitely deep as in the TerrainKernel, in bands of
+// rows of at most a gigabyte each, either allocated directly or mapped from
+// a file, which the operating system pages in as the cells are used. The
+// flooded cells other than the ocean are bits in one more direct buffer
+class OffHeapBoard implements IBoard {
+    // the file's magic number, and the bytes before the heights
+    static final int MAGIC = 0x48474854;
+    static final int HEADER = 8;
+    // the most heights in one band
+    static final int BAND_CELLS = 1 << 28;
+
+    int side;
+    // the number of cells in each band, which is a whole number of rows
+    int bandCells;
+    FloatBuffer[] heights;
+    LongBuffer flooded;
+    // the bands as mapped from a file, if they are, to write them back
+    MappedByteBuffer[] mapped;
+
+    // creates a board of the given side, allocated directly, with every cell
+    // at height 0, in bands of at most the given number of cells
+    OffHeapBoard(int side, int bandCells) {
+        this.init(side, bandCells);
+        for (int b = 0; b < this.heights.length; b += 1) {
+            this.heights[b] = ByteBuffer.allocateDirect(this.bandSize(b) * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+
+    OffHeapBoard(int side) {
+        this(side, OffHeapBoard.BAND_CELLS);
+    }
+
+    // creates a board of the given side mapped from the given file, which
+    // is made with every cell at height 0 if it does not exist
+    OffHeapBoard(Path file, int side, int bandCells) throws IOException {
+        if (side < 1 || side > 46340) {
+            throw new IllegalArgumentException(
+                    "A board must have from 1 to 46340 cells along a side");
+        }
+        long length = OffHeapBoard.HEADER + (long) side * side * 4;
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(OffHeapBoard.HEADER)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(OffHeapBoard.MAGIC).putInt(side).flip();
+                channel.write(header, 0);
+            }
+            this.init(OffHeapBoard.readSide(channel), bandCells);
+            if (this.side != side || channel.size() > length) {
+                throw new IllegalArgumentException("The file " + file
+                        + " is not a board with " + side
+                        + " cells along a side");
+            }
+
+            this.mapped = new MappedByteBuffer[this.heights.length];
+            for (int b = 0; b < this.heights.length; b += 1) {
+                this.mapped[b] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        OffHeapBoard.HEADER + (long) b * this.bandCells * 4,
+                        (long) this.bandSize(b) * 4);
+                this.heights[b] = this.mapped[b]
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+        }
+    }
+
+    // open the board saved in the given file
+    static OffHeapBoard open(Path file) throws IOException {
+        int side;
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            side = OffHeapBoard.readSide(channel);
+        }
+        return new OffHeapBoard(file, side, OffHeapBoard.BAND_CELLS);
+    }
+
+    // read the side of the board from the header of the given file
+    static int readSide(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(OffHeapBoard.HEADER)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < OffHeapBoard.HEADER
+                || header.getInt() != OffHeapBoard.MAGIC) {
+            throw new IllegalArgumentException("Not a board file");
+        }
+        return header.getInt();
+    }
+
+    // copy the given grid's heights and flooding into a board allocated
+    // directly
+    static OffHeapBoard of(CellGrid grid) {
+        OffHeapBoard board = new OffHeapBoard(grid.side);
+        for (int i = 0; i < grid.size(); i += 1) {
+            Cell cell = grid.get(i);
+            if (cell.isOcean()) {
+                board.setOcean(i);
+            }
+            else {
+                board.setHeight(i, cell.height);
+                if (cell.isFlooded) {
+                    board.setFlooded(i);
+                }
+            }
+        }
+        return board;
+    }
+
+    // set the side and band sizes, and allocate the flooded bits
+    // EFFECT: sets side, bandCells, heights and flooded
+    void init(int side, int bandCells) {
+        if (side < 1 || side > 46340) {
+            throw new IllegalArgumentException(
+                    "A board must have from 1 to 46340 cells along a side");
+        }
+        this.side = side;
+        this.bandCells = Math.max(1, bandCells / side) * side;
+        int size = side * side;
+        this.heights = new FloatBuffer[(size + this.bandCells - 1)
+                / this.bandCells];
+        this.flooded = ByteBuffer.allocateDirect((size + 63) / 64 * 8)
+                .asLongBuffer();
+    }
+
+    // get the number of cells in the band at the given index
+    int bandSize(int band) {
+        return Math.min(this.bandCells, this.size() - band * this.bandCells);
+    }
+
+    // fill the board with the given noise island, which must be the same
+    // size, the rows in parallel
+    // EFFECT: sets every height
+    void fill(NoiseIslandGenerator gen) {
+        if (gen.islandSize + 1 != this.side) {
+            throw new IllegalArgumentException("The island has "
+                    + (gen.islandSize + 1) + " cells along a side, not "
+                    + this.side);
+        }
+        ForkJoinPool.commonPool()
+                .invoke(new OffHeapRowsTask(this, gen, 0, this.side));
+        int center = this.side / 2;
+        this.setHeight(center * this.side + center, gen.maxHeight);
+    }
+
+    // write the heights of a board mapped from a file back to it
+    // EFFECT: writes the file
+    void force() {
+        if (this.mapped != null) {
+            for (MappedByteBuffer band : this.mapped) {
+                band.force();
+            }
+        }
+    }
+
+    // get the number of cells along each side of the board
+    public int cellsPerSide() {
+        return this.side;
+    }
+
+    // get the number of cells on the board
+    public int size() {
+        return this.side * this.side;
+    }
+
+    // get the height of the cell at the given index
+    public double height(int idx) {
+        return this.heights[idx / this.bandCells].get(idx % this.bandCells);
+    }
+
+    // set the height of the cell at the given index
+    // EFFECT: modifies the heights
+    void setHeight(int idx, double height) {
+        this.heights[idx / this.bandCells].put(idx % this.bandCells,
+                (float) height);
+    }
+
+    // make the cell at the given index ocean
+    // EFFECT: modifies the heights
+    void setOcean(int idx) {
+        this.heights[idx / this.bandCells].put(idx % this.bandCells,
+                Float.NEGATIVE_INFINITY);
+    }
+
+    // check if the cell at the given index is ocean
+    public boolean isOcean(int idx) {
+        return this.height(idx) == Double.NEGATIVE_INFINITY;
+    }
+
+    // check if the cell at the given index is flooded
+    public boolean isFlooded(int idx) {
+        return (this.flooded.get(idx >>> 6) >>> idx & 1) != 0
+                || this.isOcean(idx);
+    }
+
+    // flood the cell at the given index
+    // EFFECT: sets the cell's flooded bit
+    public void setFlooded(int idx) {
+        this.flooded.put(idx >>> 6, this.flooded.get(idx >>> 6) | 1L << idx);
+    }
+}
+
+// Floods any board the way the world floods its cells, spreading from every
+// cell next to the water, with a stack of indices so that no cell needs an
+// object
+class BoardFlood {
+    int[] stack = new int[64];
+    int top;
+
+    // flood the board to the given water height, returning the number of
+    // cells newly flooded
+    // EFFECT: floods the board's cells
+    long flood(IBoard board, int waterHeight) {
+        int side = board.cellsPerSide();
+        long count = 0;
+        for (int i = 0; i < board.size(); i += 1) {
+            if (!board.isFlooded(i) && this.nextToWater(board, i, side)) {
+                this.push(i);
+                while (this.top > 0) {
+                    this.top -= 1;
+                    int cur = this.stack[this.top];
+                    if (!board.isFlooded(cur)
+                            && board.height(cur) < waterHeight) {
+                        board.setFlooded(cur);
+                        count += 1;
+                        this.pushNeighbours(cur, side);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // check if any neighbour of the cell at the given index is flooded
+    boolean nextToWater(IBoard board, int idx, int side) {
+        int x = idx % side;
+        return x > 0 && board.isFlooded(idx - 1)
+                || x < side - 1 && board.isFlooded(idx + 1)
+                || idx >= side && board.isFlooded(idx - side)
+                || idx + side < board.size() && board.isFlooded(idx + side);
+    }
+
+    // push the neighbours of the cell at the given index inside the board
+    // EFFECT: modifies the stack
+    void pushNeighbours(int idx, int side) {
+        int x = idx % side;
+        if (x > 0) {
+            this.push(idx - 1);
+        }
+        if (idx >= side) {
+            this.push(idx - side);
+        }
+        if (x < side - 1) {
+            this.push(idx + 1);
+        }
+        if (idx + side < side * side) {
+            this.push(idx + side);
+        }
+    }
+
+    // push the given index, growing the stack if it is full
+    // EFFECT: modifies the stack
+    void push(int idx) {
+        if (this.top == this.stack.length) {
+            int[] bigger = new int[this.stack.length * 2];
+            System.arraycopy(this.stack, 0, bigger, 0, this.top);
+            this.stack = bigger;
+        }
+        this.stack[this.top] = idx;
+        this.top += 1;
+    }
+}
+
+class ExamplesOffHeapBoard {
+    AIslandGenerator terrainGen = new RandomTerrainIslandGenerator(32, 32);
+
+    // check that two boards have the same heights and flooding
+    boolean same(IBoard a, IBoard b) {
+        boolean same = a.size() == b.size()
+                && a.cellsPerSide() == b.cellsPerSide();
+        for (int i = 0; i < a.size(); i += 1) {
+            same = same && a.isOcean(i) == b.isOcean(i)
+                    && a.isFlooded(i) == b.isFlooded(i)
+                    && (a.isOcean(i)
+                            || (float) a.height(i) == (float) b.height(i));
+        }
+        return same;
+    }
+
+    // test copying a grid into a board
+    void testOf(Tester t) {
+        CellGrid grid = new CellGrid(
+                new MountainIslandGenerator(16, 16).generateTerrain(), 17);
+        OffHeapBoard board = OffHeapBoard.of(grid);
+        t.checkExpect(board.cellsPerSide(), 17);
+        t.checkExpect(board.size(), 289);
+        t.checkExpect(board.isOcean(0), true);
+        t.checkExpect(board.isFlooded(0), true);
+        t.checkExpect(board.height(8 * 17 + 8), 16.0);
+        t.checkExpect(board.isOcean(8 * 17 + 8), false);
+        t.checkExpect(board.isFlooded(8 * 17 + 8), false);
+        t.checkExpect(this.same(board, grid), true);
+
+        board.setFlooded(8 * 17 + 8);
+        t.checkExpect(board.isFlooded(8 * 17 + 8), true);
+        t.checkExpect(board.isFlooded(8 * 17 + 9), false);
+    }
+
+    // test that flooding a board off the heap floods the same cells as the
+    // world floods on the heap, at every water height
+    void testFlood(Tester t) {
+        CellGrid grid = new CellGrid(this.terrainGen.generateTerrain(), 33);
+        // bands of two rows, so the cells cross from band to band
+        OffHeapBoard board = new OffHeapBoard(33, 66);
+        t.checkExpect(board.heights.length, 17);
+        for (int i = 0; i < grid.size(); i += 1) {
+            if (grid.get(i).isOcean()) {
+                board.setOcean(i);
+            }
+            else {
+                board.setHeight(i, grid.get(i).height);
+            }
+        }
+        // round the grid's heights as the board does
+        for (Cell cell : grid.cells) {
+            cell.height = (float) cell.height;
+        }
+
+        BoardFlood flood = new BoardFlood();
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld();
+        boolean same = true;
+        for (int water = 1; water <= 33; water += 1) {
+            world.flooded.clear();
+            for (int i = 0; i < grid.size(); i += 1) {
+                Cell cell = grid.get(i);
+                if (cell.left.isFlooded || cell.right.isFlooded
+                        || cell.top.isFlooded || cell.bottom.isFlooded) {
+                    cell.flood(water, world.floodStack, world.flooded);
+                }
+            }
+            same = same && flood.flood(board, water) == world.flooded.size();
+            same = same && this.same(board, grid);
+        }
+        t.checkExpect(same, true);
+
+        // and the grid itself floods as the world does
+        CellGrid mountain = new CellGrid(
+                new MountainIslandGenerator(64, 16).generateTerrain(), 17);
+        t.checkExpect(flood.flood(mountain, 58), 28L);
+        t.checkExpect(mountain.cellAt(8, 1).isFlooded, true);
+    }
+
+    // test saving a board to a file and mapping it back
+    void testMapped(Tester t) throws IOException {
+        Path file = Files.createTempFile("board", ".bin");
+        Files.delete(file);
+        try {
+            OffHeapBoard board = new OffHeapBoard(file, 65, 65 * 8);
+            t.checkExpect(board.heights.length, 9);
+            t.checkExpect(Files.size(file), 8L + 65 * 65 * 4);
+            board.fill(new NoiseIslandGenerator(64, 64, 42));
+            board.force();
+
+            OffHeapBoard opened = OffHeapBoard.open(file);
+            t.checkExpect(opened.cellsPerSide(), 65);
+            t.checkExpect(opened.heights.length, 1);
+            CellGrid grid = new CellGrid(
+                    new NoiseIslandGenerator(64, 64, 42).generateTerrain(), 65);
+            t.checkExpect(this.same(opened, grid), true);
+            t.checkExpect(opened.height(32 * 65 + 32), 64.0);
+
+            t.checkConstructorException(
+                    new IllegalArgumentException("The file " + file
+                            + " is not a board with 33 cells along a side"),
+                    "OffHeapBoard", file, 33, 1024);
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+        t.checkConstructorException(
+                new IllegalArgumentException(
+                        "A board must have from 1 to 46340 cells along a side"),
+                "OffHeapBoard", 0, 1024);
+        t.checkException(
+                new IllegalArgumentException(
+                        "The island has 33 cells along a side, not 65"),
+                new OffHeapBoard(65), "fill",
+                new NoiseIslandGenerator(64, 32, 1));
+    }
+
+    // test that a large board lives off the heap
+    void testLarge(Tester t) {
+        Runtime runtime = Runtime.getRuntime();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        OffHeapBoard board = new OffHeapBoard(4097);
+        board.fill(new NoiseIslandGenerator(64, 4096, 3));
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        t.checkExpect(board.size(), 4097 * 4097);
+        t.checkExpect(board.height(2048 * 4097 + 2048), 64.0);
+        t.checkExpect(board.isOcean(0), true);
+        // 67 megabytes of heights, and barely any of the heap
+        t.checkExpect(after - before < 8L << 20, true);
+    }
+}
@@ -0,0 +1,501 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import tester.*;
+
+// A way of flooding a board, for the world to use instead of flooding cell
+// by cell
+interface IFloodEngine {
+    // flood every dry cell below the given water height that the water can
+    // reach from a flooded cell
+    // EFFECT: sets the cells' isFlooded flags, and adds each newly flooded
+    // cell to log
+    void flood(int waterHeight, ArrayList<Cell> log);
+}
+
+// Floods the cells of a band of rows of a parallel flood: marks which of
+// its cells are wet, finds the cells the water starts from, or floods the
+// neighbours of the band's cells flooded in the last round
+class FloodBand extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    // the cells a band sends to the band above, to itself and to the band
+    // below
+    static final int UP = 0;
+    static final int OWN = 1;
+    static final int DOWN = 2;
+
+    ParallelFlood flood;
+    int index;
+    int fromRow;
+    int toRow;
+    // the cells flooded in this round and the last, to be spread from by
+    // the band whose rows they are in, kept apart by the band they go to
+    int[][][] sent = new int[2][3][];
+    int[][] sentCounts = new int[2][3];
+    // the cells of this band's rows flooded in this flood, in row order
+    int[] fresh;
+    int freshCount;
+
+    FloodBand(ParallelFlood flood, int index, int fromRow, int toRow) {
+        this.flood = flood;
+        this.index = index;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+        int start = Math.max(16, (toRow - fromRow) * flood.side / 16);
+        for (int r = 0; r < 2; r += 1) {
+            for (int to = 0; to < 3; to += 1) {
+                this.sent[r][to] = new int[start];
+            }
+        }
+        this.fresh = new int[start];
+    }
+
+    // do this band's part of the flood's current phase
+    // EFFECT: modifies the flood's wet cells and this band's cells
+    protected void compute() {
+        if (this.flood.phase == ParallelFlood.MARK) {
+            this.mark();
+        }
+        else if (this.flood.phase == ParallelFlood.SEED) {
+            this.seed();
+        }
+        else if (this.flood.phase == ParallelFlood.SPREAD) {
+            this.spread();
+        }
+        else {
+            this.apply();
+        }
+    }
+
+    // mark which of this band's cells are flooded. Every row starts a new
+    // word, so no other band writes these words
+    // EFFECT: modifies the flood's wet cells for these rows
+    void mark() {
+        int round = this.flood.round;
+        Arrays.fill(this.sentCounts[round], 0);
+        int side = this.flood.side;
+        for (int y = this.fromRow; y < this.toRow; y += 1) {
+            int word = y * this.flood.rowWords;
+            for (int x = 0; x < side; x += 64) {
+                long bits = 0;
+                int end = Math.min(64, side - x);
+                for (int b = 0; b < end; b += 1) {
+                    if (this.flood.cells[y * side + x + b].isFlooded) {
+                        bits |= 1L << b;
+                    }
+                }
+                this.flood.wet.set(word, bits);
+                this.flood.before[word] = bits;
+                word += 1;
+            }
+        }
+    }
+
+    // flood the dry cells of this band below the water that are next to a
+    // wet cell, which the water spreads from
+    // EFFECT: modifies the flood's wet cells and this band's cells
+    void seed() {
+        int side = this.flood.side;
+        for (int y = this.fromRow; y < this.toRow; y += 1) {
+            for (int x = 0; x < side; x += 1) {
+                int idx = y * side + x;
+                if (this.flood.ground[idx] < this.flood.water
+                        && !this.flood.isWet(x, y)
+                        && (this.flood.isWet(Math.max(x - 1, 0), y)
+                                || this.flood.isWet(Math.min(x + 1, side - 1), y)
+                                || this.flood.isWet(x, Math.max(y - 1, 0))
+                                || this.flood.isWet(x,
+                                        Math.min(y + 1, side - 1)))) {
+                    this.claim(x, y);
+                }
+            }
+        }
+    }
+
+    // flood the neighbours below the water of the cells of this band
+    // flooded in the last round, by any band
+    // EFFECT: modifies the flood's wet cells and this band's cells
+    void spread() {
+        int last = 1 - this.flood.round;
+        Arrays.fill(this.sentCounts[this.flood.round], 0);
+        if (this.index > 0) {
+            this.spreadFrom(this.flood.bands[this.index - 1], last,
+                    FloodBand.DOWN);
+        }
+        this.spreadFrom(this, last, FloodBand.OWN);
+        if (this.index < this.flood.bands.length - 1) {
+            this.spreadFrom(this.flood.bands[this.index + 1], last,
+                    FloodBand.UP);
+        }
+    }
+
+    // flood the neighbours below the water of the cells the given band sent
+    // this band in the given round
+    // EFFECT: modifies the flood's wet cells and this band's cells
+    void spreadFrom(FloodBand band, int round, int to) {
+        int side = this.flood.side;
+        int[] cells = band.sent[round][to];
+        for (int i = 0; i < band.sentCounts[round][to]; i += 1) {
+            int y = cells[i] / side;
+            int x = cells[i] - y * side;
+            this.spreadTo(Math.max(x - 1, 0), y);
+            this.spreadTo(Math.min(x + 1, side - 1), y);
+            this.spreadTo(x, Math.max(y - 1, 0));
+            this.spreadTo(x, Math.min(y + 1, side - 1));
+        }
+    }
+
+    // flood the given cell if it is below the water and no band has
+    // flooded it yet
+    // EFFECT: modifies the flood's wet cells and this band's cells
+    void spreadTo(int x, int y) {
+        if (this.flood.ground[y * this.flood.side + x] < this.flood.water) {
+            this.claim(x, y);
+        }
+    }
+
+    // flood the given cell, unless it is wet already or another band
+    // floods it first, and send it to the band whose rows it is in
+    // EFFECT: modifies the flood's wet cells and this band's cells
+    void claim(int x, int y) {
+        if (!this.flood.claim(x, y)) {
+            return;
+        }
+
+        int idx = y * this.flood.side + x;
+        int to = FloodBand.OWN;
+        if (y < this.fromRow) {
+            to = FloodBand.UP;
+        }
+        else if (y >= this.toRow) {
+            to = FloodBand.DOWN;
+        }
+        int round = this.flood.round;
+        this.sent[round][to] = this.add(this.sent[round][to],
+                this.sentCounts[round][to], idx);
+        this.sentCounts[round][to] += 1;
+    }
+
+    // put the given value at the given position of the array, growing it if
+    // it is full, and return the array
+    int[] add(int[] array, int count, int value) {
+        if (count == array.length) {
+            array = Arrays.copyOf(array, count * 2);
+        }
+        array[count] = value;
+        return array;
+    }
+
+    // flood the cells of this band's rows that are wet now and were not
+    // before this flood
+    // EFFECT: sets the cells' isFlooded flags, and modifies fresh
+    void apply() {
+        this.freshCount = 0;
+        int side = this.flood.side;
+        for (int y = this.fromRow; y < this.toRow; y += 1) {
+            int word = y * this.flood.rowWords;
+            for (int x = 0; x < side; x += 64) {
+                long bits = this.flood.wet.get(word)
+                        & ~this.flood.before[word];
+                while (bits != 0) {
+                    int idx = y * side + x + Long.numberOfTrailingZeros(bits);
+                    this.flood.cells[idx].isFlooded = true;
+                    this.fresh = this.add(this.fresh, this.freshCount, idx);
+                    this.freshCount += 1;
+                    bits &= bits - 1;
+                }
+                word += 1;
+            }
+        }
+    }
+
+    // get the number of cells this band sent in the current round
+    int sentCount() {
+        int[] counts = this.sentCounts[this.flood.round];
+        return counts[0] + counts[1] + counts[2];
+    }
+}
+
+// Runs every band of a parallel flood at once across the pool
+class FloodPhase extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    FloodBand[] bands;
+
+    FloodPhase(FloodBand[] bands) {
+        this.bands = bands;
+    }
+
+    // run the bands
+    // EFFECT: modifies the flood's wet cells and the bands' cells
+    protected void compute() {
+        for (int i = 0; i < this.bands.length; i += 1) {
+            this.bands[i].reinitialize();
+        }
+        FloodPhase.invokeAll(this.bands);
+    }
+}
+
+// Floods a board a round at a time from the edge of the water, for boards
+// so large that one rise floods a great many cells. The rows are split into
+// bands run in parallel. Each round, every band floods the neighbours below
+// the water of its cells flooded in the last round. A cell is flooded by
+// whichever band sets its bit in the wet cells first, with a compare and
+// set, so no two bands flood the same cell. The cells flooded are those
+// Cell.flood floods, and are logged in row order rather than the order the
+// water reached them
+class ParallelFlood implements IFloodEngine {
+    // the phases of a flood
+    static final int MARK = 0;
+    static final int SEED = 1;
+    static final int SPREAD = 2;
+    static final int APPLY = 3;
+
+    // the number of cells along each side of the board, and the words of
+    // wet cells each row takes
+    int side;
+    int rowWords;
+    // the cells in row order, and their heights with ocean cells infinitely
+    // deep
+    Cell[] cells;
+    double[] ground;
+    // a bit for each cell that is flooded or taken by a band in this flood,
+    // and for each cell that was flooded before it
+    AtomicLongArray wet;
+    long[] before;
+
+    // the height of the water, the phase the bands are in, and which of
+    // their two rounds of cells is being sent
+    int water;
+    int phase;
+    int round;
+
+    FloodBand[] bands;
+    FloodPhase step;
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    // creates a flood over the grid with a few bands for each thread of the
+    // pool
+    ParallelFlood(CellGrid grid) {
+        this(grid, 4 * ForkJoinPool.commonPool().getParallelism());
+    }
+
+    // creates a flood over the grid split into the given number of bands
+    ParallelFlood(CellGrid grid, int bandCount) {
+        this.side = grid.side;
+        this.rowWords = (this.side + 63) / 64;
+        this.cells = new Cell[grid.size()];
+        this.ground = new double[grid.size()];
+        for (int i = 0; i < grid.size(); i += 1) {
+            this.cells[i] = grid.get(i);
+            if (this.cells[i].isOcean()) {
+                this.ground[i] = Double.NEGATIVE_INFINITY;
+            }
+            else {
+                this.ground[i] = this.cells[i].height;
+            }
+        }
+        this.wet = new AtomicLongArray(this.side * this.rowWords);
+        this.before = new long[this.side * this.rowWords];
+
+        int count = Math.max(1, Math.min(this.side, bandCount));
+        int rows = (this.side + count - 1) / count;
+        ArrayList<FloodBand> bands = new ArrayList<FloodBand>();
+        for (int row = 0; row < this.side; row += rows) {
+            bands.add(new FloodBand(this, bands.size(), row,
+                    Math.min(this.side, row + rows)));
+        }
+        this.bands = bands.toArray(new FloodBand[bands.size()]);
+        this.step = new FloodPhase(this.bands);
+    }
+
+    // check if the cell at the given position is wet
+    boolean isWet(int x, int y) {
+        return (this.wet.get(y * this.rowWords + (x >> 6)) & 1L << x) != 0;
+    }
+
+    // set the bit of the cell at the given position, returning whether it
+    // was clear, so only one band can take each cell
+    // EFFECT: modifies wet
+    boolean claim(int x, int y) {
+        int word = y * this.rowWords + (x >> 6);
+        long bit = 1L << x;
+        long bits = this.wet.get(word);
+        while ((bits & bit) == 0) {
+            if (this.wet.compareAndSet(word, bits, bits | bit)) {
+                return true;
+            }
+            bits = this.wet.get(word);
+        }
+        return false;
+    }
+
+    // run every band in the given phase
+    // EFFECT: modifies wet and the bands
+    void run(int phase) {
+        this.phase = phase;
+        this.step.reinitialize();
+        this.pool.invoke(this.step);
+    }
+
+    // flood every dry cell below the given water height that the water can
+    // reach from a flooded cell
+    // EFFECT: sets the cells' isFlooded flags, and adds each newly flooded
+    // cell to log in row order
+    public void flood(int waterHeight, ArrayList<Cell> log) {
+        this.water = waterHeight;
+        this.round = 0;
+        this.run(ParallelFlood.MARK);
+        this.run(ParallelFlood.SEED);
+        while (this.sentCount() > 0) {
+            this.round = 1 - this.round;
+            this.run(ParallelFlood.SPREAD);
+        }
+        this.run(ParallelFlood.APPLY);
+
+        for (int b = 0; b < this.bands.length; b += 1) {
+            FloodBand band = this.bands[b];
+            for (int i = 0; i < band.freshCount; i += 1) {
+                log.add(this.cells[band.fresh[i]]);
+            }
+        }
+    }
+
+    // get the number of cells the bands sent in the current round
+    int sentCount() {
+        int count = 0;
+        for (int i = 0; i < this.bands.length; i += 1) {
+            count += this.bands[i].sentCount();
+        }
+        return count;
+    }
+}
+
+class ExamplesParallelFlood {
+    AIslandGenerator mountainGen = new MountainIslandGenerator(64, 64);
+    AIslandGenerator randomGen = new RandomIslandGenerator(64, 64);
+    AIslandGenerator terrainGen = new RandomTerrainIslandGenerator(64, 64);
+
+    // flood the grid to the given water height the way the world does,
+    // returning the cells flooded
+    ArrayList<Cell> flood(CellGrid grid, int waterHeight) {
+        ArrayList<Cell> stack = new ArrayList<Cell>();
+        ArrayList<Cell> log = new ArrayList<Cell>();
+        for (Cell cell : grid.cells) {
+            if (cell.left.isFlooded || cell.right.isFlooded
+                    || cell.top.isFlooded || cell.bottom.isFlooded) {
+                cell.flood(waterHeight, stack, log);
+            }
+        }
+        return log;
+    }
+
+    // check that flooding the grid in parallel with the given number of
+    // bands floods the cells flooding it cell by cell does, at every water
+    // height up to the given one, logging them in row order
+    boolean matches(CellGrid grid, int bandCount, int maxHeight) {
+        ParallelFlood parallel = new ParallelFlood(grid, bandCount);
+        boolean same = true;
+        ArrayList<Cell> log = new ArrayList<Cell>();
+        for (int water = 0; water <= maxHeight; water += 3) {
+            ArrayList<Cell> expected = this.flood(grid, water);
+            boolean[] wet = new boolean[grid.size()];
+            for (int i = 0; i < grid.size(); i += 1) {
+                wet[i] = grid.get(i).isFlooded;
+            }
+            for (Cell cell : expected) {
+                cell.isFlooded = false;
+            }
+
+            log.clear();
+            parallel.flood(water, log);
+            same = same && log.size() == expected.size();
+            for (int i = 0; i < grid.size(); i += 1) {
+                same = same && grid.get(i).isFlooded == wet[i];
+            }
+            for (int i = 1; i < log.size(); i += 1) {
+                same = same && grid.indexOf(log.get(i - 1)) < grid
+                        .indexOf(log.get(i));
+            }
+        }
+        return same;
+    }
+
+    // test flooding boards from every generator with many numbers of bands
+    void testMatchesCells(Tester t) {
+        AIslandGenerator[] gens = { this.mountainGen, this.randomGen,
+            this.terrainGen };
+        int[] bandCounts = { 1, 2, 5, 16, 64, 100 };
+        for (AIslandGenerator gen : gens) {
+            for (int bands : bandCounts) {
+                CellGrid grid = new CellGrid(gen.generateTerrain(), 65);
+                t.checkExpect(this.matches(grid, bands, gen.maxHeight), true);
+            }
+        }
+    }
+
+    // test the bands the rows are split into
+    void testBands(Tester t) {
+        CellGrid grid = new CellGrid(this.mountainGen.generateTerrain(), 65);
+        t.checkExpect(new ParallelFlood(grid, 1).bands.length, 1);
+        t.checkExpect(new ParallelFlood(grid, 16).bands.length, 13);
+        t.checkExpect(new ParallelFlood(grid, 100).bands.length, 65);
+        t.checkExpect(new ParallelFlood(grid, 16).bands[12].fromRow, 60);
+        t.checkExpect(new ParallelFlood(grid, 16).rowWords, 2);
+    }
+
+    // test that a rise that reaches no cell floods nothing
+    void testNothing(Tester t) {
+        CellGrid grid = new CellGrid(this.mountainGen.generateTerrain(), 65);
+        ParallelFlood parallel = new ParallelFlood(grid, 4);
+        ArrayList<Cell> log = new ArrayList<Cell>();
+        parallel.flood(0, log);
+        t.checkExpect(log.size(), 0);
+        // the coast of the mountain is height 33, and the next ring 34
+        parallel.flood(33, log);
+        t.checkExpect(log.size(), 0);
+        parallel.flood(34, log);
+        t.checkExpect(log.size(), 124);
+        t.checkExpect(grid.cellAt(32, 1).isFlooded, true);
+        t.checkExpect(grid.cellAt(32, 2).isFlooded, false);
+    }
+
+    // test playing with the parallel engine, which floods as the world does
+    // cell by cell
+    void testWorld(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        ForbiddenIslandWorld cells = new ForbiddenIslandWorld(16);
+        world.onKeyEvent("e");
+        t.checkExpect(world.floodMode, ForbiddenIslandWorld.FLOOD_PARALLEL);
+        this.terrainGen.reseed(7);
+        world.reset(this.terrainGen);
+        this.terrainGen.reseed(7);
+        cells.reset(this.terrainGen);
+        t.checkExpect(world.engine == null, false);
+        t.checkExpect(cells.engine == null, true);
+
+        boolean same = true;
+        for (int water = 1; water <= this.terrainGen.maxHeight; water += 1) {
+            world.flood(water);
+            cells.flood(water);
+            same = same && world.flooded.size() == cells.flooded.size();
+            for (int i = 0; i < world.grid.size(); i += 1) {
+                same = same && world.grid.get(i).isFlooded == cells.grid
+                        .get(i).isFlooded;
+            }
+        }
+        t.checkExpect(same, true);
+        t.checkExpect(world.kernel.pixels, cells.kernel.pixels);
+    }
+
+    // test choosing the engine from the menu
+    void testMenu(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld();
+        world.onKeyEvent("e");
+        t.checkExpect(world.floodMode, ForbiddenIslandWorld.FLOOD_PARALLEL);
+    }
+}
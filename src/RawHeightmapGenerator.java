@@ -0,0 +1,412 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+import tester.*;
+
+// An island read from a raw heightmap file, a grid of columns by rows of
+// 16-bit unsigned or 32-bit float heights in row order with no header, as
+// terrain tools export real-world tiles. The board is the square of cropSide
+// cells from cropX, cropY, taking every step-th cell of it, and every cell
+// at or below seaLevel is ocean. The heights are scaled so that the highest
+// cell is maxHeight. The file is mapped rather than read, and the cells are
+// made straight from the mapping, so only the rows cropped are paged in and
+// nothing is copied on the way
+class RawHeightmapGenerator extends AIslandGenerator {
+    // the formats of the heights
+    static final int UINT16 = 2;
+    static final int FLOAT32 = 4;
+
+    Path file;
+    int columns;
+    int rows;
+    // the bytes of each height, which is its format, and their order
+    int format;
+    ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+
+    // the height in the file at or below which cells are ocean
+    double seaLevel = 0;
+    // the square of the file made into the board, and the cells skipped
+    // between each cell of the board
+    int cropX = 0;
+    int cropY = 0;
+    int cropSide;
+    int step = 1;
+
+    RawHeightmapGenerator(Path file, int columns, int rows, int format,
+            int maxHeight) {
+        super(maxHeight);
+        if (format != RawHeightmapGenerator.UINT16
+                && format != RawHeightmapGenerator.FLOAT32) {
+            throw new IllegalArgumentException(
+                    "A heightmap's heights are 2 or 4 bytes each");
+        }
+        this.file = file;
+        this.columns = columns;
+        this.rows = rows;
+        this.format = format;
+        this.cropSide = Math.min(columns, rows);
+    }
+
+    // the island is the file's whatever the seed, so this is its own seeded
+    // generator
+    AIslandGenerator seeded(long seed) {
+        return this;
+    }
+
+    // the island is set by the file and how it is read and cropped rather
+    // than by the seed, and its size is only known once the file is mapped,
+    // so the key is those settings and the maximum height
+    String cacheKey(long seed) {
+        return this.getClass().getName() + "/" + this.file.toAbsolutePath()
+                + "/" + this.columns + "x" + this.rows + "/" + this.format
+                + "/" + this.order + "/" + this.seaLevel + "/" + this.cropX
+                + "," + this.cropY + "," + this.cropSide + "/" + this.step
+                + "/" + this.maxHeight;
+    }
+
+    // map the rows of the file that are cropped, and set the island's size
+    // EFFECT: modifies islandSize
+    ByteBuffer map() {
+        if (this.step < 1 || this.cropSide < 1 || this.cropX < 0
+                || this.cropY < 0 || this.cropX + this.cropSide > this.columns
+                || this.cropY + this.cropSide > this.rows) {
+            throw new IllegalArgumentException("The crop " + this.cropSide
+                    + " from " + this.cropX + ", " + this.cropY
+                    + " is not inside the " + this.columns + " by "
+                    + this.rows + " heightmap");
+        }
+        this.islandSize = (this.cropSide + this.step - 1) / this.step - 1;
+
+        try (FileChannel channel = FileChannel.open(this.file,
+                StandardOpenOption.READ)) {
+            long rowBytes = (long) this.columns * this.format;
+            if (channel.size() != rowBytes * this.rows) {
+                throw new IllegalArgumentException("The file " + this.file
+                        + " is not a " + this.columns + " by " + this.rows
+                        + " heightmap");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY,
+                    rowBytes * this.cropY, rowBytes * this.cropSide)
+                    .order(this.order);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // get the height in the file of the cell at x, y of the board
+    double raw(ByteBuffer map, int x, int y) {
+        int idx = (y * this.step * this.columns + this.cropX + x * this.step)
+                * this.format;
+        if (this.format == RawHeightmapGenerator.UINT16) {
+            return map.getShort(idx) & 0xFFFF;
+        }
+        return map.getFloat(idx);
+    }
+
+    // get the highest height in the file of any cell of the board, which
+    // must be above the sea so the helicopter has somewhere to land
+    double peak(ByteBuffer map) {
+        double peak = Double.NEGATIVE_INFINITY;
+        for (int y = 0; y <= this.islandSize; y += 1) {
+            for (int x = 0; x <= this.islandSize; x += 1) {
+                peak = Math.max(peak, this.raw(map, x, y));
+            }
+        }
+        if (!(peak > this.seaLevel)) {
+            throw new IllegalArgumentException(
+                    "The heightmap has no land above the sea");
+        }
+        return peak;
+    }
+
+    // scale a height in the file to the board, where the sea is 0 and the
+    // peak is maxHeight
+    double scale(double raw, double peak) {
+        if (raw <= this.seaLevel) {
+            return 0;
+        }
+        if (raw == peak) {
+            return this.maxHeight;
+        }
+        return (raw - this.seaLevel) * this.maxHeight
+                / (peak - this.seaLevel);
+    }
+
+    // generate the heights of the cells on this island, scaled to the board
+    public ArrayList<ArrayList<Double>> generateHeights() {
+        ByteBuffer map = this.map();
+        double peak = this.peak(map);
+        ArrayList<ArrayList<Double>> heights = new ArrayList<ArrayList<Double>>();
+        for (int y = 0; y <= this.islandSize; y += 1) {
+            ArrayList<Double> row = new ArrayList<Double>();
+            for (int x = 0; x <= this.islandSize; x += 1) {
+                row.add(this.scale(this.raw(map, x, y), peak));
+            }
+            heights.add(row);
+        }
+        return heights;
+    }
+
+    // generate the cells, with the ocean wherever the height is at or below
+    // the sea
+    public ArrayList<ArrayList<Cell>> generateCells(
+            ArrayList<ArrayList<Double>> heights) {
+        ArrayList<ArrayList<Cell>> results = new ArrayList<ArrayList<Cell>>();
+        for (int y = 0; y < heights.size(); y += 1) {
+            ArrayList<Cell> cellRow = new ArrayList<Cell>();
+            for (int x = 0; x < heights.get(y).size(); x += 1) {
+                cellRow.add(this.cell(heights.get(y).get(x), x, y));
+            }
+            results.add(cellRow);
+        }
+        return results;
+    }
+
+    // make the cell at x, y with the given height
+    Cell cell(double height, int x, int y) {
+        if (height <= 0) {
+            return new OceanCell(x, y);
+        }
+        return new Cell(height, x, y);
+    }
+
+    // generate the terrain straight from the mapped file, a row of cells at
+    // a time, without making the lists of heights and cells
+    public IList<Cell> generateTerrain() {
+        ByteBuffer map = this.map();
+        double peak = this.peak(map);
+        int side = this.islandSize + 1;
+
+        Cell[][] board = new Cell[side][side];
+        for (int y = 0; y < side; y += 1) {
+            for (int x = 0; x < side; x += 1) {
+                board[y][x] = this.cell(this.scale(this.raw(map, x, y), peak),
+                        x, y);
+            }
+        }
+
+        // link the neighbours and build the list back to front, so it ends
+        // up in row order
+        IList<Cell> result = new Empty<Cell>();
+        for (int y = side - 1; y >= 0; y -= 1) {
+            Cell[] top = board[Math.max(y - 1, 0)];
+            Cell[] bottom = board[Math.min(y + 1, side - 1)];
+            for (int x = side - 1; x >= 0; x -= 1) {
+                board[y][x].setNeighbors(board[y][Math.max(x - 1, 0)], top[x],
+                        board[y][Math.min(x + 1, side - 1)], bottom[x]);
+                result = new Cons<Cell>(board[y][x], result);
+            }
+        }
+        return result;
+    }
+}
+
+class ExamplesRawHeightmapGenerator {
+    Path file;
+
+    // write a heightmap of the given format whose height at x, y is
+    // x + 10 * y, with a 0 border, and return a generator for it
+    RawHeightmapGenerator write(int columns, int rows, int format,
+            ByteOrder order) throws IOException {
+        this.file = Files.createTempFile("heightmap", ".raw");
+        ByteBuffer bytes = ByteBuffer.allocate(columns * rows * format)
+                .order(order);
+        for (int y = 0; y < rows; y += 1) {
+            for (int x = 0; x < columns; x += 1) {
+                int height = x + 10 * y;
+                if (x == 0 || y == 0 || x == columns - 1 || y == rows - 1) {
+                    height = 0;
+                }
+                if (format == RawHeightmapGenerator.UINT16) {
+                    bytes.putShort((short) height);
+                }
+                else {
+                    bytes.putFloat(height);
+                }
+            }
+        }
+        Files.write(this.file, bytes.array());
+        RawHeightmapGenerator gen = new RawHeightmapGenerator(this.file,
+                columns, rows, format, 64);
+        gen.order = order;
+        return gen;
+    }
+
+    // test reading a whole heightmap
+    void testRead(Tester t) throws IOException {
+        try {
+            RawHeightmapGenerator gen = this.write(8, 6,
+                    RawHeightmapGenerator.UINT16, ByteOrder.LITTLE_ENDIAN);
+            CellGrid grid = new CellGrid(gen.generateTerrain(), 6);
+            t.checkExpect(gen.islandSize, 5);
+            t.checkExpect(grid.size(), 36);
+            t.checkExpect(grid.cellAt(0, 0).isOcean(), true);
+            t.checkExpect(grid.cellAt(5, 5).isOcean(), true);
+            t.checkExpect(grid.cellAt(5, 3).isOcean(), false);
+            // the peak is 5 + 40, at 5, 4
+            t.checkExpect(grid.cellAt(5, 4).height, 64.0);
+            t.checkExpect(grid.cellAt(1, 1).height, 11 * 64.0 / 45);
+            t.checkExpect(grid.cellAt(1, 1).left, grid.cellAt(0, 1));
+            t.checkExpect(grid.cellAt(1, 1).bottom, grid.cellAt(1, 2));
+            t.checkExpect(grid.cellAt(0, 0).left, grid.cellAt(0, 0));
+            t.checkExpect(grid.cellAt(5, 5).bottom, grid.cellAt(5, 5));
+
+            // the same board as from the lists
+            CellGrid lists = new CellGrid(
+                    new ListsOfRawGenerator(gen).generateTerrain(), 6);
+            boolean same = true;
+            for (int i = 0; i < 36; i += 1) {
+                same = same && grid.get(i).height == lists.get(i).height
+                        && grid.get(i).isOcean() == lists.get(i).isOcean()
+                        && grid.indexOf(grid.get(i).top) == lists
+                                .indexOf(lists.get(i).top);
+            }
+            t.checkExpect(same, true);
+        }
+        finally {
+            Files.delete(this.file);
+        }
+    }
+
+    // test cropping, downsampling, the sea level and floats
+    void testOptions(Tester t) throws IOException {
+        try {
+            RawHeightmapGenerator gen = this.write(40, 30,
+                    RawHeightmapGenerator.FLOAT32, ByteOrder.BIG_ENDIAN);
+            gen.cropX = 3;
+            gen.cropY = 2;
+            gen.cropSide = 20;
+            gen.step = 3;
+            gen.seaLevel = 100;
+            CellGrid grid = new CellGrid(gen.generateTerrain(), 7);
+            t.checkExpect(gen.islandSize, 6);
+            // 3 + 3 * x + 10 * (2 + 3 * y)
+            t.checkExpect(grid.cellAt(0, 0).isOcean(), true);
+            t.checkExpect(grid.cellAt(5, 2).isOcean(), true);
+            t.checkExpect(grid.cellAt(6, 2).isOcean(), false);
+            t.checkExpect(grid.cellAt(0, 3).isOcean(), false);
+            t.checkExpect(grid.cellAt(6, 6).height, 64.0);
+            t.checkExpect(grid.cellAt(0, 3).height, 13 * 64.0 / 121);
+        }
+        finally {
+            Files.delete(this.file);
+        }
+    }
+
+    // test heightmaps that cannot be read
+    void testErrors(Tester t) throws IOException {
+        try {
+            RawHeightmapGenerator gen = this.write(8, 6,
+                    RawHeightmapGenerator.UINT16, ByteOrder.LITTLE_ENDIAN);
+            gen.cropX = 3;
+            t.checkException(new IllegalArgumentException(
+                    "The crop 6 from 3, 0 is not inside the 8 by 6 heightmap"),
+                    gen, "generateTerrain");
+            gen.cropX = 0;
+            gen.seaLevel = 45;
+            t.checkException(new IllegalArgumentException(
+                    "The heightmap has no land above the sea"), gen,
+                    "generateTerrain");
+            gen.rows = 5;
+            gen.cropSide = 5;
+            t.checkException(new IllegalArgumentException("The file "
+                    + this.file + " is not a 8 by 5 heightmap"), gen,
+                    "generateTerrain");
+            t.checkConstructorException(new IllegalArgumentException(
+                    "A heightmap's heights are 2 or 4 bytes each"),
+                    "RawHeightmapGenerator", this.file, 8, 6, 3, 64);
+        }
+        finally {
+            Files.delete(this.file);
+        }
+    }
+
+    // test playing on a heightmap
+    void testWorld(Tester t) throws IOException {
+        try {
+            RawHeightmapGenerator gen = this.write(65, 65,
+                    RawHeightmapGenerator.UINT16, ByteOrder.LITTLE_ENDIAN);
+            ForbiddenIslandWorld world = new ForbiddenIslandWorld(gen);
+            t.checkExpect(world.state, new InGame());
+            t.checkExpect(world.helicopter.link, world.grid.cellAt(63, 63));
+            t.checkExpect(world.islandSize, 64);
+        }
+        finally {
+            Files.delete(this.file);
+        }
+    }
+
+    // test that the cache keeps the islands of differently cropped
+    // heightmaps apart, and finds the same crop again
+    void testCacheKeys(Tester t) throws IOException {
+        try {
+            RawHeightmapGenerator whole = this.write(8, 8,
+                    RawHeightmapGenerator.UINT16, ByteOrder.LITTLE_ENDIAN);
+            RawHeightmapGenerator cropped = new RawHeightmapGenerator(
+                    this.file, 8, 8, RawHeightmapGenerator.UINT16, 64);
+            cropped.cropX = 2;
+            cropped.cropY = 2;
+            cropped.cropSide = 4;
+            IslandCache cache = new IslandCache(1 << 16);
+            t.checkExpect(cache.key(whole, 1).equals(cache.key(cropped, 1)),
+                    false);
+            t.checkExpect(new CellGrid(cache.board(whole, 1), 8).size(), 64);
+            t.checkExpect(new CellGrid(cache.board(cropped, 1), 4).size(),
+                    16);
+            t.checkExpect(cache.misses, 2);
+            cropped.cropSide = 6;
+            t.checkExpect(new CellGrid(cache.board(cropped, 1), 6).size(),
+                    36);
+            t.checkExpect(cache.misses, 3);
+            cropped.cropSide = 4;
+            cache.board(cropped, 1);
+            cache.board(cropped, 2);
+            t.checkExpect(cache.hits, 2);
+        }
+        finally {
+            Files.delete(this.file);
+        }
+    }
+}
+
+// Generates a heightmap's terrain through the lists of heights and cells,
+// to check the terrain made straight from the file against
+class ListsOfRawGenerator extends AIslandGenerator {
+    RawHeightmapGenerator gen;
+
+    ListsOfRawGenerator(RawHeightmapGenerator gen) {
+        super(gen.maxHeight);
+        this.gen = gen;
+    }
+
+    // generate the heights of the heightmap
+    ArrayList<ArrayList<Double>> generateHeights() {
+        ArrayList<ArrayList<Double>> heights = this.gen.generateHeights();
+        this.islandSize = this.gen.islandSize;
+        return heights;
+    }
+
+    // generate the cells of the heightmap
+    ArrayList<ArrayList<Cell>> generateCells(
+            ArrayList<ArrayList<Double>> heights) {
+        return this.gen.generateCells(heights);
+    }
+
+    // the heightmap is the same whatever the seed
+    AIslandGenerator seeded(long seed) {
+        return this;
+    }
+
+    // the island is the heightmap's
+    String cacheKey(long seed) {
+        return this.getClass().getName() + "/" + this.gen.cacheKey(seed);
+    }
+}
@@ -0,0 +1,211 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+
+import javalib.worldimages.*;
+import tester.*;
+
+// The time and memory a way of drawing the game took per frame, on an
+// island of some size flooded to some height
+class RenderTiming {
+    String strategy;
+    int side;
+    int waterHeight;
+    int frames;
+    // the total nanoseconds spent building the frames' images and drawing
+    // them into pixels, and the bytes allocated doing both
+    long buildNanos;
+    long rasterNanos;
+    long bytes;
+
+    RenderTiming(String strategy, int side, int waterHeight) {
+        this.strategy = strategy;
+        this.side = side;
+        this.waterHeight = waterHeight;
+    }
+
+    // get the mean microseconds spent building a frame's image
+    double buildMicros() {
+        return this.buildNanos / 1000.0 / this.frames;
+    }
+
+    // get the mean microseconds spent drawing a frame into pixels
+    double rasterMicros() {
+        return this.rasterNanos / 1000.0 / this.frames;
+    }
+
+    // get the mean bytes allocated for a frame
+    long bytesPerFrame() {
+        return this.bytes / this.frames;
+    }
+
+    // describe the timing in a line
+    public String toString() {
+        return String.format(
+                "%-7s %5d cells a side, water %3d: build %9.1f us,"
+                        + " raster %9.1f us, %10d bytes a frame",
+                this.strategy, this.side, this.waterHeight,
+                this.buildMicros(), this.rasterMicros(),
+                this.bytesPerFrame());
+    }
+}
+
+// Times drawing the game without a display: each frame's image is built as
+// makeGameScene builds it and drawn into an offscreen image, so ways of
+// drawing can be compared on islands of several sizes and flood heights
+// from the same seeded islands every run
+class RenderBenchmark {
+    // the frames drawn before timing, so the drawing code is compiled, and
+    // the frames timed
+    int warmup;
+    int frames;
+    // the offscreen image the frames are drawn into, the size of the scene
+    BufferedImage image;
+    Graphics2D graphics;
+    // where makeGameScene places the centre of the game in the scene
+    int centre;
+
+    RenderBenchmark(int warmup, int frames) {
+        if (frames <= 0) {
+            throw new IllegalArgumentException(
+                    "Frames must be positive: " + frames);
+        }
+        this.warmup = warmup;
+        this.frames = frames;
+        int pixels = (AIslandGenerator.ISLAND_SIZE + 1) * Cell.CELLSIZE;
+        this.image = new BufferedImage(pixels, pixels,
+                BufferedImage.TYPE_INT_RGB);
+        this.graphics = this.image.createGraphics();
+        this.centre = (int) ((AIslandGenerator.ISLAND_SIZE / 2.0)
+                * Cell.CELLSIZE) + 5;
+        this.graphics.translate(this.centre, this.centre);
+    }
+
+    // start a game on the noise island of the given seed with the given
+    // largest index, flooded to the given fraction of its height
+    ForbiddenIslandWorld world(int islandSize, long seed, double flooded) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(islandSize);
+        world.reset(new NoiseIslandGenerator(64, islandSize, seed));
+        world.waterHeight = (int) (flooded * world.maxHeight);
+        world.flood(world.waterHeight);
+        return world;
+    }
+
+    // time drawing the given world's frames the given way
+    // EFFECT: sets how the world draws, and draws into the image
+    RenderTiming time(String strategy, ForbiddenIslandWorld world) {
+        world.rasterized = !strategy.equals("cells");
+        world.zoomedOut = strategy.equals("zoomed");
+        RenderTiming timing = new RenderTiming(strategy,
+                world.islandSize + 1, world.waterHeight);
+        for (int i = 0; i < this.warmup; i += 1) {
+            this.raster(world.drawInGame());
+        }
+
+        long overhead = RenderBenchmark.allocated();
+        overhead = RenderBenchmark.allocated() - overhead;
+        for (int i = 0; i < this.frames; i += 1) {
+            long bytes = RenderBenchmark.allocated();
+            long start = System.nanoTime();
+            WorldImage frame = world.drawInGame();
+            long built = System.nanoTime();
+            this.raster(frame);
+            long drawn = System.nanoTime();
+            timing.bytes += RenderBenchmark.allocated() - bytes - overhead;
+            timing.buildNanos += built - start;
+            timing.rasterNanos += drawn - built;
+            timing.frames += 1;
+        }
+        return timing;
+    }
+
+    // clear the image and draw the given frame into it where the game's
+    // scene would
+    // EFFECT: modifies the image
+    void raster(WorldImage frame) {
+        this.graphics.clearRect(-this.centre, -this.centre,
+                this.image.getWidth(), this.image.getHeight());
+        frame.draw(this.graphics);
+    }
+
+    // get the number of bytes the current thread has allocated so far
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean())
+                        .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // time each way of drawing islands of the given largest indexes, or of
+    // 64, 256 and 1024, with none, a quarter, half and three quarters of
+    // their height flooded
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int[] sizes = { 64, 256, 1024 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i += 1) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        RenderBenchmark bench = new RenderBenchmark(20, 50);
+        double[] floods = { 0, 0.25, 0.5, 0.75 };
+        String[] strategies = { "cells", "raster", "zoomed" };
+        for (int size : sizes) {
+            for (double flooded : floods) {
+                ForbiddenIslandWorld world = bench.world(size, 3, flooded);
+                for (String strategy : strategies) {
+                    // the zoomed out view is only drawn for large boards
+                    if (!strategy.equals("zoomed")
+                            || size > AIslandGenerator.ISLAND_SIZE) {
+                        System.out.println(bench.time(strategy, world));
+                    }
+                }
+            }
+        }
+    }
+}
+
+class ExamplesRenderBenchmark {
+    // test that the same seed makes the same flooded island
+    void testWorld(Tester t) {
+        RenderBenchmark bench = new RenderBenchmark(0, 1);
+        ForbiddenIslandWorld world = bench.world(32, 5, 0.5);
+        ForbiddenIslandWorld again = bench.world(32, 5, 0.5);
+        t.checkExpect(world.waterHeight, 32);
+        t.checkExpect(world.state, ForbiddenIslandWorld.INGAME);
+        boolean same = true;
+        for (int i = 0; i < world.grid.size(); i += 1) {
+            Cell cell = world.grid.get(i);
+            Cell other = again.grid.get(i);
+            same = same && cell.height == other.height
+                    && cell.isFlooded == other.isFlooded;
+        }
+        t.checkExpect(same, true);
+        t.checkExpect(bench.image.getWidth(), 975);
+    }
+
+    // test timing each way of drawing
+    void testTime(Tester t) {
+        RenderBenchmark bench = new RenderBenchmark(1, 3);
+        ForbiddenIslandWorld world = bench.world(128, 5, 0.25);
+        RenderTiming cells = bench.time("cells", world);
+        t.checkExpect(world.rasterized, false);
+        t.checkExpect(cells.frames, 3);
+        t.checkExpect(cells.side, 129);
+        t.checkExpect(cells.waterHeight, 16);
+        t.checkExpect(cells.buildNanos > 0, true);
+        t.checkExpect(cells.bytesPerFrame() > 0, true);
+
+        RenderTiming zoomed = bench.time("zoomed", world);
+        t.checkExpect(world.rasterized, true);
+        t.checkExpect(world.zoomedOut, true);
+        RenderTiming raster = bench.time("raster", world);
+        t.checkExpect(world.zoomedOut, false);
+        t.checkExpect(zoomed.frames + raster.frames, 6);
+        t.checkExpect(raster.toString().startsWith(
+                "raster    129 cells a side, water  16: build"), true);
+        t.checkConstructorException(new IllegalArgumentException(
+                "Frames must be positive: 0"), "RenderBenchmark", 0, 0);
+    }
+}
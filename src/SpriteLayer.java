@@ -0,0 +1,311 @@
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import tester.*;
+import javalib.worldimages.*;
+
+// A small bitmap of ARGB pixels, drawn by copying its opaque pixels
+class Sprite {
+    // the number of pixels along each side
+    int size;
+    // the pixels in row order, with 0 for transparent ones
+    int[] pixels;
+
+    Sprite(int size) {
+        this.size = size;
+        this.pixels = new int[size * size];
+    }
+}
+
+// Makes sprites for targets and players, and keeps them so each shape and
+// colour is only made once
+class SpriteCache {
+    HashMap<String, Sprite> sprites = new HashMap<String, Sprite>();
+
+    // get a solid circle of the given radius and colour
+    Sprite circle(int radius, Color color) {
+        String key = "circle " + radius + " " + color.getRGB();
+        Sprite sprite = this.sprites.get(key);
+        if (sprite == null) {
+            sprite = new Sprite(radius * 2);
+            for (int y = 0; y < sprite.size; y += 1) {
+                for (int x = 0; x < sprite.size; x += 1) {
+                    double dx = x + 0.5 - radius;
+                    double dy = y + 0.5 - radius;
+                    if (dx * dx + dy * dy <= radius * radius) {
+                        sprite.pixels[y * sprite.size + x] = color.getRGB();
+                    }
+                }
+            }
+            this.sprites.put(key, sprite);
+        }
+        return sprite;
+    }
+
+    // get a solid square of the given size and colour
+    Sprite square(int size, Color color) {
+        String key = "square " + size + " " + color.getRGB();
+        Sprite sprite = this.sprites.get(key);
+        if (sprite == null) {
+            sprite = new Sprite(size);
+            for (int i = 0; i < sprite.pixels.length; i += 1) {
+                sprite.pixels[i] = color.getRGB();
+            }
+            this.sprites.put(key, sprite);
+        }
+        return sprite;
+    }
+}
+
+// Remembers the Color made for each ARGB value recently turned into one, so
+// that drawing a frame does not make a Color for every pixel
+class ColorCache {
+    // the number of colours remembered, which must be a power of two
+    static final int SIZE = 4096;
+
+    int[] keys = new int[ColorCache.SIZE];
+    Color[] colors = new Color[ColorCache.SIZE];
+
+    // get a Color for the given ARGB value
+    Color get(int argb) {
+        int slot = (argb ^ (argb >>> 12)) & (ColorCache.SIZE - 1);
+        if (this.colors[slot] == null || this.keys[slot] != argb) {
+            this.keys[slot] = argb;
+            this.colors[slot] = new Color(argb);
+        }
+        return this.colors[slot];
+    }
+}
+
+// The pixels of one frame: the terrain the camera shows, a block of pixels
+// per cell, with sprites copied over it. Drawing a sprite only touches the
+// pixels under it, so a frame costs its terrain plus the area of its sprites.
+// The frame is drawn into one image kept from frame to frame, and only the
+// span of each row whose pixels changed since the image was last drawn is
+// drawn again
+class FrameRaster {
+    int width;
+    int height;
+    // the pixels in row order
+    int[] pixels;
+    ColorCache colors = new ColorCache();
+    // the image the pixels were last drawn into, made on the first frame
+    ComputedPixelImage image;
+    // the columns from and to which each row has changed since then, which
+    // are the whole row before the first frame and empty once drawn
+    int[] dirtyFrom;
+    int[] dirtyTo;
+
+    FrameRaster(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+        this.dirtyFrom = new int[height];
+        this.dirtyTo = new int[height];
+        Arrays.fill(this.dirtyTo, width);
+    }
+
+    // note that the pixels from x to before to in row y have changed
+    // EFFECT: modifies dirtyFrom and dirtyTo
+    void touch(int y, int from, int to) {
+        this.dirtyFrom[y] = Math.min(this.dirtyFrom[y], from);
+        this.dirtyTo[y] = Math.max(this.dirtyTo[y], to);
+    }
+
+    // get the number of pixels to draw again in the next image
+    int dirty() {
+        int count = 0;
+        for (int y = 0; y < this.height; y += 1) {
+            count += Math.max(0, this.dirtyTo[y] - this.dirtyFrom[y]);
+        }
+        return count;
+    }
+
+    // fill the frame with the kernel's pixels for the cells the camera shows,
+    // each a square of Cell.CELLSIZE pixels
+    // EFFECT: modifies pixels, and the spans of the rows that change
+    void drawTerrain(TerrainKernel kernel, Camera camera) {
+        for (int y = 0; y < this.height; y += 1) {
+            int from = (y / Cell.CELLSIZE + camera.top) * kernel.side
+                    + camera.left;
+            int row = y * this.width;
+            int first = this.width;
+            int last = 0;
+            for (int x = 0; x < this.width; x += 1) {
+                int pixel = kernel.pixels[from + x / Cell.CELLSIZE];
+                if (this.pixels[row + x] != pixel) {
+                    this.pixels[row + x] = pixel;
+                    first = Math.min(first, x);
+                    last = x + 1;
+                }
+            }
+            this.touch(y, first, last);
+        }
+    }
+
+    // copy the opaque pixels of the sprite into the frame with its top-left
+    // corner at x, y, leaving out any that fall outside the frame
+    // EFFECT: modifies the pixels under the sprite, and the spans of their
+    // rows
+    void blit(Sprite sprite, int x, int y) {
+        int fromY = Math.max(0, -y);
+        int toY = Math.min(sprite.size, this.height - y);
+        int fromX = Math.max(0, -x);
+        int toX = Math.min(sprite.size, this.width - x);
+        for (int j = fromY; j < toY; j += 1) {
+            for (int i = fromX; i < toX; i += 1) {
+                int pixel = sprite.pixels[j * sprite.size + i];
+                if (pixel != 0) {
+                    this.pixels[(y + j) * this.width + x + i] = pixel;
+                }
+            }
+            if (fromX < toX) {
+                this.touch(y + j, x + fromX, x + toX);
+            }
+        }
+    }
+
+    // get the pixel at x, y
+    int pixelAt(int x, int y) {
+        return this.pixels[y * this.width + x];
+    }
+
+    // draw the frame as an image, which is the same image every frame, with
+    // only the pixels changed since the last frame drawn into it again
+    // EFFECT: modifies image, and empties the spans of the rows
+    WorldImage toImage() {
+        if (this.image == null) {
+            this.image = new ComputedPixelImage(this.width, this.height);
+        }
+        for (int y = 0; y < this.height; y += 1) {
+            for (int x = this.dirtyFrom[y]; x < this.dirtyTo[y]; x += 1) {
+                this.image.setPixel(x, y, this.colors.get(this.pixelAt(x, y)));
+            }
+            this.dirtyFrom[y] = this.width;
+            this.dirtyTo[y] = 0;
+        }
+        return this.image;
+    }
+}
+
+class ExamplesSpriteLayer {
+    SpriteCache sprites;
+    FrameRaster frame;
+
+    void initialize() {
+        this.sprites = new SpriteCache();
+        this.frame = new FrameRaster(30, 20);
+    }
+
+    // count the opaque pixels of a sprite
+    int opaque(Sprite sprite) {
+        int count = 0;
+        for (int pixel : sprite.pixels) {
+            if (pixel != 0) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    // test making and caching sprites
+    void testSprites(Tester t) {
+        this.initialize();
+        Sprite circle = this.sprites.circle(6, Color.MAGENTA);
+        t.checkExpect(circle.size, 12);
+        t.checkExpect(circle.pixels[0], 0);
+        t.checkExpect(circle.pixels[6 * 12 + 6], Color.MAGENTA.getRGB());
+        t.checkExpect(this.opaque(circle), 112);
+        t.checkExpect(this.sprites.circle(6, Color.MAGENTA) == circle, true);
+        t.checkExpect(this.sprites.circle(6, Color.RED) == circle, false);
+
+        Sprite square = this.sprites.square(13, Color.BLACK);
+        t.checkExpect(this.opaque(square), 169);
+    }
+
+    // test copying sprites, including past the edges of the frame
+    void testBlit(Tester t) {
+        this.initialize();
+        this.frame.blit(this.sprites.square(4, Color.BLACK), 2, 3);
+        t.checkExpect(this.frame.pixelAt(2, 3), Color.BLACK.getRGB());
+        t.checkExpect(this.frame.pixelAt(5, 6), Color.BLACK.getRGB());
+        t.checkExpect(this.frame.pixelAt(6, 6), 0);
+
+        this.frame.blit(this.sprites.square(4, Color.RED), 28, -2);
+        t.checkExpect(this.frame.pixelAt(29, 1), Color.RED.getRGB());
+        t.checkExpect(this.frame.pixelAt(27, 1), 0);
+        t.checkExpect(this.frame.pixelAt(29, 2), 0);
+
+        // transparent pixels leave the frame alone
+        this.frame.blit(this.sprites.circle(3, Color.RED), 2, 3);
+        t.checkExpect(this.frame.pixelAt(2, 3), Color.BLACK.getRGB());
+        t.checkExpect(this.frame.pixelAt(5, 6), Color.RED.getRGB());
+    }
+
+    // test drawing only the rows' spans changed since the last image into
+    // the same image
+    void testDirty(Tester t) {
+        this.initialize();
+        t.checkExpect(this.frame.dirty(), 600);
+        WorldImage image = this.frame.toImage();
+        t.checkExpect(this.frame.dirty(), 0);
+        this.frame.blit(this.sprites.square(4, Color.BLACK), 2, 3);
+        t.checkExpect(this.frame.dirty(), 16);
+        t.checkExpect(this.frame.dirtyFrom[3], 2);
+        t.checkExpect(this.frame.dirtyTo[6], 6);
+        t.checkExpect(this.frame.dirtyTo[7], 0);
+        t.checkExpect(this.frame.toImage() == image, true);
+        t.checkExpect(this.frame.dirty(), 0);
+
+        // terrain only touches the pixels it changes, here all but the
+        // black square
+        CellGrid grid = new CellGrid(
+                new MountainIslandGenerator(16, 16).generateTerrain(), 17);
+        TerrainKernel kernel = new TerrainKernel(grid);
+        Camera camera = new Camera(2);
+        camera.follow(grid.cellAt(8, 8), 17);
+        kernel.shade(camera, 0, 16);
+        FrameRaster frame = new FrameRaster(2 * Cell.CELLSIZE,
+                2 * Cell.CELLSIZE);
+        frame.drawTerrain(kernel, camera);
+        frame.toImage();
+        frame.drawTerrain(kernel, camera);
+        t.checkExpect(frame.dirty(), 0);
+        frame.blit(this.sprites.square(4, Color.BLACK), 2, 3);
+        frame.toImage();
+        frame.drawTerrain(kernel, camera);
+        t.checkExpect(frame.dirty(), 16);
+        t.checkExpect(frame.pixelAt(2, 3), kernel.pixels[7 * 17 + 7]);
+    }
+
+    // test filling the frame with terrain
+    void testTerrain(Tester t) {
+        CellGrid grid = new CellGrid(
+                new MountainIslandGenerator(16, 16).generateTerrain(), 17);
+        TerrainKernel kernel = new TerrainKernel(grid);
+        Camera camera = new Camera(2);
+        camera.follow(grid.cellAt(8, 8), 17);
+        kernel.shade(camera, 0, 16);
+        FrameRaster frame = new FrameRaster(2 * Cell.CELLSIZE,
+                2 * Cell.CELLSIZE);
+        frame.drawTerrain(kernel, camera);
+        t.checkExpect(frame.pixelAt(0, 0), kernel.pixels[7 * 17 + 7]);
+        t.checkExpect(frame.pixelAt(14, 14), kernel.pixels[7 * 17 + 7]);
+        t.checkExpect(frame.pixelAt(15, 0), kernel.pixels[7 * 17 + 8]);
+        t.checkExpect(frame.pixelAt(29, 29), kernel.pixels[8 * 17 + 8]);
+    }
+
+    // test that the world composites its pieces over the terrain
+    void testWorld(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld();
+        world.reset(world.mountain);
+        world.drawInGame();
+        t.checkExpect(world.frame.width, 65 * Cell.CELLSIZE);
+        t.checkExpect(world.frame.pixelAt(world.player.link.x * Cell.CELLSIZE,
+                world.player.link.y * Cell.CELLSIZE), Color.BLACK.getRGB());
+        t.checkExpect(world.frame.pixelAt(
+                world.helicopter.link.x * Cell.CELLSIZE + 6,
+                world.helicopter.link.y * Cell.CELLSIZE + 6) != 0, true);
+    }
+}
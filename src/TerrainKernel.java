@@ -0,0 +1,256 @@
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import tester.*;
+
+// Shades a band of a kernel's pixels, splitting it in half across the pool
+// until the bands are small
+class ShadeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    // the number of pixels below which a band is shaded directly
+    static final int BAND = 1 << 16;
+
+    TerrainKernel kernel;
+    int from;
+    int to;
+    int waterHeight;
+    int maxHeight;
+
+    ShadeTask(TerrainKernel kernel, int from, int to, int waterHeight,
+            int maxHeight) {
+        this.kernel = kernel;
+        this.from = from;
+        this.to = to;
+        this.waterHeight = waterHeight;
+        this.maxHeight = maxHeight;
+    }
+
+    // shade the band
+    // EFFECT: modifies the kernel's pixels from from to to
+    protected void compute() {
+        if (this.to - this.from <= ShadeTask.BAND) {
+            this.kernel.shade(this.from, this.to, this.waterHeight,
+                    this.maxHeight);
+        }
+        else {
+            int mid = (this.from + this.to) >>> 1;
+            ShadeTask.invokeAll(
+                    new ShadeTask(this.kernel, this.from, mid,
+                            this.waterHeight, this.maxHeight),
+                    new ShadeTask(this.kernel, mid, this.to,
+                            this.waterHeight, this.maxHeight));
+        }
+    }
+}
+
+// Colours the board into ARGB pixels, one per cell, straight from flat arrays
+// of heights and flooding. The colours are the same as Cell.draw's, but the
+// choice between flooded, dry and about to flood is made with arithmetic
+// rather than branches, so the loop can be compiled to vector instructions
+class TerrainKernel implements IFloodObserver {
+    // the number of cells along each side of the board
+    int side;
+    // the height of each cell in row order, with ocean cells infinitely deep
+    // so that they shade as the deepest water, which is Color.BLUE
+    float[] heights;
+    // 1 for each flooded cell and 0 for each dry one
+    float[] flooded;
+    // the colour of each cell from the last shade
+    int[] pixels;
+
+    TerrainKernel(CellGrid grid) {
+        this.side = grid.side;
+        this.heights = new float[grid.size()];
+        this.flooded = new float[grid.size()];
+        this.pixels = new int[grid.size()];
+        for (int i = 0; i < grid.size(); i += 1) {
+            Cell cell = grid.get(i);
+            if (cell.isOcean()) {
+                this.heights[i] = Float.NEGATIVE_INFINITY;
+            }
+            else {
+                this.heights[i] = (float) cell.height;
+            }
+            if (cell.isFlooded) {
+                this.flooded[i] = 1;
+            }
+        }
+    }
+
+    // record that the cell at the given index has flooded
+    // EFFECT: modifies flooded
+    void flood(int idx) {
+        this.flooded[idx] = 1;
+    }
+
+    // record that the given cells of the grid have flooded
+    // EFFECT: modifies flooded
+    public void flooded(ArrayList<Cell> cells, CellGrid grid) {
+        for (int i = 0; i < cells.size(); i += 1) {
+            this.flooded[grid.indexOf(cells.get(i))] = 1;
+        }
+    }
+
+    // record that the cell at the given index is dry again
+    // EFFECT: modifies flooded
+    void unflood(int idx) {
+        this.flooded[idx] = 0;
+    }
+
+    // colour the pixels from index from up to index to
+    // EFFECT: modifies pixels
+    void shade(int from, int to, int waterHeight, int maxHeight) {
+        float water = waterHeight;
+        float inverseMax = 1.0f / maxHeight;
+        float[] heights = this.heights;
+        float[] flooded = this.flooded;
+        int[] pixels = this.pixels;
+
+        for (int i = from; i < to; i += 1) {
+            pixels[i] = TerrainKernel.colour(heights[i], flooded[i], water,
+                    inverseMax);
+        }
+    }
+
+    // get the colour of a cell of the given height, which is flooded if wet
+    // is 1 and dry if it is 0, with the water at the given height
+    static int colour(float height, float wet, float water,
+            float inverseMax) {
+        // how far above the water the cell is, in maximum heights
+        float above = (height - water) * inverseMax;
+        // 1 if the cell is above the water and 0 otherwise
+        float high = Math.min(1.0f, Math.max(0.0f, above * 1e30f));
+        float rise = Math.min(1.0f, Math.max(0.0f, above));
+        float depth = Math.min(1.0f,
+                (float) Math.sqrt(Math.max(0.0f, -above)));
+
+        // dry cells mix white and green above the water, and red and olive
+        // below it
+        float dryRed = high * 255.0f * rise
+                + (1 - high) * (255.0f * depth + 64.0f * (1 - depth));
+        float dryGreen = high * (255.0f * rise + 128.0f * (1 - rise))
+                + (1 - high) * 128.0f * (1 - depth);
+        float dryBlue = high * 255.0f * rise;
+        // flooded cells mix blue and teal
+        float wetGreen = 89.0f * (1 - depth);
+        float wetBlue = 255.0f * depth + 128.0f * (1 - depth);
+
+        int red = (int) ((1 - wet) * dryRed + 0.5f);
+        int green = (int) (wet * wetGreen + (1 - wet) * dryGreen + 0.5f);
+        int blue = (int) (wet * wetBlue + (1 - wet) * dryBlue + 0.5f);
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    // colour every pixel, splitting the board into bands across the common
+    // pool
+    // EFFECT: modifies pixels
+    void shadeAll(int waterHeight, int maxHeight) {
+        ForkJoinPool.commonPool().invoke(new ShadeTask(this, 0,
+                this.pixels.length, waterHeight, maxHeight));
+    }
+
+    // colour the pixels of the cells the camera shows
+    // EFFECT: modifies pixels
+    void shade(Camera camera, int waterHeight, int maxHeight) {
+        for (int y = camera.top; y < camera.bottom(); y += 1) {
+            this.shade(y * this.side + camera.left,
+                    y * this.side + camera.right(), waterHeight, maxHeight);
+        }
+    }
+}
+
+class ExamplesTerrainKernel {
+    AIslandGenerator mountainGen = new MountainIslandGenerator(16, 16);
+    CellGrid grid;
+    TerrainKernel kernel;
+
+    void initialize() {
+        this.grid = new CellGrid(this.mountainGen.generateTerrain(), 17);
+        this.kernel = new TerrainKernel(this.grid);
+    }
+
+    // check that two colours differ by at most one in each channel
+    boolean close(Color a, Color b) {
+        return Math.abs(a.getRed() - b.getRed()) <= 1
+                && Math.abs(a.getGreen() - b.getGreen()) <= 1
+                && Math.abs(a.getBlue() - b.getBlue()) <= 1;
+    }
+
+    // check that every pixel is shaded like Utility colours its cell
+    void checkPixels(Tester t, int waterHeight) {
+        Utility util = new Utility();
+        this.kernel.shade(0, this.grid.size(), waterHeight, 16);
+        for (int i = 0; i < this.grid.size(); i += 1) {
+            Cell cell = this.grid.get(i);
+            Color expected;
+            if (cell.isOcean()) {
+                expected = Color.BLUE;
+            }
+            else if (cell.isFlooded) {
+                expected = util.floodedColor(cell.height, waterHeight, 16);
+            }
+            else {
+                expected = util.dryColor(cell.height, waterHeight, 16);
+            }
+            t.checkExpect(this.close(new Color(this.kernel.pixels[i]),
+                    expected), true);
+        }
+    }
+
+    // test that the kernel matches the cell colours, dry, about to flood and
+    // flooded
+    void testShade(Tester t) {
+        this.initialize();
+        this.checkPixels(t, 0);
+        this.checkPixels(t, 12);
+
+        Cell coast = this.grid.cellAt(8, 1);
+        coast.flood(12);
+        for (int i = 0; i < this.grid.size(); i += 1) {
+            if (this.grid.get(i).isFlooded) {
+                this.kernel.flood(i);
+            }
+        }
+        this.checkPixels(t, 12);
+        this.checkPixels(t, 14);
+    }
+
+    // test a few pixels exactly
+    void testPixels(Tester t) {
+        this.initialize();
+        this.kernel.shade(0, this.grid.size(), 0, 16);
+        t.checkExpect(this.kernel.pixels[0], Color.BLUE.getRGB());
+        // the peak is white
+        t.checkExpect(this.kernel.pixels[8 * 17 + 8], Color.WHITE.getRGB());
+        this.kernel.shade(0, this.grid.size(), 16, 16);
+        // just reached by the water
+        t.checkExpect(this.kernel.pixels[8 * 17 + 8],
+                new Color(64, 128, 0).getRGB());
+    }
+
+    // test that shading in parallel gives the same pixels
+    void testShadeAll(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(512);
+        world.reset(world.terrain);
+        world.waterHeight = 30;
+        world.flood();
+
+        world.kernel.shadeAll(30, 128);
+        int[] parallel = world.kernel.pixels.clone();
+        world.kernel.shade(0, world.grid.size(), 30, 128);
+        t.checkExpect(parallel, world.kernel.pixels);
+    }
+
+    // test that the world draws with the kernel
+    void testWorld(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld();
+        world.reset(world.mountain);
+        world.drawInGame();
+        t.checkExpect(world.kernel.pixels[0], Color.BLUE.getRGB());
+        world.rasterized = false;
+        world.drawInGame();
+    }
+}
@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import tester.*;
+
+// Computes the next water surface of a band of rows of a tidal flow, and
+// remembers which of its cells the water has just reached
+class TidalBand extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    TidalFlow flow;
+    int fromRow;
+    int toRow;
+    // the height of the sea for this step
+    int sea;
+    // the indices of the cells that were dry and are now wet
+    int[] fresh;
+    int freshCount;
+
+    TidalBand(TidalFlow flow, int fromRow, int toRow) {
+        this.flow = flow;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+        this.fresh = new int[(toRow - fromRow) * flow.side];
+    }
+
+    // step the rows of this band
+    // EFFECT: modifies the flow's next surface for these rows, and fresh
+    protected void compute() {
+        this.freshCount = this.flow.stepRows(this.fromRow, this.toRow,
+                this.sea, this.fresh);
+    }
+}
+
+// Steps every band of a tidal flow at once across the pool
+class TidalStep extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    TidalBand[] bands;
+
+    TidalStep(TidalBand[] bands) {
+        this.bands = bands;
+    }
+
+    // step the bands
+    // EFFECT: modifies the flow's next surface
+    protected void compute() {
+        for (int i = 0; i < this.bands.length; i += 1) {
+            this.bands[i].reinitialize();
+        }
+        TidalStep.invokeAll(this.bands);
+    }
+}
+
+// Water spreading over the board as a cellular automaton. Each step, every
+// cell's water surface is worked out from its own and its four neighbours'
+// surfaces in the last step, so the sea creeps inland a cell per step rather
+// than filling every low cell at once. A cell is either dry or under water
+// at the sea's height: water never stands at a level of its own, so the
+// flow decides when the sea reaches each cell, not how deep it is. The
+// surfaces are kept in two arrays that swap each step, and the rows are
+// split into bands stepped in parallel
+class TidalFlow {
+    // the surface of a cell with no water on it
+    static final float DRY = Float.NEGATIVE_INFINITY;
+    // the nanoseconds the game has for a tick, at its 16 ms a tick
+    static final long TICK_BUDGET = 16000000;
+
+    // the number of cells along each side of the board
+    int side;
+    // the height of each cell in row order, with ocean cells infinitely deep
+    float[] ground;
+    // the water surface of each cell, this step and next
+    float[] surface;
+    float[] next;
+
+    TidalBand[] bands;
+    TidalStep step;
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    // creates a flow over the grid with a few bands for each thread of the
+    // pool
+    TidalFlow(CellGrid grid) {
+        this(grid, 4 * ForkJoinPool.commonPool().getParallelism());
+    }
+
+    // creates a flow over the grid split into the given number of bands
+    TidalFlow(CellGrid grid, int bandCount) {
+        this.side = grid.side;
+        this.ground = new float[grid.size()];
+        this.surface = new float[grid.size()];
+        this.next = new float[grid.size()];
+        for (int i = 0; i < grid.size(); i += 1) {
+            Cell cell = grid.get(i);
+            if (cell.isOcean()) {
+                this.ground[i] = Float.NEGATIVE_INFINITY;
+            }
+            else {
+                this.ground[i] = (float) cell.height;
+            }
+            if (cell.isFlooded) {
+                this.surface[i] = 0;
+            }
+            else {
+                this.surface[i] = TidalFlow.DRY;
+            }
+        }
+
+        int count = Math.max(1, Math.min(this.side, bandCount));
+        int rows = (this.side + count - 1) / count;
+        ArrayList<TidalBand> bands = new ArrayList<TidalBand>();
+        for (int row = 0; row < this.side; row += rows) {
+            bands.add(new TidalBand(this, row, Math.min(this.side, row + rows)));
+        }
+        this.bands = bands.toArray(new TidalBand[bands.size()]);
+        this.step = new TidalStep(this.bands);
+    }
+
+    // spread the water one step with the sea at the given height
+    // EFFECT: modifies surface and the bands' fresh cells
+    void step(int sea) {
+        for (int i = 0; i < this.bands.length; i += 1) {
+            this.bands[i].sea = sea;
+        }
+        this.step.reinitialize();
+        this.pool.invoke(this.step);
+
+        float[] last = this.surface;
+        this.surface = this.next;
+        this.next = last;
+    }
+
+    // work out the next surface of the given rows: the ocean is at the
+    // height of the sea, and any other cell below the sea is under it once
+    // it or one of its neighbours had water on it
+    // EFFECT: modifies next for these rows, and fills fresh with the cells
+    // the water has just reached, returning how many there are
+    int stepRows(int fromRow, int toRow, int sea, int[] fresh) {
+        int count = 0;
+        for (int y = fromRow; y < toRow; y += 1) {
+            int row = y * this.side;
+            int up = Math.max(y - 1, 0) * this.side;
+            int down = Math.min(y + 1, this.side - 1) * this.side;
+            for (int x = 0; x < this.side; x += 1) {
+                int i = row + x;
+                float water;
+                if (this.ground[i] == Float.NEGATIVE_INFINITY) {
+                    water = sea;
+                }
+                else {
+                    float best = Math.max(this.surface[i],
+                            Math.max(
+                                    Math.max(this.surface[row + Math.max(x - 1, 0)],
+                                            this.surface[row + Math.min(x + 1,
+                                                    this.side - 1)]),
+                                    Math.max(this.surface[up + x],
+                                            this.surface[down + x])));
+                    // water joined to the sea stands at the sea's height
+                    if (best != TidalFlow.DRY && this.ground[i] < sea) {
+                        water = sea;
+                    }
+                    else {
+                        water = TidalFlow.DRY;
+                    }
+                }
+
+                this.next[i] = water;
+                if (water != TidalFlow.DRY && this.surface[i] == TidalFlow.DRY) {
+                    fresh[count] = i;
+                    count += 1;
+                }
+            }
+        }
+        return count;
+    }
+
+    // check if the cell at the given index has water on it
+    boolean isWet(int idx) {
+        return this.surface[idx] != TidalFlow.DRY;
+    }
+
+    // get the number of cells the water reached in the last step
+    int freshCount() {
+        int count = 0;
+        for (int i = 0; i < this.bands.length; i += 1) {
+            count += this.bands[i].freshCount;
+        }
+        return count;
+    }
+
+    // time stepping the flow over noise islands of the given sides, or of
+    // 2048 cells a side, with the sea rising a level every ten steps, and
+    // compare the mean step with the budget of a tick
+    public static void main(String[] args) {
+        int[] sides = { 2048 };
+        if (args.length > 0) {
+            sides = new int[args.length];
+            for (int i = 0; i < args.length; i += 1) {
+                sides[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        int steps = 200;
+        for (int side : sides) {
+            AIslandGenerator gen = new NoiseIslandGenerator(64, side - 1, 3);
+            TidalFlow flow = new TidalFlow(
+                    new CellGrid(gen.generateTerrain(), side));
+            // the first steps only warm up the code
+            for (int i = 0; i < 20; i += 1) {
+                flow.step(1);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < steps; i += 1) {
+                flow.step(1 + i / 10);
+            }
+            long mean = (System.nanoTime() - start) / steps;
+            System.out.println(String.format(
+                    "%5d cells a side, %2d threads: %6.2f ms a step,"
+                            + " %3.0f%% of a tick",
+                    side, flow.pool.getParallelism(), mean / 1e6,
+                    100.0 * mean / TidalFlow.TICK_BUDGET));
+        }
+    }
+}
+
+class ExamplesTidalFlow {
+    AIslandGenerator mountainGen = new MountainIslandGenerator(16, 16);
+    AIslandGenerator randomGen = new RandomIslandGenerator(64, 64);
+    CellGrid grid;
+
+    void initialize() {
+        this.grid = new CellGrid(this.mountainGen.generateTerrain(), 17);
+    }
+
+    // test that the water creeps in a cell at a time
+    void testCreep(Tester t) {
+        this.initialize();
+        TidalFlow flow = new TidalFlow(this.grid, 3);
+        // the coast of the diamond is height 9, the next ring 10
+        flow.step(11);
+        t.checkExpect(flow.isWet(1 * 17 + 8), true);
+        t.checkExpect(flow.isWet(2 * 17 + 8), false);
+        t.checkExpect(flow.freshCount(), 28);
+        flow.step(11);
+        t.checkExpect(flow.isWet(2 * 17 + 8), true);
+        t.checkExpect(flow.isWet(3 * 17 + 8), false);
+        flow.step(11);
+        t.checkExpect(flow.isWet(3 * 17 + 8), false);
+        t.checkExpect(flow.freshCount(), 0);
+    }
+
+    // test that the tide ends up where an instant flood goes
+    void testMatchesFlood(Tester t) {
+        this.grid = new CellGrid(this.randomGen.generateTerrain(), 65);
+        TidalFlow flow = new TidalFlow(this.grid, 5);
+        flow.step(30);
+        while (flow.freshCount() > 0) {
+            flow.step(30);
+        }
+
+        ArrayList<Cell> stack = new ArrayList<Cell>();
+        ArrayList<Cell> log = new ArrayList<Cell>();
+        for (Cell cell : this.grid.cells) {
+            if (cell.isOcean()) {
+                cell.left.flood(30, stack, log);
+                cell.top.flood(30, stack, log);
+                cell.right.flood(30, stack, log);
+                cell.bottom.flood(30, stack, log);
+            }
+        }
+        for (int i = 0; i < this.grid.size(); i += 1) {
+            t.checkExpect(flow.isWet(i), this.grid.get(i).isFlooded);
+        }
+    }
+
+    // test that the number of bands does not change the water
+    void testBands(Tester t) {
+        this.grid = new CellGrid(this.randomGen.generateTerrain(), 65);
+        TidalFlow one = new TidalFlow(this.grid, 1);
+        TidalFlow many = new TidalFlow(this.grid, 16);
+        t.checkExpect(one.bands.length, 1);
+        t.checkExpect(many.bands.length, 13);
+        for (int i = 0; i < 20; i += 1) {
+            one.step(10 + i);
+            many.step(10 + i);
+            t.checkExpect(one.freshCount(), many.freshCount());
+        }
+        t.checkExpect(one.surface, many.surface);
+    }
+
+    // test playing with tidal water, where the coast of the mountain is
+    // height 57
+    void testWorld(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.onKeyEvent("w");
+        t.checkExpect(world.tidalMode, true);
+        world.handleReset("m");
+        t.checkExpect(world.tidal == null, false);
+
+        world.items = new Empty<Target>();
+        world.helicopter.link = world.grid.cellAt(8, 8);
+        world.player.link = world.grid.cellAt(8, 7);
+        world.waterHeight = 58;
+        world.onTick();
+        t.checkExpect(world.grid.cellAt(8, 1).isFlooded, true);
+        t.checkExpect(world.flooded.size(), 28);
+        t.checkExpect(world.kernel.flooded[1 * 17 + 8], 1.0f);
+        world.onTick();
+        t.checkExpect(world.grid.cellAt(8, 2).isFlooded, false);
+    }
+}
@@ -0,0 +1,464 @@
+import java.util.Arrays;
+
+import tester.*;
+
+// Where each cell of a board is kept: the board is cut into square tiles of
+// 2^tileShift cells a side, kept one after another in row order, and the
+// cells of each tile are kept in Z-order, interleaving the bits of their
+// column and row, so the cells above and below a cell are kept near it
+// rather than a whole row away. A tile of one cell is plain row order. The
+// place of a cell is the sum of a part for its column and a part for its
+// row, which are looked up in two tables
+class BoardLayout {
+    int side;
+    int tileShift;
+    int tileSide;
+    // the number of tiles along each side, and the number of places, which
+    // counts the places of the parts of the last tiles off the board
+    int tilesAcross;
+    int slots;
+    // the part of the place of each column and each row
+    int[] columns;
+    int[] rows;
+
+    BoardLayout(int side, int tileShift) {
+        if (tileShift < 0 || tileShift > 15) {
+            throw new IllegalArgumentException(
+                    "A tile must have from 1 to 32768 cells along a side");
+        }
+        this.side = side;
+        this.tileShift = tileShift;
+        this.tileSide = 1 << tileShift;
+        this.tilesAcross = (side + this.tileSide - 1) / this.tileSide;
+        long slots = (long) this.tilesAcross * this.tilesAcross
+                << 2 * tileShift;
+        if (side < 1 || slots > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A board of " + side
+                    + " cells a side does not fit tiles of " + this.tileSide);
+        }
+        this.slots = (int) slots;
+
+        int mask = this.tileSide - 1;
+        this.columns = new int[side];
+        this.rows = new int[side];
+        for (int i = 0; i < side; i += 1) {
+            this.columns[i] = (i >>> tileShift) << 2 * tileShift
+                    | BoardLayout.spread(i & mask);
+            this.rows[i] = (i >>> tileShift) * this.tilesAcross << 2
+                    * tileShift | BoardLayout.spread(i & mask) << 1;
+        }
+    }
+
+    // spread the low 16 bits of the given number out to the even bits
+    static int spread(int bits) {
+        bits &= 0xFFFF;
+        bits = (bits | bits << 8) & 0x00FF00FF;
+        bits = (bits | bits << 4) & 0x0F0F0F0F;
+        bits = (bits | bits << 2) & 0x33333333;
+        return (bits | bits << 1) & 0x55555555;
+    }
+
+    // gather the even bits of the given number into its low 16 bits
+    static int compact(int bits) {
+        bits &= 0x55555555;
+        bits = (bits | bits >>> 1) & 0x33333333;
+        bits = (bits | bits >>> 2) & 0x0F0F0F0F;
+        bits = (bits | bits >>> 4) & 0x00FF00FF;
+        return (bits | bits >>> 8) & 0x0000FFFF;
+    }
+
+    // get the place of the cell at the given position
+    int slotOf(int x, int y) {
+        return this.columns[x] + this.rows[y];
+    }
+
+    // get the column of the cell at the given place
+    int xOf(int slot) {
+        int tile = slot >>> 2 * this.tileShift;
+        int within = slot & (1 << 2 * this.tileShift) - 1;
+        return tile % this.tilesAcross << this.tileShift
+                | BoardLayout.compact(within);
+    }
+
+    // get the row of the cell at the given place
+    int yOf(int slot) {
+        int tile = slot >>> 2 * this.tileShift;
+        int within = slot & (1 << 2 * this.tileShift) - 1;
+        return tile / this.tilesAcross << this.tileShift
+                | BoardLayout.compact(within >>> 1);
+    }
+}
+
+// A board whose heights and flooded bits are kept in the order of a
+// BoardLayout, for flooding and shading boards of millions of cells with
+// the cells near each other on the board near each other in memory. The
+// heights are floats, with the ocean infinitely deep, as in the
+// OffHeapBoard
+class TiledBoard implements IBoard {
+    BoardLayout layout;
+    float[] heights;
+    long[] flooded;
+    // the cells waiting to spread the water, as the row above the column
+    int[] stack = new int[64];
+    int top;
+
+    // creates a board of the given side with every cell at height 0, kept in
+    // tiles of 2^tileShift cells a side
+    TiledBoard(int side, int tileShift) {
+        this.layout = new BoardLayout(side, tileShift);
+        this.heights = new float[this.layout.slots];
+        this.flooded = new long[(this.layout.slots + 63) / 64];
+    }
+
+    // copy the given board's heights and flooding into a board kept in tiles
+    // of 2^tileShift cells a side
+    static TiledBoard of(IBoard board, int tileShift) {
+        TiledBoard tiled = new TiledBoard(board.cellsPerSide(), tileShift);
+        for (int i = 0; i < board.size(); i += 1) {
+            if (board.isOcean(i)) {
+                tiled.setOcean(i);
+            }
+            else {
+                tiled.setHeight(i, board.height(i));
+                if (board.isFlooded(i)) {
+                    tiled.setFlooded(i);
+                }
+            }
+        }
+        return tiled;
+    }
+
+    // fill the board with the given noise island, which must be the same
+    // size
+    // EFFECT: sets every height
+    void fill(NoiseIslandGenerator gen) {
+        int side = this.layout.side;
+        if (gen.islandSize + 1 != side) {
+            throw new IllegalArgumentException("The island has "
+                    + (gen.islandSize + 1) + " cells along a side, not "
+                    + side);
+        }
+        for (int y = 0; y < side; y += 1) {
+            for (int x = 0; x < side; x += 1) {
+                double height = gen.heightAt(x, y);
+                int slot = this.layout.slotOf(x, y);
+                if (height <= 0) {
+                    this.heights[slot] = Float.NEGATIVE_INFINITY;
+                }
+                else {
+                    this.heights[slot] = (float) height;
+                }
+            }
+        }
+        this.heights[this.layout.slotOf(side / 2, side / 2)] = gen.maxHeight;
+    }
+
+    // get the place of the cell at the given index in row order
+    int slotOf(int idx) {
+        return this.layout.slotOf(idx % this.layout.side,
+                idx / this.layout.side);
+    }
+
+    // get the number of cells along each side of the board
+    public int cellsPerSide() {
+        return this.layout.side;
+    }
+
+    // get the number of cells on the board
+    public int size() {
+        return this.layout.side * this.layout.side;
+    }
+
+    // get the height of the cell at the given index
+    public double height(int idx) {
+        return this.heights[this.slotOf(idx)];
+    }
+
+    // set the height of the cell at the given index
+    // EFFECT: modifies the heights
+    void setHeight(int idx, double height) {
+        this.heights[this.slotOf(idx)] = (float) height;
+    }
+
+    // make the cell at the given index ocean
+    // EFFECT: modifies the heights
+    void setOcean(int idx) {
+        this.heights[this.slotOf(idx)] = Float.NEGATIVE_INFINITY;
+    }
+
+    // check if the cell at the given index is ocean
+    public boolean isOcean(int idx) {
+        return this.heights[this.slotOf(idx)] == Float.NEGATIVE_INFINITY;
+    }
+
+    // check if the cell at the given index is flooded
+    public boolean isFlooded(int idx) {
+        return this.isWet(this.slotOf(idx));
+    }
+
+    // flood the cell at the given index
+    // EFFECT: sets the cell's flooded bit
+    public void setFlooded(int idx) {
+        int slot = this.slotOf(idx);
+        this.flooded[slot >>> 6] |= 1L << slot;
+    }
+
+    // check if the cell at the given place is flooded
+    boolean isWet(int slot) {
+        return (this.flooded[slot >>> 6] >>> slot & 1) != 0
+                || this.heights[slot] == Float.NEGATIVE_INFINITY;
+    }
+
+    // flood the board to the given water height the way the world floods
+    // its cells, spreading from every cell next to the water, a tile at a
+    // time, and return the number of cells newly flooded
+    // EFFECT: floods the board's cells
+    long flood(int waterHeight) {
+        BoardLayout layout = this.layout;
+        int side = layout.side;
+        long count = 0;
+        for (int ty = 0; ty < side; ty += layout.tileSide) {
+            int bottom = Math.min(side, ty + layout.tileSide);
+            for (int tx = 0; tx < side; tx += layout.tileSide) {
+                int right = Math.min(side, tx + layout.tileSide);
+                for (int y = ty; y < bottom; y += 1) {
+                    for (int x = tx; x < right; x += 1) {
+                        if (this.nextToWater(x, y)) {
+                            count += this.spread(x, y, waterHeight);
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // check if the cell at the given position is dry and any of its
+    // neighbours is flooded
+    boolean nextToWater(int x, int y) {
+        int side = this.layout.side;
+        return !this.isWet(this.layout.slotOf(x, y))
+                && (x > 0 && this.isWet(this.layout.slotOf(x - 1, y))
+                        || x < side - 1
+                                && this.isWet(this.layout.slotOf(x + 1, y))
+                        || y > 0 && this.isWet(this.layout.slotOf(x, y - 1))
+                        || y < side - 1
+                                && this.isWet(this.layout.slotOf(x, y + 1)));
+    }
+
+    // flood the cell at the given position, if it is below the water, and
+    // every dry cell below the water reachable from it, returning the
+    // number flooded. Cells are flooded as they are pushed, so each is
+    // pushed once
+    // EFFECT: floods the board's cells, and uses the stack
+    long spread(int x, int y, int waterHeight) {
+        long count = this.push(x, y, waterHeight);
+        int side = this.layout.side;
+        while (this.top > 0) {
+            this.top -= 1;
+            int cur = this.stack[this.top];
+            int cx = cur & 0xFFFF;
+            int cy = cur >>> 16;
+            if (cx > 0) {
+                count += this.push(cx - 1, cy, waterHeight);
+            }
+            if (cy > 0) {
+                count += this.push(cx, cy - 1, waterHeight);
+            }
+            if (cx < side - 1) {
+                count += this.push(cx + 1, cy, waterHeight);
+            }
+            if (cy < side - 1) {
+                count += this.push(cx, cy + 1, waterHeight);
+            }
+        }
+        return count;
+    }
+
+    // flood the cell at the given position and push it, if it is dry and
+    // below the water, returning the number of cells flooded
+    // EFFECT: may flood the cell and push it, growing the stack if it is
+    // full
+    int push(int x, int y, int waterHeight) {
+        int slot = this.layout.slotOf(x, y);
+        if (this.isWet(slot) || this.heights[slot] >= waterHeight) {
+            return 0;
+        }
+
+        this.flooded[slot >>> 6] |= 1L << slot;
+        if (this.top == this.stack.length) {
+            this.stack = Arrays.copyOf(this.stack, this.top * 2);
+        }
+        this.stack[this.top] = y << 16 | x;
+        this.top += 1;
+        return 1;
+    }
+
+    // colour the cells into the given pixels in row order, as the
+    // TerrainKernel does, a tile at a time
+    // EFFECT: modifies pixels
+    void shade(int[] pixels, int waterHeight, int maxHeight) {
+        BoardLayout layout = this.layout;
+        int side = layout.side;
+        float water = waterHeight;
+        float inverseMax = 1.0f / maxHeight;
+        for (int ty = 0; ty < side; ty += layout.tileSide) {
+            int bottom = Math.min(side, ty + layout.tileSide);
+            for (int tx = 0; tx < side; tx += layout.tileSide) {
+                int right = Math.min(side, tx + layout.tileSide);
+                for (int y = ty; y < bottom; y += 1) {
+                    for (int x = tx; x < right; x += 1) {
+                        int slot = layout.slotOf(x, y);
+                        float wet = 0;
+                        if (this.isWet(slot)) {
+                            wet = 1;
+                        }
+                        pixels[y * side + x] = TerrainKernel.colour(
+                                this.heights[slot], wet, water, inverseMax);
+                    }
+                }
+            }
+        }
+    }
+
+    // time flooding and shading noise islands of the given sides, or of 1K
+    // to 8K cells a side, kept in row order and in tiles of 32 cells a side
+    public static void main(String[] args) {
+        int[] sides = { 1025, 2049, 4097, 8193 };
+        if (args.length > 0) {
+            sides = new int[args.length];
+            for (int i = 0; i < args.length; i += 1) {
+                sides[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        int[] shifts = { 0, 5 };
+        for (int side : sides) {
+            int[] pixels = new int[side * side];
+            for (int shift : shifts) {
+                TiledBoard board = new TiledBoard(side, shift);
+                board.fill(new NoiseIslandGenerator(64, side - 1, 3));
+                long start = System.nanoTime();
+                long cells = 0;
+                for (int water = 1; water <= 64; water += 1) {
+                    cells += board.flood(water);
+                }
+                long flood = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int water = 0; water < 64; water += 8) {
+                    board.shade(pixels, water, 64);
+                }
+                long shade = (System.nanoTime() - start) / 8;
+                System.out.println(side + " cells a side, tiles of "
+                        + (1 << shift) + ": flooded " + cells + " cells in "
+                        + flood / 1000000 + " ms, shaded in "
+                        + shade / 1000000 + " ms");
+            }
+        }
+    }
+}
+
+class ExamplesTiledBoard {
+    AIslandGenerator terrainGen = new RandomTerrainIslandGenerator(32, 32);
+
+    // test that places and positions convert both ways
+    void testLayout(Tester t) {
+        BoardLayout rows = new BoardLayout(5, 0);
+        t.checkExpect(rows.slots, 25);
+        t.checkExpect(rows.slotOf(3, 2), 13);
+        t.checkExpect(rows.xOf(13), 3);
+        t.checkExpect(rows.yOf(13), 2);
+
+        BoardLayout tiles = new BoardLayout(5, 2);
+        // 2 by 2 tiles of 16 cells
+        t.checkExpect(tiles.slots, 64);
+        t.checkExpect(tiles.slotOf(0, 0), 0);
+        t.checkExpect(tiles.slotOf(1, 0), 1);
+        t.checkExpect(tiles.slotOf(0, 1), 2);
+        t.checkExpect(tiles.slotOf(1, 1), 3);
+        t.checkExpect(tiles.slotOf(2, 0), 4);
+        t.checkExpect(tiles.slotOf(3, 3), 15);
+        t.checkExpect(tiles.slotOf(4, 0), 16);
+        t.checkExpect(tiles.slotOf(0, 4), 32);
+
+        boolean same = true;
+        int[] shifts = { 0, 1, 3, 5 };
+        for (int shift : shifts) {
+            BoardLayout layout = new BoardLayout(77, shift);
+            boolean[] used = new boolean[layout.slots];
+            for (int y = 0; y < 77; y += 1) {
+                for (int x = 0; x < 77; x += 1) {
+                    int slot = layout.slotOf(x, y);
+                    same = same && !used[slot] && layout.xOf(slot) == x
+                            && layout.yOf(slot) == y;
+                    used[slot] = true;
+                }
+            }
+        }
+        t.checkExpect(same, true);
+        t.checkExpect(BoardLayout.spread(0xFFFF), 0x55555555);
+        t.checkExpect(BoardLayout.compact(0x55555555), 0xFFFF);
+        t.checkConstructorException(
+                new IllegalArgumentException(
+                        "A tile must have from 1 to 32768 cells along a side"),
+                "BoardLayout", 5, 16);
+        t.checkConstructorException(
+                new IllegalArgumentException("A board of 46340 cells a side"
+                        + " does not fit tiles of 32768"),
+                "BoardLayout", 46340, 15);
+    }
+
+    // test that a tiled board floods as a board in row order does
+    void testFlood(Tester t) {
+        CellGrid grid = new CellGrid(this.terrainGen.generateTerrain(), 33);
+        OffHeapBoard board = OffHeapBoard.of(grid);
+        TiledBoard rows = TiledBoard.of(board, 0);
+        TiledBoard tiles = TiledBoard.of(board, 3);
+        BoardFlood flood = new BoardFlood();
+        boolean same = true;
+        for (int water = 1; water <= 33; water += 1) {
+            long count = flood.flood(board, water);
+            same = same && rows.flood(water) == count
+                    && tiles.flood(water) == count;
+            for (int i = 0; i < board.size(); i += 1) {
+                same = same && rows.isFlooded(i) == board.isFlooded(i)
+                        && tiles.isFlooded(i) == board.isFlooded(i);
+            }
+        }
+        t.checkExpect(same, true);
+        t.checkExpect(tiles.height(5 * 33 + 7), board.height(5 * 33 + 7));
+    }
+
+    // test that a tiled board shades as the kernel does
+    void testShade(Tester t) {
+        ForbiddenIslandWorld world = new ForbiddenIslandWorld(16);
+        world.reset(this.terrainGen);
+        world.waterHeight = 12;
+        world.flood();
+        TiledBoard tiles = TiledBoard.of(world.grid, 2);
+        int[] pixels = new int[world.grid.size()];
+        tiles.shade(pixels, 12, 32);
+        world.kernel.shade(0, world.grid.size(), 12, 32);
+        t.checkExpect(pixels, world.kernel.pixels);
+    }
+
+    // test filling a tiled board with a noise island
+    void testFill(Tester t) {
+        TiledBoard tiles = new TiledBoard(65, 4);
+        tiles.fill(new NoiseIslandGenerator(64, 64, 42));
+        CellGrid grid = new CellGrid(
+                new NoiseIslandGenerator(64, 64, 42).generateTerrain(), 65);
+        boolean same = true;
+        for (int i = 0; i < grid.size(); i += 1) {
+            same = same && tiles.isOcean(i) == grid.get(i).isOcean()
+                    && (grid.get(i).isOcean()
+                            || tiles.height(i) == (float) grid.get(i).height);
+        }
+        t.checkExpect(same, true);
+        t.checkExpect(tiles.height(32 * 65 + 32), 64.0);
+        t.checkException(
+                new IllegalArgumentException(
+                        "The island has 33 cells along a side, not 65"),
+                tiles, "fill", new NoiseIslandGenerator(64, 32, 1));
+    }
+}